@@ -26,6 +26,7 @@ CREATE TABLE book (
     language VARCHAR(255),
     isbn_10 VARCHAR(255),
     isbn_13 VARCHAR(255),
+    isbn_key BIGINT,
     library_section INTEGER NOT NULL,
     total_quantity INTEGER,
     available_quantity INTEGER,
@@ -33,7 +34,11 @@ CREATE TABLE book (
     image_link VARCHAR(255),
     retail_price DOUBLE PRECISION,
     library_price DOUBLE PRECISION,
-    PRIMARY KEY (book_id)
+    modified_at BIGINT,
+    PRIMARY KEY (book_id),
+    CONSTRAINT uk_book_isbn_key UNIQUE (isbn_key),
+    INDEX idx_book_section_language (library_section, language),
+    INDEX idx_book_available_quantity (available_quantity)
 );
 
 CREATE TABLE tag (
@@ -72,7 +77,8 @@ CREATE TABLE loaner (
     last_name VARCHAR(255),
     father_name VARCHAR(255),
     mother_name VARCHAR(255),
-    PRIMARY KEY (loaner_id)
+    PRIMARY KEY (loaner_id),
+    INDEX idx_loaner_school_id (school_id)
 );
 
 CREATE TABLE loan (
@@ -83,6 +89,7 @@ CREATE TABLE loan (
     borrow_date DATE,
     due_date DATE,
     PRIMARY KEY (loan_id),
+    INDEX idx_loan_due_date (due_date, loan_id),
     CONSTRAINT fk_loan_book FOREIGN KEY (book_id) REFERENCES book (book_id),
     CONSTRAINT fk_loan_loaner FOREIGN KEY (loaner_id) REFERENCES loaner (loaner_id)
 );
@@ -94,6 +101,10 @@ CREATE TABLE transaction (
     librarian_id BIGINT,
     loaner_id BIGINT,
     PRIMARY KEY (trn_id),
+    INDEX idx_trn_datetime (trn_datetime),
+    INDEX idx_trn_loaner_datetime (loaner_id, trn_datetime),
+    INDEX idx_trn_librarian_datetime (librarian_id, trn_datetime),
+    INDEX idx_trn_type_datetime (trn_type, trn_datetime),
     CONSTRAINT fk_trn_librarian FOREIGN KEY (librarian_id) REFERENCES librarian (librarian_id),
     CONSTRAINT fk_trn_loaner FOREIGN KEY (loaner_id) REFERENCES loaner (loaner_id)
 );
@@ -107,6 +118,69 @@ CREATE TABLE trn_quantities (
     CONSTRAINT fk_trnqty_book FOREIGN KEY (book_id) REFERENCES book (book_id)
 );
 
+CREATE TABLE idempotency_record (
+    idem_key VARCHAR(100) NOT NULL,
+    trn_id BIGINT,
+    request_hash VARCHAR(64),
+    created_at DATETIME(6),
+    PRIMARY KEY (idem_key),
+    INDEX idx_idem_created_at (created_at)
+);
+
+CREATE TABLE circulation_journal (
+    entry_id BIGINT NOT NULL AUTO_INCREMENT,
+    entry_type INTEGER,
+    trn_id BIGINT,
+    book_id BIGINT,
+    loaner_id BIGINT,
+    copies INTEGER,
+    delta INTEGER,
+    borrow_date DATE,
+    due_date DATE,
+    recorded_at DATETIME(6),
+    PRIMARY KEY (entry_id),
+    INDEX idx_journal_book_entry (book_id, entry_id)
+);
+
+CREATE TABLE availability_snapshot (
+    snapshot_id BIGINT NOT NULL AUTO_INCREMENT,
+    book_id BIGINT,
+    last_entry_id BIGINT,
+    available_quantity INTEGER,
+    taken_at DATETIME(6),
+    PRIMARY KEY (snapshot_id),
+    INDEX idx_snapshot_book_taken_at (book_id, taken_at),
+    INDEX idx_snapshot_last_entry (last_entry_id)
+);
+
+CREATE TABLE outbox_event (
+    event_id BIGINT NOT NULL AUTO_INCREMENT,
+    event_type INTEGER,
+    trn_id BIGINT,
+    loaner_id BIGINT,
+    payload LONGTEXT,
+    created_at DATETIME(6),
+    dispatched_at DATETIME(6),
+    PRIMARY KEY (event_id),
+    INDEX idx_outbox_pending (dispatched_at, event_id)
+);
+
+CREATE TABLE id_sequence (
+    sequence_name VARCHAR(64) NOT NULL,
+    next_val BIGINT,
+    PRIMARY KEY (sequence_name)
+);
+
+CREATE TABLE circulation_rollup (
+    rollup_day DATE NOT NULL,
+    trn_type INTEGER NOT NULL,
+    dimension INTEGER NOT NULL,
+    dim_key VARCHAR(255) NOT NULL,
+    trn_count BIGINT,
+    copies BIGINT,
+    PRIMARY KEY (rollup_day, trn_type, dimension, dim_key)
+);
+
 -- create user for login
 INSERT INTO librarian (librarian_id,username,first_name,middle_name,last_name,email,password,role) VALUES
 (1,"admin","BudLib Admin",NULL,NULL,"admin@localhost","$2a$10$Gitv.jdJOSpID30NmPEqn.IwH5CztayH4HbRUjxGDJKNM3DWCwMmy","0");
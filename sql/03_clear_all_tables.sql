@@ -2,6 +2,11 @@
 USE buddb;
 
 -- delete all rows from tables
+DELETE FROM circulation_rollup; 
+DELETE FROM outbox_event; 
+DELETE FROM availability_snapshot; 
+DELETE FROM circulation_journal; 
+DELETE FROM idempotency_record; 
 DELETE FROM trn_quantities; 
 DELETE FROM transaction; 
 DELETE FROM loan; 
@@ -0,0 +1,108 @@
+-- Upgrades a database created by an older 01_init.sql to the current schema.
+-- Run the sections added since your last upgrade, in order.
+
+-- select db
+USE buddb;
+
+-- canonical ISBN 13 key of the book
+-- the key is computed by the application at startup for books without one
+ALTER TABLE book ADD COLUMN isbn_key BIGINT AFTER isbn_13;
+ALTER TABLE book ADD CONSTRAINT uk_book_isbn_key UNIQUE (isbn_key);
+
+-- indexes for the compound book query
+CREATE INDEX idx_book_section_language ON book (library_section, language);
+CREATE INDEX idx_book_available_quantity ON book (available_quantity);
+
+-- keys of transactions saved with an Idempotency-Key header
+CREATE TABLE idempotency_record (
+    idem_key VARCHAR(100) NOT NULL,
+    trn_id BIGINT,
+    created_at DATETIME(6),
+    PRIMARY KEY (idem_key),
+    INDEX idx_idem_created_at (created_at)
+);
+
+-- indexes for the transaction history query
+CREATE INDEX idx_trn_datetime ON transaction (trn_datetime);
+CREATE INDEX idx_trn_loaner_datetime ON transaction (loaner_id, trn_datetime);
+CREATE INDEX idx_trn_librarian_datetime ON transaction (librarian_id, trn_datetime);
+CREATE INDEX idx_trn_type_datetime ON transaction (trn_type, trn_datetime);
+
+-- append-only circulation journal and availability snapshots
+-- the application starts the journal from the current books and loans when it is empty
+CREATE TABLE circulation_journal (
+    entry_id BIGINT NOT NULL AUTO_INCREMENT,
+    entry_type INTEGER,
+    trn_id BIGINT,
+    book_id BIGINT,
+    loaner_id BIGINT,
+    copies INTEGER,
+    delta INTEGER,
+    borrow_date DATE,
+    due_date DATE,
+    recorded_at DATETIME(6),
+    PRIMARY KEY (entry_id),
+    INDEX idx_journal_book_entry (book_id, entry_id)
+);
+
+CREATE TABLE availability_snapshot (
+    snapshot_id BIGINT NOT NULL AUTO_INCREMENT,
+    book_id BIGINT,
+    last_entry_id BIGINT,
+    available_quantity INTEGER,
+    taken_at DATETIME(6),
+    PRIMARY KEY (snapshot_id),
+    INDEX idx_snapshot_book_taken_at (book_id, taken_at),
+    INDEX idx_snapshot_last_entry (last_entry_id)
+);
+
+-- transactional outbox of the circulation events
+CREATE TABLE outbox_event (
+    event_id BIGINT NOT NULL AUTO_INCREMENT,
+    event_type INTEGER,
+    trn_id BIGINT,
+    loaner_id BIGINT,
+    payload LONGTEXT,
+    created_at DATETIME(6),
+    dispatched_at DATETIME(6),
+    PRIMARY KEY (event_id),
+    INDEX idx_outbox_pending (dispatched_at, event_id)
+);
+
+-- pooled ids for books, loaners, loans and transactions
+-- each sequence starts after the highest id in use, so existing ids are kept;
+-- the application also moves the sequences past the ids in use at startup
+CREATE TABLE id_sequence (
+    sequence_name VARCHAR(64) NOT NULL,
+    next_val BIGINT,
+    PRIMARY KEY (sequence_name)
+);
+
+INSERT INTO id_sequence (sequence_name, next_val) SELECT 'book', COALESCE(MAX(book_id), 0) + 1 FROM book;
+INSERT INTO id_sequence (sequence_name, next_val) SELECT 'loaner', COALESCE(MAX(loaner_id), 0) + 1 FROM loaner;
+INSERT INTO id_sequence (sequence_name, next_val) SELECT 'loan', COALESCE(MAX(loan_id), 0) + 1 FROM loan;
+INSERT INTO id_sequence (sequence_name, next_val) SELECT 'transaction', COALESCE(MAX(trn_id), 0) + 1 FROM transaction;
+
+-- overdue and upcoming due loans are looked up by due date
+CREATE INDEX idx_loan_due_date ON loan (due_date, loan_id);
+
+-- daily circulation rollups for the dashboard analytics
+-- the application builds them from the transactions at startup when the table is empty
+CREATE TABLE circulation_rollup (
+    rollup_day DATE NOT NULL,
+    trn_type INTEGER NOT NULL,
+    dimension INTEGER NOT NULL,
+    dim_key VARCHAR(255) NOT NULL,
+    trn_count BIGINT,
+    copies BIGINT,
+    PRIMARY KEY (rollup_day, trn_type, dimension, dim_key)
+);
+
+-- fingerprint of the request saved with each Idempotency-Key
+ALTER TABLE idempotency_record ADD COLUMN request_hash VARCHAR(64);
+
+-- time each book was last saved, compared with the search index at startup
+ALTER TABLE book ADD COLUMN modified_at BIGINT;
+
+-- imports look up the school ids already taken
+CREATE INDEX idx_loaner_school_id ON loaner (school_id);
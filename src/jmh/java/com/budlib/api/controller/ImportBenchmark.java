@@ -0,0 +1,103 @@
+package com.budlib.api.controller;
+
+import com.budlib.api.Application;
+import com.budlib.api.model.Book;
+import com.budlib.api.model.Loaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Imports of 100,000 books and 100,000 loaners through the controllers, on the
+ * in-memory H2 database of the h2 test profile. Every import brings rows not
+ * seen before, so none is rejected as a duplicate, while the duplicate checks
+ * still run against all the rows imported earlier.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class ImportBenchmark {
+    @Param({ "100000" })
+    private int rows;
+
+    private ConfigurableApplicationContext context;
+
+    private BookController bookController;
+
+    private LoanerController loanerController;
+
+    private List<Book> books;
+
+    private List<Loaner> loaners;
+
+    private int round;
+
+    @Setup(Level.Trial)
+    public void start() {
+        this.context = new SpringApplicationBuilder(Application.class).profiles("h2")
+                .properties("server.port=0").run();
+        this.bookController = this.context.getBean(BookController.class);
+        this.loanerController = this.context.getBean(LoanerController.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        this.context.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareRows() {
+        this.books = new ArrayList<>();
+        this.loaners = new ArrayList<>();
+
+        for (int i = 0; i < this.rows; i++) {
+            long serial = (long) this.round * this.rows + i;
+
+            Book b = new Book();
+            b.setTitle("Title " + serial);
+            b.setAuthors("Author " + serial % 1000);
+            b.setIsbn_13(String.format("978%09d0", serial));
+            b.setTotalQuantity(3);
+            b.setAvailableQuantity(3);
+            b.setTags(new ArrayList<>());
+            this.books.add(b);
+
+            Loaner l = new Loaner();
+            l.setSchoolId("S" + serial);
+            l.setFirstName("First" + serial);
+            l.setLastName("Last" + serial % 1000);
+            this.loaners.add(l);
+        }
+
+        this.round++;
+    }
+
+    @Benchmark
+    public HttpStatus importBooks() {
+        return this.bookController.importBooks(this.books).getStatusCode();
+    }
+
+    @Benchmark
+    public HttpStatus importLoaners() {
+        return this.loanerController.importLoaners(this.loaners).getStatusCode();
+    }
+}
@@ -0,0 +1,73 @@
+package com.budlib.api.model;
+
+import java.time.LocalDate;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Returning a book and borrowing it again, for loaners holding 1 to 1000
+ * loans. Each invocation returns the next book of the loaner in turn, so the
+ * loans looked up and removed are spread over the whole set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoanerLoansBenchmark {
+    @Param({ "1", "10", "100", "1000" })
+    private int loans;
+
+    private Loaner loaner;
+
+    private Book[] books;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        this.loaner = new Loaner();
+        this.loaner.setCurrentLoans(new LinkedHashSet<>());
+        this.books = new Book[this.loans];
+
+        for (int i = 0; i < this.loans; i++) {
+            Book b = new Book();
+            b.setBookId(i + 1);
+            this.books[i] = b;
+            this.loaner.addLoan(this.loanOf(b));
+        }
+    }
+
+    private Loan loanOf(Book b) {
+        Loan loan = new Loan();
+        loan.setLoaner(this.loaner);
+        loan.setBook(b);
+        loan.setCopies(1);
+        loan.setBorrowDate(LocalDate.of(2026, 1, 5));
+        loan.setDueDate(LocalDate.of(2026, 1, 19));
+        return loan;
+    }
+
+    @Benchmark
+    public List<Loan> returnAndBorrow() {
+        Book b = this.books[this.next];
+        this.next = (this.next + 1) % this.books.length;
+
+        List<Loan> settledLoans = this.loaner.updateLoans(b, 1);
+        this.loaner.addLoan(this.loanOf(b));
+        return settledLoans;
+    }
+}
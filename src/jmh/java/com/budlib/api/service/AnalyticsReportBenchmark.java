@@ -0,0 +1,130 @@
+package com.budlib.api.service;
+
+import static org.mockito.Mockito.mock;
+
+import com.budlib.api.enums.*;
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import com.budlib.api.response.AnalyticsReport;
+import java.time.LocalDate;
+import java.time.MonthDay;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Building the analytics report from the rollups in memory, over a term, a
+ * year or three of synthetic circulation. The rollups are filled through record, as the
+ * circulation does, and the repositories looking up the names of the top books
+ * and borrowers are stubbed, so only the work done in memory is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyticsReportBenchmark {
+    private static final int BOOKS = 20000;
+
+    private static final int LOANERS = 5000;
+
+    private static final int TAGS = 200;
+
+    private static final String[] LANGUAGES = { "English", "French", "German", "Spanish", "Hindi" };
+
+    private static final LocalDate FIRST_DAY = LocalDate.of(2024, 1, 1);
+
+    @Param({ "90", "365", "1095" })
+    private int days;
+
+    @Param({ "100", "500" })
+    private int transactionsPerDay;
+
+    @Param({ "DAY", "WEEK", "TERM" })
+    private AnalyticsGranularity granularity;
+
+    private CirculationAnalytics circulationAnalytics;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.circulationAnalytics = new CirculationAnalytics();
+        ReflectionTestUtils.setField(this.circulationAnalytics, "bookRepository", mock(BookRepository.class));
+        ReflectionTestUtils.setField(this.circulationAnalytics, "loanerRepository", mock(LoanerRepository.class));
+
+        List<MonthDay> termStarts = (List<MonthDay>) ReflectionTestUtils.getField(this.circulationAnalytics,
+                "termStarts");
+        termStarts.add(MonthDay.of(1, 6));
+        termStarts.add(MonthDay.of(4, 20));
+        termStarts.add(MonthDay.of(9, 1));
+
+        Random random = new Random(42);
+        Book[] books = new Book[BOOKS];
+        Tag[] tags = new Tag[TAGS];
+
+        for (int i = 0; i < TAGS; i++) {
+            tags[i] = new Tag();
+            tags[i].setTagId(i + 1);
+            tags[i].setTagName("tag-" + i);
+        }
+
+        for (int i = 0; i < BOOKS; i++) {
+            Book b = new Book();
+            b.setBookId(i + 1);
+            b.setLibrarySection(LibrarySection.values()[random.nextInt(LibrarySection.values().length)]);
+            b.setLanguage(LANGUAGES[random.nextInt(LANGUAGES.length)]);
+
+            List<Tag> bookTags = new ArrayList<>();
+
+            for (int t = random.nextInt(4); t > 0; t--) {
+                bookTags.add(tags[random.nextInt(TAGS)]);
+            }
+
+            b.setTags(bookTags);
+            books[i] = b;
+        }
+
+        for (int day = 0; day < this.days; day++) {
+            LocalDate date = FIRST_DAY.plusDays(day);
+
+            for (int i = 0; i < this.transactionsPerDay; i++) {
+                Loaner loaner = new Loaner();
+                loaner.setLoanerId(random.nextInt(LOANERS) + 1);
+
+                List<TrnQuantities> bookCopies = new ArrayList<>();
+
+                for (int q = random.nextInt(3) + 1; q > 0; q--) {
+                    TrnQuantities tq = new TrnQuantities();
+                    tq.setBook(books[random.nextInt(BOOKS)]);
+                    tq.setCopies(random.nextInt(2) + 1);
+                    bookCopies.add(tq);
+                }
+
+                this.circulationAnalytics.record(new Transaction(0L, date.atStartOfDay(ZoneId.systemDefault()),
+                        TransactionType.values()[random.nextInt(TransactionType.values().length)], loaner, null,
+                        bookCopies));
+            }
+        }
+    }
+
+    @Benchmark
+    public AnalyticsReport report() {
+        return this.circulationAnalytics.report(FIRST_DAY, FIRST_DAY.plusDays(this.days - 1L), this.granularity,
+                10);
+    }
+}
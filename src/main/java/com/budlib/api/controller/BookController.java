@@ -4,28 +4,82 @@ import com.budlib.api.enums.LibrarySection;
 import com.budlib.api.model.*;
 import com.budlib.api.repository.*;
 import com.budlib.api.response.*;
+import com.budlib.api.service.*;
+import com.budlib.api.util.Isbn;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.bind.annotation.*;
+import javax.transaction.Transactional;
 
 /**
  * Controller for books
  */
-@CrossOrigin
+@CrossOrigin(exposedHeaders = { Paging.TOTAL_COUNT_HEADER, KeysetCursor.NEXT_CURSOR_HEADER })
 @RestController
 @RequestMapping("api/books")
 public class BookController {
+    /**
+     * Properties of the book that the clients can sort on
+     */
+    private static final Set<String> BOOK_SORTABLE = Set.of("bookId", "title", "subtitle", "authors", "publisher",
+            "year", "language", "librarySection", "totalQuantity", "availableQuantity");
+
+    /**
+     * Sort order when the client does not ask for one
+     */
+    private static final Sort BOOK_DEFAULT_SORT = Sort.by("bookId");
+
+    /**
+     * Most book ids sent to the database in one query
+     */
+    private static final int ID_CHUNK_SIZE = 1000;
+
     @Autowired
     private BookRepository bookRepository;
 
     @Autowired
     private TagRepository tagRepository;
 
+    @Autowired
+    private BookSearchIndex bookSearchIndex;
+
+    @Autowired
+    private TagBookIndex tagBookIndex;
+
+    @Autowired
+    private BookSuggestionIndex bookSuggestionIndex;
+
+    @Autowired
+    private CirculationJournal circulationJournal;
+
+    @Autowired
+    private LibraryCounters libraryCounters;
+
+    @Value("${budlib.suggest.top-k}")
+    private int maxSuggestions;
+
+    @Value("${budlib.search.fuzzy.max-edits}")
+    private int defaultMaxEdits;
+
     /**
      * Search the books by id
      *
@@ -47,170 +101,111 @@ public class BookController {
     }
 
     /**
-     * Search the books by their title or subtitle
+     * Convert a slice of the bitmap of book ids into a list
      *
-     * @param allBooks list of all books
-     * @param sT       search term
-     * @return filtered list of book with title or subtitle meeting the search term
+     * @param bitmap book ids
+     * @param offset number of ids to skip
+     * @param limit  most ids to return
+     * @return list of book ids in ascending order
      */
-    private List<Book> searchBookByTitleOrSubtitle(List<Book> allBooks, String sT) {
-        String searchTerm = sT.toLowerCase();
-        List<Book> searchResults = new ArrayList<>();
+    private static List<Long> toIdList(Roaring64NavigableMap bitmap, long offset, long limit) {
+        List<Long> ids = new ArrayList<>();
+        LongIterator iterator = bitmap.getLongIterator();
 
-        for (Book eachBook : allBooks) {
-            if (eachBook.getTitle() != null && eachBook.getTitle().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachBook);
-            }
-
-            else if (eachBook.getSubtitle() != null && eachBook.getSubtitle().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachBook);
-            }
+        for (long skipped = 0; skipped < offset && iterator.hasNext(); skipped++) {
+            iterator.next();
         }
 
-        return searchResults;
-    }
-
-    /**
-     * Search the books by their authors
-     *
-     * @param allBooks list of all books
-     * @param sT       search term
-     * @return filtered list of book with authors meeting the search term
-     */
-    private List<Book> searchBookByAuthor(List<Book> allBooks, String sT) {
-        String searchTerm = sT.toLowerCase();
-        List<Book> searchResults = new ArrayList<>();
-
-        for (Book eachBook : allBooks) {
-            if (eachBook.getAuthors() != null && eachBook.getAuthors().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachBook);
-            }
+        while (ids.size() < limit && iterator.hasNext()) {
+            ids.add(iterator.next());
         }
 
-        return searchResults;
+        return ids;
     }
 
     /**
-     * Search the books by their publisher
+     * Fetch the books while keeping the order of the ids
      *
-     * @param allBooks list of all books
-     * @param sT       search term
-     * @return filtered list of book with publisher meeting the search term
+     * @param ids book ids
+     * @return list of books
      */
-    private List<Book> searchBookByPublisher(List<Book> allBooks, String sT) {
-        String searchTerm = sT.toLowerCase();
-        List<Book> searchResults = new ArrayList<>();
+    private List<Book> findBooksInOrder(List<Long> ids) {
+        Map<Long, Book> booksById = new HashMap<>();
 
-        for (Book eachBook : allBooks) {
-            if (eachBook.getPublisher() != null && eachBook.getPublisher().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachBook);
+        // bounded IN lists, however many ids there are
+        for (int from = 0; from < ids.size(); from += ID_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + ID_CHUNK_SIZE, ids.size()));
+
+            for (Book eachBook : this.bookRepository.findAllById(chunk)) {
+                booksById.put(eachBook.getBookId(), eachBook);
             }
         }
 
-        return searchResults;
-    }
+        List<Book> books = new ArrayList<>();
 
-    /**
-     * Search the books by its ISBN
-     *
-     * @param allBooks list of all books
-     * @param sT       search term
-     * @return filtered list of book with ISBN meeting the search term
-     */
-    private List<Book> searchBookByIsbn(List<Book> allBooks, String sT) {
-        String searchTerm = sT.toLowerCase().replaceAll("[^a-zA-Z0-9]", "");
-        List<Book> searchResults = new ArrayList<>();
-
-        for (Book eachBook : allBooks) {
-            if (searchTerm.length() == 10 && eachBook.getIsbn_10() != null
-                    && eachBook.getIsbn_10().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachBook);
-            }
+        for (Long eachId : ids) {
+            Book b = booksById.get(eachId);
 
-            else if (searchTerm.length() == 13 && eachBook.getIsbn_13() != null
-                    && eachBook.getIsbn_13().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachBook);
+            if (b != null) {
+                books.add(b);
             }
         }
 
-        return searchResults;
+        return books;
     }
 
     /**
-     * Search the books by its placement in the library
+     * Build the database search criteria for the books
      *
-     * @param allBooks list of all books
-     * @param sT       search term
-     * @return filtered list of book with librarySection meeting the search term
+     * @param searchBy where to search
+     * @param sT       what to search
+     * @return criteria for the search; null if all books are to be fetched
      */
-    private List<Book> searchBookByLibrarySection(List<Book> allBooks, String sT) {
-        String searchTerm = sT.toLowerCase();
-        List<Book> searchResults = new ArrayList<>();
-
-        try {
-            for (Book eachBook : allBooks) {
-                if (eachBook.getLibrarySection() != null
-                        && eachBook.getLibrarySection().toString().toLowerCase().contains(searchTerm)) {
-                    searchResults.add(eachBook);
-                }
-            }
-
-            return searchResults;
+    private Specification<Book> buildSearchSpecification(String searchBy, String sT) {
+        if (searchBy == null || sT == null) {
+            return null;
         }
 
-        catch (IllegalArgumentException e) {
-            return searchResults;
+        else if (searchBy.equals("") || sT.equals("")) {
+            return null;
         }
-    }
 
-    /**
-     * Search the books by their tags
-     *
-     * @param allBooks list of all books
-     * @param sT       search term
-     * @return filtered list of book with tags meeting the search term
-     */
-    private List<Book> searchBookByTag(List<Book> allBooks, String sT) {
-        String searchTerm = sT.toLowerCase();
-        List<Book> searchResults = new ArrayList<>();
+        else if (searchBy.equalsIgnoreCase("id")) {
+            return BookSpecifications.hasId(Long.parseLong(sT));
+        }
 
-        for (Book eachBook : allBooks) {
-            Iterator<Tag> tagIterator = eachBook.getTags().iterator();
+        else if (searchBy.equalsIgnoreCase("title")) {
+            return BookSpecifications.titleOrSubtitleContains(sT);
+        }
 
-            while (tagIterator.hasNext()) {
-                Tag checkTag = tagIterator.next();
+        else if (searchBy.equalsIgnoreCase("author")) {
+            return BookSpecifications.authorContains(sT);
+        }
 
-                if (checkTag != null && checkTag.getTagName().toLowerCase().contains(searchTerm)) {
-                    searchResults.add(eachBook);
+        else if (searchBy.equalsIgnoreCase("publisher")) {
+            return BookSpecifications.publisherContains(sT);
+        }
 
-                    // break from while loop as we dont want to check all tags if one already
-                    // matched
-                    break;
-                }
-            }
+        else if (searchBy.equalsIgnoreCase("isbn")) {
+            return BookSpecifications.isbnMatches(sT);
         }
 
-        return searchResults;
-    }
+        else if (searchBy.equalsIgnoreCase("librarysection")) {
+            return BookSpecifications.librarySectionContains(sT);
+        }
 
-    /**
-     * Search the books by its language
-     *
-     * @param allBooks list of all books
-     * @param sT       search term
-     * @return filtered list of book with its language meeting the search term
-     */
-    private List<Book> searchBookByLanguage(List<Book> allBooks, String sT) {
-        String searchTerm = sT.toLowerCase();
-        List<Book> searchResults = new ArrayList<>();
+        else if (searchBy.equalsIgnoreCase("tags")) {
+            // the tag names are matched in memory, the books are joined in the database
+            return BookSpecifications.hasAnyTag(this.tagBookIndex.findTagIdsByName(sT));
+        }
 
-        for (Book eachBook : allBooks) {
-            if (eachBook.getLanguage() != null && eachBook.getLanguage().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachBook);
-            }
+        else if (searchBy.equalsIgnoreCase("language")) {
+            return BookSpecifications.languageContains(sT);
         }
 
-        return searchResults;
+        else {
+            return null;
+        }
     }
 
     /**
@@ -233,6 +228,33 @@ public class BookController {
         }
     }
 
+    /**
+     * Endpoint for GET - fetch book by its ISBN 10 or ISBN 13
+     *
+     * @param isbn ISBN 10 or ISBN 13, with or without separators
+     * @return book
+     */
+    @GetMapping(path = "isbn/{isbn}")
+    public ResponseEntity<?> getBookByIsbn(@PathVariable("isbn") String isbn) {
+        Long isbnKey = Isbn.toIsbn13Key(isbn);
+
+        if (isbnKey == null) {
+            String message = "Invalid ISBN";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
+        Optional<Book> bookOptional = this.bookRepository.findByIsbnKey(isbnKey);
+
+        if (bookOptional.isPresent()) {
+            return ResponseEntity.status(HttpStatus.OK).body(bookOptional.get());
+        }
+
+        else {
+            String message = "Book not found";
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(new ErrorBody(HttpStatus.NOT_FOUND, message));
+        }
+    }
+
     /**
      * Endpoint for GET - fetch tags of a book by id
      *
@@ -275,73 +297,265 @@ public class BookController {
     }
 
     /**
-     * Endpoint for GET - search and fetch all books meeting search criteria
+     * Endpoint for GET - search and fetch all books meeting search criteria. The
+     * search runs in the database, and if page or size is supplied, only that
+     * page of books is fetched. The total count of matching books is returned in
+     * the X-Total-Count header.
      *
      * @param searchBy   where to search
      * @param searchTerm what to search
+     * @param page       zero based page number
+     * @param size       number of books in the page
+     * @param sort       property to sort on, optionally followed by ",asc" or
+     *                   ",desc"
+     * @param cursor     cursor returned in the X-Next-Cursor header of the
+     *                   previous page, when fetching the books page by page in
+     *                   order of id
+     * @param limit      number of books in the page, when fetching the books page
+     *                   by page in order of id
      * @return list of books meeting search criteria
      */
     @GetMapping()
     public ResponseEntity<?> searchBook(@RequestParam(name = "searchBy", required = false) String searchBy,
-            @RequestParam(name = "searchTerm", required = false) String searchTerm) {
+            @RequestParam(name = "searchTerm", required = false) String searchTerm,
+            @RequestParam(name = "page", required = false) Integer page,
+            @RequestParam(name = "size", required = false) Integer size,
+            @RequestParam(name = "sort", required = false) String sort,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "limit", required = false) Integer limit) {
 
-        List<Book> allBooks = this.bookRepository.findAll();
+        Specification<Book> spec;
 
         try {
-            if (searchBy == null || searchTerm == null) {
-                return ResponseEntity.status(HttpStatus.OK).body(allBooks);
-            }
+            spec = this.buildSearchSpecification(searchBy, searchTerm);
+        }
 
-            else if (searchBy.equals("") || searchTerm.equals("")) {
-                return ResponseEntity.status(HttpStatus.OK).body(allBooks);
-            }
+        catch (Exception e) {
+            // invalid search criteria fetches all the books
+            spec = null;
+        }
 
-            else if (searchBy.equalsIgnoreCase("id")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchBookById(Long.valueOf(searchTerm)));
-            }
+        boolean isListing = spec == null;
 
-            else if (searchBy.equalsIgnoreCase("title")) {
-                return ResponseEntity.status(HttpStatus.OK)
-                        .body(this.searchBookByTitleOrSubtitle(allBooks, searchTerm));
-            }
+        // served page by page after the cursor, listing or searching
+        if (KeysetCursor.isRequested(cursor, limit)) {
+            try {
+                long afterId = KeysetCursor.decode(cursor);
+                List<Book> rows;
 
-            else if (searchBy.equalsIgnoreCase("author")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchBookByAuthor(allBooks, searchTerm));
-            }
+                if (isListing) {
+                    rows = this.bookRepository.findByBookIdGreaterThan(afterId,
+                            KeysetCursor.toPageable(limit, "bookId"));
+                }
 
-            else if (searchBy.equalsIgnoreCase("publisher")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchBookByPublisher(allBooks, searchTerm));
-            }
+                else {
+                    rows = this.bookRepository.findAll(spec.and(BookSpecifications.idGreaterThan(afterId)),
+                            KeysetCursor.toPageable(limit, "bookId")).getContent();
+                }
 
-            else if (searchBy.equalsIgnoreCase("isbn")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchBookByIsbn(allBooks, searchTerm));
+                return KeysetCursor.respond(rows, limit, Book::getBookId);
             }
 
-            else if (searchBy.equalsIgnoreCase("librarysection")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchBookByLibrarySection(allBooks, searchTerm));
+            catch (IllegalArgumentException e) {
+                String message = "Invalid cursor";
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
             }
+        }
 
-            else if (searchBy.equalsIgnoreCase("tags")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchBookByTag(allBooks, searchTerm));
-            }
+        if (Paging.isPaged(page, size)) {
+            Pageable pageable = Paging.toPageable(page, size, sort, BOOK_SORTABLE, BOOK_DEFAULT_SORT);
+            Page<Book> result = this.bookRepository.findAll(spec, pageable);
 
-            else if (searchBy.equalsIgnoreCase("language")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchBookByLanguage(allBooks, searchTerm));
-            }
+            return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(result))
+                    .body(result.getContent());
+        }
 
-            else {
-                // String message = "Invalid book search operation";
-                // return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                // .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                return ResponseEntity.status(HttpStatus.OK).body(allBooks);
+        else {
+            List<Book> result = this.bookRepository.findAll(spec,
+                    Paging.toSort(sort, BOOK_SORTABLE, BOOK_DEFAULT_SORT));
+
+            return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(result.size()))
+                    .body(result);
+        }
+    }
+
+    /**
+     * Endpoint for GET - search books by several criteria at once. All supplied
+     * criteria must match, and the search runs as a single query in the database.
+     * The total count of matching books is returned in the X-Total-Count header.
+     *
+     * @param title          text in the title or subtitle
+     * @param author         text in the authors
+     * @param publisher      text in the publisher
+     * @param language       language of the book
+     * @param librarySection text in the name of the library section
+     * @param tag            text in the name of any tag of the book
+     * @param minAvailable   minimum number of available copies
+     * @param page           zero based page number
+     * @param size           number of books in the page
+     * @param sort           property to sort on, optionally followed by ",asc"
+     *                       or ",desc"
+     * @return list of books meeting all the criteria
+     */
+    @GetMapping(path = "query")
+    public ResponseEntity<?> queryBooks(@RequestParam(name = "title", required = false) String title,
+            @RequestParam(name = "author", required = false) String author,
+            @RequestParam(name = "publisher", required = false) String publisher,
+            @RequestParam(name = "language", required = false) String language,
+            @RequestParam(name = "librarySection", required = false) String librarySection,
+            @RequestParam(name = "tag", required = false) String tag,
+            @RequestParam(name = "minAvailable", required = false) Integer minAvailable,
+            @RequestParam(name = "page", required = false) Integer page,
+            @RequestParam(name = "size", required = false) Integer size,
+            @RequestParam(name = "sort", required = false) String sort) {
+
+        Specification<Book> spec = Specification.where(null);
+
+        if (title != null && !title.equals("")) {
+            spec = spec.and(BookSpecifications.titleOrSubtitleContains(title));
+        }
+
+        if (author != null && !author.equals("")) {
+            spec = spec.and(BookSpecifications.authorContains(author));
+        }
+
+        if (publisher != null && !publisher.equals("")) {
+            spec = spec.and(BookSpecifications.publisherContains(publisher));
+        }
+
+        if (language != null && !language.equals("")) {
+            spec = spec.and(BookSpecifications.languageEquals(language));
+        }
+
+        if (librarySection != null && !librarySection.equals("")) {
+            spec = spec.and(BookSpecifications.librarySectionContains(librarySection));
+        }
+
+        if (tag != null && !tag.equals("")) {
+            spec = spec.and(BookSpecifications.tagNameContains(tag));
+        }
+
+        if (minAvailable != null) {
+            spec = spec.and(BookSpecifications.availableAtLeast(minAvailable));
+        }
+
+        Pageable pageable = Paging.toPageable(page, size, sort, BOOK_SORTABLE, BOOK_DEFAULT_SORT);
+        Page<Book> result = this.bookRepository.findAll(spec, pageable);
+
+        return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(result))
+                .body(result.getContent());
+    }
+
+    /**
+     * Endpoint for GET - fetch books by a combination of tags, served from the
+     * tag index. The total count of matching books is returned in the
+     * X-Total-Count header.
+     *
+     * @param allTagIds ids of tags that the book must all have
+     * @param anyTagIds ids of tags out of which the book must have at least one
+     * @param page      zero based page number
+     * @param size      number of books in the page
+     * @return list of books ordered by id
+     */
+    @GetMapping(path = "tagged")
+    public ResponseEntity<?> searchBookByTags(@RequestParam(name = "all", required = false) List<Long> allTagIds,
+            @RequestParam(name = "any", required = false) List<Long> anyTagIds,
+            @RequestParam(name = "page", required = false) Integer page,
+            @RequestParam(name = "size", required = false) Integer size) {
+
+        boolean hasAll = allTagIds != null && !allTagIds.isEmpty();
+        boolean hasAny = anyTagIds != null && !anyTagIds.isEmpty();
+
+        if (!hasAll && !hasAny) {
+            String message = "No tags specified";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
+        Roaring64NavigableMap matching;
+
+        if (hasAll && hasAny) {
+            matching = this.tagBookIndex.booksWithAllTags(allTagIds);
+            matching.and(this.tagBookIndex.booksWithAnyTag(anyTagIds));
+        }
+
+        else if (hasAll) {
+            matching = this.tagBookIndex.booksWithAllTags(allTagIds);
+        }
+
+        else {
+            matching = this.tagBookIndex.booksWithAnyTag(anyTagIds);
+        }
+
+        List<Long> matchingIds;
+
+        // only the ids of the page are sent to the database
+        if (Paging.isPaged(page, size)) {
+            Pageable pageable = Paging.toPageable(page, size, null, BOOK_SORTABLE, BOOK_DEFAULT_SORT);
+            matchingIds = toIdList(matching, pageable.getOffset(), pageable.getPageSize());
+        }
+
+        else {
+            matchingIds = toIdList(matching, 0, Long.MAX_VALUE);
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(matching.getLongCardinality()))
+                .body(this.findBooksInOrder(matchingIds));
+    }
+
+    /**
+     * Endpoint for GET - full-text search of books by title, subtitle, authors,
+     * publisher, language and tags. Words are matched as prefixes, and the
+     * results are ranked by relevance. A fuzzy search also matches misspelled
+     * words.
+     *
+     * @param query    free text to search
+     * @param limit    maximum number of books to return
+     * @param fuzzy    whether to tolerate misspellings
+     * @param maxEdits maximum number of edits per word in a fuzzy search
+     * @return list of matching books, best match first
+     */
+    @GetMapping(path = "search")
+    public ResponseEntity<?> fullTextSearch(@RequestParam(name = "q") String query,
+            @RequestParam(name = "limit", required = false, defaultValue = "20") int limit,
+            @RequestParam(name = "fuzzy", required = false, defaultValue = "false") boolean fuzzy,
+            @RequestParam(name = "maxEdits", required = false) Integer maxEdits) {
+
+        try {
+            int boundedLimit = Math.max(1, Math.min(limit, Paging.MAX_PAGE_SIZE));
+            int edits = 0;
+
+            if (fuzzy) {
+                edits = (maxEdits == null || maxEdits < 0) ? this.defaultMaxEdits : maxEdits;
             }
+
+            return ResponseEntity.status(HttpStatus.OK)
+                    .body(this.bookSearchIndex.search(query, boundedLimit, edits));
         }
 
-        catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.OK).body(allBooks);
+        catch (IOException e) {
+            String message = "Error while searching books";
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorBody(HttpStatus.INTERNAL_SERVER_ERROR, message));
         }
     }
 
+    /**
+     * Endpoint for GET - autocomplete suggestions of titles, authors and tags
+     * starting with the typed text, ranked by the number of copies borrowed
+     *
+     * @param prefix text typed so far
+     * @param limit  maximum number of suggestions
+     * @return list of suggestions, most borrowed first
+     */
+    @GetMapping(path = "suggest")
+    public ResponseEntity<?> suggest(@RequestParam(name = "prefix") String prefix,
+            @RequestParam(name = "limit", required = false) Integer limit) {
+
+        int boundedLimit = (limit == null || limit < 1) ? this.maxSuggestions : Math.min(limit, this.maxSuggestions);
+        return ResponseEntity.status(HttpStatus.OK).body(this.bookSuggestionIndex.suggest(prefix, boundedLimit));
+    }
+
     /**
      * Saves and returns and tag of the book, while handling duplicates
      *
@@ -363,6 +577,75 @@ public class BookController {
         return this.tagRepository.save(t);
     }
 
+    /**
+     * Check if another book already has the same ISBN
+     *
+     * @param b book to be added or updated
+     * @return true if unique, false otherwise
+     */
+    private boolean checkIsbnUniqueness(Book b) {
+        if (b.getIsbnKey() == null) {
+            return true;
+        }
+
+        Optional<Book> bookOptional = this.bookRepository.findByIsbnKey(b.getIsbnKey());
+        return bookOptional.isEmpty() || bookOptional.get().getBookId() == b.getBookId();
+    }
+
+    /**
+     * Find which ISBN keys of the books are already taken, one query per chunk of
+     * keys rather than one per book
+     *
+     * @param books books to be imported
+     * @return ISBN keys already in the database
+     */
+    private Set<Long> findExistingIsbnKeys(List<Book> books) {
+        List<Long> isbnKeys = new ArrayList<>();
+
+        for (Book eachBook : books) {
+            if (eachBook.getIsbnKey() != null) {
+                isbnKeys.add(eachBook.getIsbnKey());
+            }
+        }
+
+        Set<Long> existingIsbnKeys = new HashSet<>();
+
+        for (int from = 0; from < isbnKeys.size(); from += ID_CHUNK_SIZE) {
+            List<Long> chunk = isbnKeys.subList(from, Math.min(from + ID_CHUNK_SIZE, isbnKeys.size()));
+            existingIsbnKeys.addAll(this.bookRepository.findExistingIsbnKeys(chunk));
+        }
+
+        return existingIsbnKeys;
+    }
+
+    /**
+     * Put the saved books in the search, tag and suggestion indexes once the
+     * database transaction is committed, so that the indexes never hold books
+     * whose save was rolled back
+     *
+     * @param savedBooks books saved in the database transaction
+     */
+    private void indexAfterCommit(List<Book> savedBooks) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    index(savedBooks);
+                }
+            });
+        }
+
+        else {
+            this.index(savedBooks);
+        }
+    }
+
+    private void index(List<Book> savedBooks) {
+        this.bookSearchIndex.index(savedBooks);
+        this.tagBookIndex.putBooks(savedBooks);
+        this.bookSuggestionIndex.putBooks(savedBooks);
+    }
+
     /**
      * Endpoint for POST - save the book in db
      *
@@ -370,6 +653,7 @@ public class BookController {
      * @return the message
      */
     @PostMapping
+    @Transactional
     public ResponseEntity<?> addBook(@RequestBody Book b) {
         // reset the id to 0 to prevent overwrite
         b.setBookId(0L);
@@ -379,6 +663,11 @@ public class BookController {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
         }
 
+        if (!this.checkIsbnUniqueness(b)) {
+            String message = "Book with the same ISBN already exists";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
         if (b.getLibrarySection() == null) {
             b.setLibrarySection(LibrarySection.CHILDREN_LIBRARY);
         }
@@ -392,7 +681,10 @@ public class BookController {
         }
 
         b.setTags(uniqueTagList);
-        this.bookRepository.save(b);
+        Book savedBook = this.bookRepository.save(b);
+        this.circulationJournal.recordAdjustment(savedBook.getBookId(), savedBook.getAvailableQuantity());
+        this.libraryCounters.adjust(1, savedBook.getTotalQuantity(), 0, 0);
+        this.indexAfterCommit(List.of(savedBook));
 
         String message = "Book added successfully";
         return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
@@ -405,10 +697,15 @@ public class BookController {
      * @return the message
      */
     @PostMapping(path = "import")
+    @Transactional
     public ResponseEntity<?> importBooks(@RequestBody List<Book> bookList) {
         boolean flag = false;
         int countNotImported = 0;
         int countImported = 0;
+        List<Book> savedBooks = new ArrayList<>();
+        Set<Long> takenIsbnKeys = this.findExistingIsbnKeys(bookList);
+        Map<Long, Integer> adjustments = new LinkedHashMap<>();
+        long importedCopies = 0;
 
         for (Book eachBook : bookList) {
             // reset the id to 0 to prevent overwrite
@@ -423,12 +720,26 @@ public class BookController {
                 countNotImported++;
             }
 
+            // duplicate ISBN, either in the database or earlier in the same import
+            else if (eachBook.getIsbnKey() != null && !takenIsbnKeys.add(eachBook.getIsbnKey())) {
+                flag = true;
+                countNotImported++;
+            }
+
             else {
-                this.bookRepository.save(eachBook);
+                Book savedBook = this.bookRepository.save(eachBook);
+                adjustments.put(savedBook.getBookId(), savedBook.getAvailableQuantity());
+                importedCopies += savedBook.getTotalQuantity();
+                savedBooks.add(savedBook);
                 countImported++;
             }
         }
 
+        // after the books, so that their inserts are batched
+        this.circulationJournal.recordAdjustments(adjustments);
+        this.libraryCounters.adjust(countImported, importedCopies, 0, 0);
+        this.indexAfterCommit(savedBooks);
+
         String message = String.format("%d books imported successfully.", countImported);
 
         if (flag) {
@@ -464,6 +775,7 @@ public class BookController {
      * @return the message
      */
     @PutMapping(path = "{bookId}")
+    @Transactional
     public ResponseEntity<?> updateBook(@RequestBody Book b, @PathVariable("bookId") Long bookId) {
         Optional<Book> bookOptional = this.bookRepository.findById(bookId);
 
@@ -473,6 +785,8 @@ public class BookController {
             int totalQty = b.getTotalQuantity();
             int availableQty = b.getAvailableQuantity();
             int loanQty = this.getLoanCountOfBook(bookOptional.get());
+            int previousAvailableQty = bookOptional.get().getAvailableQuantity();
+            int previousTotalQty = bookOptional.get().getTotalQuantity();
 
             if (totalQty != availableQty + loanQty) {
                 String message = String.format(
@@ -482,6 +796,12 @@ public class BookController {
                         .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
             }
 
+            if (!this.checkIsbnUniqueness(b)) {
+                String message = "Book with the same ISBN already exists";
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+            }
+
             if (b.getLibrarySection() == null) {
                 b.setLibrarySection(LibrarySection.CHILDREN_LIBRARY);
             }
@@ -495,7 +815,10 @@ public class BookController {
             }
 
             b.setTags(uniqueTagList);
-            this.bookRepository.save(b);
+            Book savedBook = this.bookRepository.save(b);
+            this.circulationJournal.recordAdjustment(bookId, availableQty - previousAvailableQty);
+            this.libraryCounters.adjust(0, totalQty - previousTotalQty, 0, 0);
+            this.indexAfterCommit(List.of(savedBook));
 
             String message = "Book updated successfully";
             return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
@@ -528,7 +851,14 @@ public class BookController {
                         .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
             }
 
+            int totalQty = toBeDeleted.getTotalQuantity();
+
             this.bookRepository.deleteById(bookId);
+            this.libraryCounters.adjust(-1, -totalQty, 0, 0);
+            this.bookSearchIndex.remove(bookId);
+            this.tagBookIndex.removeBook(bookId);
+            this.bookSuggestionIndex.removeBook(bookId);
+
             String message = "Book deleted successfully";
             return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
         }
@@ -1,116 +1,273 @@
 package com.budlib.api.controller;
 
+import com.budlib.api.enums.*;
 import com.budlib.api.model.*;
 import com.budlib.api.repository.*;
 import com.budlib.api.response.*;
+import com.budlib.api.service.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
+import java.time.format.DateTimeParseException;
 import org.apache.commons.csv.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.core.io.ByteArrayResource;
 
 /**
  * Controller for dashboard
  */
-@CrossOrigin
+@CrossOrigin(exposedHeaders = { Paging.TOTAL_COUNT_HEADER })
 @RestController
 @RequestMapping("api/dashboard")
 public class DashboardController {
-    @Autowired
-    private BookRepository bookRepository;
+    /**
+     * Loan properties which the overdue and upcoming due lists can be sorted on
+     */
+    private static final Set<String> LOAN_SORTABLE = Set.of("loanId", "dueDate", "borrowDate", "copies");
+
+    /**
+     * Order of the overdue and upcoming due lists - earliest due first
+     */
+    private static final Sort LOAN_DEFAULT_SORT = Sort.by("dueDate", "loanId");
+
+    /**
+     * Most loan ids sent to the database in one query
+     */
+    private static final int ID_CHUNK_SIZE = 1000;
 
     @Autowired
     private LoanRepository loanRepository;
 
     @Autowired
-    private LoanerRepository loanerRepository;
+    private LibraryCounters libraryCounters;
+
+    @Autowired
+    private LoanDueIndex loanDueIndex;
+
+    @Autowired
+    private CirculationAnalytics circulationAnalytics;
+
+    @Autowired
+    private CsvExports csvExports;
 
     @Autowired
-    private TransactionRepository transactionRepository;
+    private BackupArchive backupArchive;
 
     /**
-     * Computes and returns basic statistics on the count of books, loans, and
-     * loaners
+     * Returns basic statistics on the count of books, loans, and loaners, from the
+     * counters kept up to date by the write paths
      *
      * @return basic statistics
      */
     @GetMapping(path = "stats")
     public ResponseEntity<?> getStats() {
-        Stats currentStats = new Stats();
+        return ResponseEntity.status(HttpStatus.OK).body(this.libraryCounters.getStats());
+    }
 
-        currentStats.setUniqueTitles(this.bookRepository.count());
-        currentStats.setTotalLoaners(this.loanerRepository.count());
+    /**
+     * Fetch the loans in the order of their ids
+     *
+     * @param loanIds loan ids
+     * @return loans which still exist, in the same order
+     */
+    private List<Loan> findLoansInOrder(List<Long> loanIds) {
+        Map<Long, Loan> loansById = new HashMap<>();
 
-        long countTotalCopies = 0;
-        List<Book> allBooks = this.bookRepository.findAll();
+        // bounded IN lists, however many loans are due
+        for (int from = 0; from < loanIds.size(); from += ID_CHUNK_SIZE) {
+            List<Long> chunk = loanIds.subList(from, Math.min(from + ID_CHUNK_SIZE, loanIds.size()));
 
-        for (Book eachBook : allBooks) {
-            countTotalCopies = countTotalCopies + (long) eachBook.getTotalQuantity();
+            for (Loan eachLoan : this.loanRepository.findAllById(chunk)) {
+                loansById.put(eachLoan.getLoanId(), eachLoan);
+            }
         }
 
-        currentStats.setTotalCopies(countTotalCopies);
+        List<Loan> loans = new ArrayList<>();
 
-        long countTotalOutstandingCopies = 0;
-        List<Loan> allLoans = this.loanRepository.findAll();
+        for (Long eachLoanId : loanIds) {
+            Loan eachLoan = loansById.get(eachLoanId);
 
-        for (Loan eachLoan : allLoans) {
-            countTotalOutstandingCopies = countTotalOutstandingCopies + (long) eachLoan.getCopies();
+            if (eachLoan != null) {
+                loans.add(eachLoan);
+            }
         }
 
-        currentStats.setTotalOutstandingCopies(countTotalOutstandingCopies);
-
-        return ResponseEntity.status(HttpStatus.OK).body(currentStats);
+        return loans;
     }
 
     /**
-     * Get the list of overdue loans
+     * Get the list of overdue loans. The total count of overdue loans is returned
+     * in the X-Total-Count header.
      *
+     * @param page zero based page number
+     * @param size number of loans in the page
+     * @param sort property to sort on, optionally followed by ",asc" or ",desc";
+     *             loans are ordered by due date by default
      * @return list of loans that are overdue
      */
     @GetMapping(path = "overdue")
-    public ResponseEntity<?> getOverdueList() {
-        List<Loan> allLoans = this.loanRepository.findAll();
+    public ResponseEntity<?> getOverdueList(@RequestParam(name = "page", required = false) Integer page,
+            @RequestParam(name = "size", required = false) Integer size,
+            @RequestParam(name = "sort", required = false) String sort) {
 
-        List<Loan> overdueLoans = new ArrayList<>();
         LocalDate dateNow = LocalDate.now();
 
-        for (Loan eachLoan : allLoans) {
-            if (eachLoan.getDueDate().isBefore(dateNow)) {
-                overdueLoans.add(eachLoan);
-            }
+        if (Paging.isPaged(page, size)) {
+            Pageable pageable = Paging.toPageable(page, size, sort, LOAN_SORTABLE, LOAN_DEFAULT_SORT);
+            Page<Loan> result = this.loanRepository.findByDueDateBefore(dateNow, pageable);
+
+            return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(result))
+                    .body(result.getContent());
+        }
+
+        List<Loan> overdueLoans;
+
+        if (sort != null && !sort.equals("")) {
+            overdueLoans = this.loanRepository.findByDueDateBefore(dateNow,
+                    Paging.toSort(sort, LOAN_SORTABLE, LOAN_DEFAULT_SORT));
         }
 
-        return ResponseEntity.status(HttpStatus.OK).body(overdueLoans);
+        else {
+            overdueLoans = this.findLoansInOrder(this.loanDueIndex.findDueBefore(dateNow));
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(overdueLoans.size()))
+                .body(overdueLoans);
     }
 
     /**
-     * Get the list of loans that are due today or in next week
+     * Get the list of loans that are due today or in the next days. The total
+     * count of such loans is returned in the X-Total-Count header.
      *
-     * @return list of upcoming loans today or in the next week
+     * @param days number of days to look ahead, a week by default
+     * @param page zero based page number
+     * @param size number of loans in the page
+     * @param sort property to sort on, optionally followed by ",asc" or ",desc";
+     *             loans are ordered by due date by default
+     * @return list of upcoming loans today or in the next days
      */
     @GetMapping(path = "upcomingdue")
-    public ResponseEntity<?> getUpcomingDueList() {
-        List<Loan> allLoans = this.loanRepository.findAll();
+    public ResponseEntity<?> getUpcomingDueList(@RequestParam(name = "days", defaultValue = "7") int days,
+            @RequestParam(name = "page", required = false) Integer page,
+            @RequestParam(name = "size", required = false) Integer size,
+            @RequestParam(name = "sort", required = false) String sort) {
+
+        if (days < 0) {
+            String message = "Number of days cannot be negative";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
 
-        List<Loan> upcomingDueLoans = new ArrayList<>();
         LocalDate dateNow = LocalDate.now();
+        LocalDate lastDate = dateNow.plusDays(days);
 
-        for (Loan eachLoan : allLoans) {
-            long deltaDays = ChronoUnit.DAYS.between(dateNow, eachLoan.getDueDate());
+        if (Paging.isPaged(page, size)) {
+            Pageable pageable = Paging.toPageable(page, size, sort, LOAN_SORTABLE, LOAN_DEFAULT_SORT);
+            Page<Loan> result = this.loanRepository.findByDueDateBetween(dateNow, lastDate, pageable);
 
-            if (deltaDays >= 0 && deltaDays <= 7) {
-                upcomingDueLoans.add(eachLoan);
-            }
+            return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(result))
+                    .body(result.getContent());
         }
 
-        return ResponseEntity.status(HttpStatus.OK).body(upcomingDueLoans);
+        List<Loan> upcomingDueLoans;
+
+        if (sort != null && !sort.equals("")) {
+            upcomingDueLoans = this.loanRepository.findByDueDateBetween(dateNow, lastDate,
+                    Paging.toSort(sort, LOAN_SORTABLE, LOAN_DEFAULT_SORT));
+        }
+
+        else {
+            upcomingDueLoans = this.findLoansInOrder(this.loanDueIndex.findDueBetween(dateNow, lastDate));
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(upcomingDueLoans.size()))
+                .body(upcomingDueLoans);
+    }
+
+    /**
+     * Endpoint for GET - borrow, return and extend counts of each day, week or
+     * term, in total and by library section, language and tag, along with the
+     * most borrowed books and the loaners who borrowed most. Served from the
+     * rollups in memory.
+     *
+     * @param from        first date as yyyyMMdd, 30 days before the last date by
+     *                    default
+     * @param to          last date as yyyyMMdd, today by default
+     * @param granularity day, week or term
+     * @param top         number of books and borrowers to rank
+     * @return the analytics
+     */
+    @GetMapping(path = "analytics")
+    public ResponseEntity<?> getAnalytics(@RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to,
+            @RequestParam(name = "granularity", defaultValue = "day") String granularity,
+            @RequestParam(name = "top", defaultValue = "10") int top) {
+
+        DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyyMMdd");
+        LocalDate toDate;
+        LocalDate fromDate;
+
+        try {
+            toDate = to == null ? LocalDate.now() : LocalDate.parse(to, dateFormat);
+            fromDate = from == null ? toDate.minusDays(30) : LocalDate.parse(from, dateFormat);
+        }
+
+        catch (DateTimeParseException e) {
+            String message = "Invalid date specified";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
+        if (fromDate.isAfter(toDate)) {
+            String message = "From date cannot be after to date";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
+        AnalyticsGranularity periodLength;
+
+        try {
+            periodLength = AnalyticsGranularity.valueOf(granularity.toUpperCase());
+        }
+
+        catch (IllegalArgumentException e) {
+            String message = "Granularity should be day, week or term";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
+        if (top < 0 || top > 100) {
+            String message = "Top should be between 0 and 100";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
+        return ResponseEntity.status(HttpStatus.OK)
+                .body(this.circulationAnalytics.report(fromDate, toDate, periodLength, top));
+    }
+
+    /**
+     * Endpoint for POST - rebuild the circulation rollups from the transactions.
+     * Circulation waits only while the rebuild takes its snapshot. The sections,
+     * languages and tags are taken from the books as they are now, so the history
+     * of a book moves with it if they have changed.
+     *
+     * @return the message
+     */
+    @PostMapping(path = "analytics/rebuild")
+    public ResponseEntity<?> rebuildAnalytics() {
+        int count = this.circulationAnalytics.rebuild();
+
+        String message = String.format("%d rollups rebuilt", count);
+        return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
     }
 
     /**
@@ -146,72 +303,42 @@ public class DashboardController {
         }
     }
 
+    /**
+     * Stream the export to the client as a CSV file. The length is not known in
+     * advance, so the response is sent with chunked transfer encoding.
+     *
+     * @param fileName name of the file to download
+     * @param export   export writing the CSV
+     * @return the CSV to download via API call
+     */
+    private ResponseEntity<StreamingResponseBody> csvDownloader(String fileName, CsvExports.Export export) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Cache-Control", "no-cache, no-store, must-revalidate");
+        headers.add("Pragma", "no-cache");
+        headers.add("Expires", "0");
+        headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+
+        StreamingResponseBody body = outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            export.writeTo(writer);
+            writer.flush();
+        };
+
+        return ResponseEntity
+                .status(HttpStatus.OK)
+                .headers(headers)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(body);
+    }
+
     /**
      * Export all the books in the database into CSV
      *
      * @return CSV containing snapshot of all the books in the database
      */
     @GetMapping(path = "batch/export/books")
-    public ResponseEntity<?> exportBooks() {
-        String[] bookHeaders = { "bookId", "title", "subtitle", "authors", "publisher", "edition",
-                "year", "language", "isbn10", "isbn13", "librarySection", "totalQuantity", "availableQuantity", "notes",
-                "imageLink", "retailPrice", "libraryPrice", "tags" };
-
-        List<Book> allBooks = this.bookRepository.findAll();
-
-        try {
-            Path tempPath = Files.createTempFile("budlib_books_export", ".csv");
-            File tempFile = tempPath.toFile();
-
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(tempFile, false)), true);
-            CSVPrinter printer = new CSVPrinter(pw, CSVFormat.DEFAULT.withHeader(bookHeaders));
-
-            for (Book eachBook : allBooks) {
-                String[] record = new String[bookHeaders.length];
-
-                record[0] = String.valueOf(eachBook.getBookId());
-                record[1] = eachBook.getTitle();
-                record[2] = eachBook.getSubtitle();
-                record[3] = eachBook.getAuthors();
-                record[4] = eachBook.getPublisher();
-                record[5] = eachBook.getEdition();
-                record[6] = eachBook.getYear();
-                record[7] = eachBook.getLanguage();
-                record[8] = eachBook.getIsbn_10();
-                record[9] = eachBook.getIsbn_13();
-                record[10] = eachBook.getLibrarySection().toString();
-                record[11] = String.valueOf(eachBook.getTotalQuantity());
-                record[12] = String.valueOf(eachBook.getAvailableQuantity());
-                record[13] = eachBook.getNotes();
-                record[14] = eachBook.getImageLink();
-                record[15] = String.valueOf(eachBook.getPriceRetail());
-                record[16] = String.valueOf(eachBook.getPriceLibrary());
-
-                List<Tag> tagList = eachBook.getTags();
-                StringBuilder sb = new StringBuilder();
-
-                for (Tag eachTag : tagList) {
-                    sb.append(String.format("%s, ", eachTag.getTagName()));
-                }
-
-                record[17] = sb.toString();
-
-                printer.printRecord(record[0], record[1], record[2], record[3], record[4], record[5], record[6],
-                        record[7], record[8], record[9], record[10], record[11], record[12], record[13], record[14],
-                        record[15], record[16], record[17]);
-            }
-
-            printer.close();
-            pw.close();
-
-            return fileDownloader(tempFile.getAbsolutePath());
-        }
-
-        catch (IOException e) {
-            String message = "Error while processing export request";
-            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
-                    .body(new ErrorBody(HttpStatus.GATEWAY_TIMEOUT, message));
-        }
+    public ResponseEntity<StreamingResponseBody> exportBooks() {
+        return this.csvDownloader("budlib_books_export.csv", this.csvExports::writeBooks);
     }
 
     /**
@@ -220,48 +347,8 @@ public class DashboardController {
      * @return CSV containing snapshot of all the loaners in the database
      */
     @GetMapping(path = "batch/export/loaners")
-    public ResponseEntity<?> exportLoaners() {
-        String[] loanerHeaders = { "loanerId", "schoolId", "isStudent", "email", "salutation", "first_name",
-                "middle_name", "last_name", "mother_name", "father_name" };
-
-        List<Loaner> allLoaners = this.loanerRepository.findAll();
-
-        try {
-            Path tempPath = Files.createTempFile("budlib_loaners_export", ".csv");
-            File tempFile = tempPath.toFile();
-
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(tempFile, false)), true);
-            CSVPrinter printer = new CSVPrinter(pw, CSVFormat.DEFAULT.withHeader(loanerHeaders));
-
-            for (Loaner eachLoaner : allLoaners) {
-                String[] record = new String[loanerHeaders.length];
-
-                record[0] = String.valueOf(eachLoaner.getLoanerId());
-                record[1] = eachLoaner.getSchoolId();
-                record[2] = String.valueOf(eachLoaner.isStudent());
-                record[3] = eachLoaner.getEmail();
-                record[4] = eachLoaner.getSalutation();
-                record[5] = eachLoaner.getFirstName();
-                record[6] = eachLoaner.getMiddleName();
-                record[7] = eachLoaner.getLastName();
-                record[8] = eachLoaner.getMotherName();
-                record[9] = eachLoaner.getFatherName();
-
-                printer.printRecord(record[0], record[1], record[2], record[3], record[4], record[5], record[6],
-                        record[7], record[8], record[9]);
-            }
-
-            printer.close();
-            pw.close();
-
-            return fileDownloader(tempFile.getAbsolutePath());
-        }
-
-        catch (IOException e) {
-            String message = "Error while processing export request";
-            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
-                    .body(new ErrorBody(HttpStatus.GATEWAY_TIMEOUT, message));
-        }
+    public ResponseEntity<StreamingResponseBody> exportLoaners() {
+        return this.csvDownloader("budlib_loaners_export.csv", this.csvExports::writeLoaners);
     }
 
     /**
@@ -270,53 +357,8 @@ public class DashboardController {
      * @return CSV containing snapshot of all the outstanding loans in the database
      */
     @GetMapping(path = "batch/export/loans")
-    public ResponseEntity<?> exportOutstandingLoans() {
-        String[] loanHeaders = { "loanId", "loanerId", "loanerSchoolId", "loanerEmail", "loanerFullName", "bookId",
-                "bookIsbn10", "bookIsbn13", "bookTitle", "loanedCopies", "borrowDate", "dueDate" };
-
-        List<Loan> allLoans = this.loanRepository.findAll();
-
-        try {
-            Path tempPath = Files.createTempFile("budlib_outstanding_loans_export", ".csv");
-            File tempFile = tempPath.toFile();
-
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(tempFile, false)), true);
-            CSVPrinter printer = new CSVPrinter(pw, CSVFormat.DEFAULT.withHeader(loanHeaders));
-
-            for (Loan eachLoan : allLoans) {
-                String[] record = new String[loanHeaders.length];
-
-                Loaner correspondingLoaner = eachLoan.getLoaner();
-                Book correspondingBook = eachLoan.getBook();
-
-                record[0] = String.valueOf(eachLoan.getLoanId());
-                record[1] = String.valueOf(correspondingLoaner.getLoanerId());
-                record[2] = correspondingLoaner.getSchoolId();
-                record[3] = correspondingLoaner.getEmail();
-                record[4] = correspondingLoaner.getFullNameWithSalutation();
-                record[5] = String.valueOf(correspondingBook.getBookId());
-                record[6] = correspondingBook.getIsbn_10();
-                record[7] = correspondingBook.getIsbn_13();
-                record[8] = correspondingBook.getTitle();
-                record[9] = String.valueOf(eachLoan.getCopies());
-                record[10] = eachLoan.getBorrowDate().toString();
-                record[11] = eachLoan.getDueDate().toString();
-
-                printer.printRecord(record[0], record[1], record[2], record[3], record[4], record[5], record[6],
-                        record[7], record[8], record[9], record[10], record[11]);
-            }
-
-            printer.close();
-            pw.close();
-
-            return fileDownloader(tempFile.getAbsolutePath());
-        }
-
-        catch (IOException e) {
-            String message = "Error while processing export request";
-            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
-                    .body(new ErrorBody(HttpStatus.GATEWAY_TIMEOUT, message));
-        }
+    public ResponseEntity<StreamingResponseBody> exportOutstandingLoans() {
+        return this.csvDownloader("budlib_outstanding_loans_export.csv", this.csvExports::writeLoans);
     }
 
     /**
@@ -325,84 +367,29 @@ public class DashboardController {
      * @return CSV containing snapshot of all the transactions in the database
      */
     @GetMapping(path = "batch/export/transactions")
-    public ResponseEntity<?> exportTransactions() {
-        String[] trnHeaders = { "trnId", "trnDateTime", "trnType", "facilitatorId", "facilitatorFullName",
-                "facilitatorEmail", "loanerId", "loanerSchoolId", "loanerFullName", "loanerEmail", "bookId",
-                "bookIsbn10", "bookIsbn13", "bookTitle", "loanedCopies" };
-
-        List<Transaction> allTrns = this.transactionRepository.findAll();
-
-        try {
-            Path tempPath = Files.createTempFile("budlib_transactions_export", ".csv");
-            File tempFile = tempPath.toFile();
-
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(tempFile, false)), true);
-            CSVPrinter printer = new CSVPrinter(pw, CSVFormat.DEFAULT.withHeader(trnHeaders));
-
-            for (Transaction eachTrn : allTrns) {
-                String[] record = new String[trnHeaders.length];
-
-                Librarian correspondingFacilitator = eachTrn.getLibrarian();
-                Loaner correspondingLoaner = eachTrn.getLoaner();
-                List<TrnQuantities> correspondingAllTrnQty = eachTrn.getBookCopies();
-                DateTimeFormatter formatter = DateTimeFormatter.ISO_INSTANT;
-
-                record[0] = String.valueOf(eachTrn.getTransactionId());
-                record[1] = eachTrn.getTransactionDateTime().format(formatter);
-                record[2] = eachTrn.getTransactionType().toString();
-
-                if (correspondingFacilitator == null) {
-                    record[3] = "<removed>";
-                    record[4] = "<removed>";
-                    record[5] = "<removed>";
-                }
-
-                else {
-                    record[3] = String.valueOf(correspondingFacilitator.getLibrarianId());
-                    record[4] = correspondingFacilitator.getFullName();
-                    record[5] = correspondingFacilitator.getEmail();
-                }
-
-                if (correspondingLoaner == null) {
-                    record[6] = "<removed>";
-                    record[7] = "<removed>";
-                    record[8] = "<removed>";
-                    record[9] = "<removed>";
-                }
-
-                else {
-                    record[6] = String.valueOf(correspondingLoaner.getLoanerId());
-                    record[7] = correspondingLoaner.getSchoolId();
-                    record[8] = correspondingLoaner.getFullNameWithSalutation();
-                    record[9] = correspondingLoaner.getEmail();
-                }
-
-                for (TrnQuantities eachTrnQty : correspondingAllTrnQty) {
-                    Book correspondingBook = eachTrnQty.getBook();
-
-                    record[10] = String.valueOf(correspondingBook.getBookId());
-                    record[11] = correspondingBook.getIsbn_10();
-                    record[12] = correspondingBook.getIsbn_13();
-                    record[13] = correspondingBook.getTitle();
-                    record[14] = String.valueOf(eachTrnQty.getCopies());
-
-                    printer.printRecord(record[0], record[1], record[2], record[3], record[4], record[5], record[6],
-                            record[7], record[8], record[9], record[10], record[11], record[12], record[13],
-                            record[14]);
-                }
-            }
-
-            printer.close();
-            pw.close();
-
-            return fileDownloader(tempFile.getAbsolutePath());
-        }
+    public ResponseEntity<StreamingResponseBody> exportTransactions() {
+        return this.csvDownloader("budlib_transactions_export.csv", this.csvExports::writeTransactions);
+    }
 
-        catch (IOException e) {
-            String message = "Error while processing export request";
-            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
-                    .body(new ErrorBody(HttpStatus.GATEWAY_TIMEOUT, message));
-        }
+    /**
+     * Export all the books, loaners, outstanding loans and transactions into one
+     * ZIP of CSV files, exporting the tables in parallel
+     *
+     * @return ZIP containing snapshot of all the exports
+     */
+    @GetMapping(path = "batch/export/all")
+    public ResponseEntity<StreamingResponseBody> exportAll() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Cache-Control", "no-cache, no-store, must-revalidate");
+        headers.add("Pragma", "no-cache");
+        headers.add("Expires", "0");
+        headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"budlib_backup_export.zip\"");
+
+        return ResponseEntity
+                .status(HttpStatus.OK)
+                .headers(headers)
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .body(this.backupArchive::writeTo);
     }
 
     /**
@@ -0,0 +1,128 @@
+package com.budlib.api.controller;
+
+import com.budlib.api.response.*;
+import com.budlib.api.service.*;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * Controller for the circulation journal
+ */
+@CrossOrigin
+@RestController
+@RequestMapping("api/journal")
+public class JournalController {
+    @Autowired
+    private CirculationJournal circulationJournal;
+
+    @Autowired
+    private LibraryCounters libraryCounters;
+
+    @Autowired
+    private LoanDueIndex loanDueIndex;
+
+    @Autowired
+    private CirculationPipeline circulationPipeline;
+
+    @Value("${budlib.journal.rebuild-wait-ms}")
+    private long rebuildWait;
+
+    /**
+     * Endpoint for GET - available copies of the book at the end of the date,
+     * replayed from the journal
+     *
+     * @param bookId book id
+     * @param date   date as yyyyMMdd
+     * @return available copies of the book
+     */
+    @GetMapping(path = "availability/{bookId}")
+    public ResponseEntity<?> getAvailabilityAt(@PathVariable("bookId") Long bookId,
+            @RequestParam(name = "date") String date) {
+
+        ZonedDateTime at;
+
+        try {
+            at = LocalDate.parse(date, DateTimeFormatter.ofPattern("yyyyMMdd")).plusDays(1)
+                    .atStartOfDay(ZoneId.systemDefault());
+        }
+
+        catch (DateTimeParseException e) {
+            String message = "Invalid date specified";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
+        Optional<Integer> availableQuantity = this.circulationJournal.availabilityAt(bookId, at);
+
+        if (availableQuantity.isEmpty()) {
+            String message = "The journal was started after the date specified";
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(new ErrorBody(HttpStatus.NOT_FOUND, message));
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).body(new BookAvailability(bookId, at, availableQuantity.get()));
+    }
+
+    /**
+     * Endpoint for POST - take a snapshot of the available copies now, in addition
+     * to the scheduled ones
+     *
+     * @return the message
+     */
+    @PostMapping(path = "snapshots")
+    public ResponseEntity<?> takeSnapshots() {
+        int count = this.circulationJournal.takeSnapshots();
+
+        String message = String.format("%d snapshots taken", count);
+        return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
+    }
+
+    /**
+     * Endpoint for POST - rebuild the available copies of all books and the loans
+     * of all loaners from the journal. Circulation is held back until the rebuild
+     * is committed; the request is rejected if the circulation in progress does
+     * not finish in time.
+     *
+     * @return number of books and loans corrected
+     */
+    @PostMapping(path = "rebuild")
+    public ResponseEntity<?> rebuild() {
+        JournalRebuildResult result;
+
+        try {
+            result = this.circulationPipeline.runExclusively(() -> {
+                JournalRebuildResult rebuilt = this.circulationJournal.rebuild();
+
+                // committed by now; the rebuilt loans have new ids and replace the
+                // outstanding copies and due dates known so far
+                this.loanDueIndex.reload();
+                this.libraryCounters.reconcile();
+
+                return rebuilt;
+            }, this.rebuildWait);
+        }
+
+        catch (TimeoutException e) {
+            String message = "Circulation is in progress, try again later";
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(new ErrorBody(HttpStatus.CONFLICT, message));
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            String message = "Interrupted while waiting for the circulation in progress";
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(new ErrorBody(HttpStatus.SERVICE_UNAVAILABLE, message));
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).body(result);
+    }
+}
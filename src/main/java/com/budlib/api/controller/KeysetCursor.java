@@ -0,0 +1,119 @@
+package com.budlib.api.controller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Keyset pagination for the listing endpoints. The client receives an opaque
+ * cursor with every page and sends it back to get the rows after it, so every
+ * page is fetched by a range scan on the primary key no matter how deep it is.
+ */
+public final class KeysetCursor {
+    /**
+     * Response header carrying the cursor of the next page; absent on the last
+     * page
+     */
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    private static final String VERSION_PREFIX = "k1:";
+
+    private KeysetCursor() {
+    }
+
+    /**
+     * Check if the client asked for a keyset page
+     *
+     * @param cursor cursor of the page
+     * @param limit  number of rows in the page
+     * @return true if either of cursor or limit is supplied
+     */
+    public static boolean isRequested(String cursor, Integer limit) {
+        return cursor != null || limit != null;
+    }
+
+    /**
+     * Encode the id of the last row of the page into a cursor
+     *
+     * @param lastId id of the last row sent to the client
+     * @return opaque cursor
+     */
+    public static String encode(long lastId) {
+        byte[] raw = (VERSION_PREFIX + lastId).getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    /**
+     * Decode the cursor into the id after which the page starts
+     *
+     * @param cursor opaque cursor; null or empty for the first page
+     * @return id of the last row of the previous page; 0 for the first page
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    public static long decode(String cursor) {
+        if (cursor == null || cursor.equals("")) {
+            return 0L;
+        }
+
+        String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+
+        if (!raw.startsWith(VERSION_PREFIX)) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+
+        return Long.parseLong(raw.substring(VERSION_PREFIX.length()));
+    }
+
+    /**
+     * Page request which fetches one row more than the limit, to find out if
+     * there is a next page
+     *
+     * @param limit      number of rows requested by the client
+     * @param idProperty name of the primary key property
+     * @return page request
+     */
+    public static Pageable toPageable(Integer limit, String idProperty) {
+        return PageRequest.of(0, boundedLimit(limit) + 1, Sort.by(idProperty));
+    }
+
+    /**
+     * Bound the limit supplied by the client
+     *
+     * @param limit number of rows requested by the client
+     * @return number of rows to be sent
+     */
+    public static int boundedLimit(Integer limit) {
+        if (limit == null || limit < 1) {
+            return Paging.DEFAULT_PAGE_SIZE;
+        }
+
+        return Math.min(limit, Paging.MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Build the response with the page and the cursor of the next page
+     *
+     * @param rows  rows fetched with the page request of {@link #toPageable}
+     * @param limit number of rows requested by the client
+     * @param idOf  function returning the primary key of the row
+     * @return response with the rows of the page
+     */
+    public static <T> ResponseEntity<?> respond(List<T> rows, Integer limit, ToLongFunction<T> idOf) {
+        int pageSize = boundedLimit(limit);
+        HttpHeaders headers = new HttpHeaders();
+
+        if (rows.size() > pageSize) {
+            rows = rows.subList(0, pageSize);
+            headers.add(NEXT_CURSOR_HEADER, encode(idOf.applyAsLong(rows.get(pageSize - 1))));
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).headers(headers).body(rows);
+    }
+}
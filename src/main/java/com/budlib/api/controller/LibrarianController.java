@@ -16,7 +16,7 @@ import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 /**
  * Controller for librarian
  */
-@CrossOrigin
+@CrossOrigin(exposedHeaders = { KeysetCursor.NEXT_CURSOR_HEADER })
 @RestController
 @RequestMapping("api/librarian")
 public class LibrarianController {
@@ -132,11 +132,35 @@ public class LibrarianController {
      *
      * @param searchBy   where to search
      * @param searchTerm what to search
+     * @param cursor     cursor returned in the X-Next-Cursor header of the
+     *                   previous page, when listing all librarians page by page
+     * @param limit      number of librarians in the page, when listing all
+     *                   librarians page by page
      * @return list of librarians meeting search criteria
      */
     @GetMapping()
     public ResponseEntity<?> searchLibrarian(@RequestParam(name = "searchBy", required = false) String searchBy,
-            @RequestParam(name = "searchTerm", required = false) String searchTerm) {
+            @RequestParam(name = "searchTerm", required = false) String searchTerm,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "limit", required = false) Integer limit) {
+
+        boolean isListing = searchBy == null || searchTerm == null || searchBy.equals("") || searchTerm.equals("");
+
+        // plain listing is served page by page after the cursor
+        if (KeysetCursor.isRequested(cursor, limit) && isListing) {
+            try {
+                long afterId = KeysetCursor.decode(cursor);
+                List<Librarian> rows = this.librarianRepository.findByLibrarianIdGreaterThan(afterId,
+                        KeysetCursor.toPageable(limit, "librarianId"));
+                return KeysetCursor.respond(rows, limit, Librarian::getLibrarianId);
+            }
+
+            catch (IllegalArgumentException e) {
+                String message = "Invalid cursor";
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+            }
+        }
 
         List<Librarian> allLibrarians = this.librarianRepository.findAll();
 
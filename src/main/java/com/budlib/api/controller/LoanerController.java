@@ -3,27 +3,57 @@ package com.budlib.api.controller;
 import com.budlib.api.model.*;
 import com.budlib.api.repository.*;
 import com.budlib.api.response.*;
+import com.budlib.api.service.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.bind.annotation.*;
+import javax.transaction.Transactional;
 
 /**
  * Controller for loaner
  */
-@CrossOrigin
+@CrossOrigin(exposedHeaders = { KeysetCursor.NEXT_CURSOR_HEADER })
 @RestController
 @RequestMapping("api/loaners")
 public class LoanerController {
+    /**
+     * Most school ids sent to the database in one query
+     */
+    private static final int ID_CHUNK_SIZE = 1000;
+
     @Autowired
     private LoanerRepository loanerRepository;
 
     @Autowired
     TransactionRepository transactionRepository;
 
+    @Autowired
+    private LoanerSearchIndex loanerSearchIndex;
+
+    @Autowired
+    private LibraryCounters libraryCounters;
+
+    /**
+     * Most loaners returned by an indexed search, and the number returned when no
+     * limit is supplied
+     */
+    @Value("${budlib.search.loaner.max-results}")
+    private int maxSearchResults;
+
+    @Value("${budlib.search.fuzzy.threshold}")
+    private double defaultFuzzyThreshold;
+
     /**
      * Search the loaner by id
      *
@@ -45,39 +75,37 @@ public class LoanerController {
     }
 
     /**
-     * Search the loaners by their school id
+     * Search the loaners in the in-memory index
      *
-     * @param allloaners list of all loaners
-     * @param sT         search term
-     * @return filtered list of loaner with name meeting the search term
+     * @param field where to search
+     * @param sT    search term
+     * @param limit maximum number of loaners to return
+     * @return list of loaners with the field containing the search term
      */
-    private List<Loaner> searchLoanerBySchoolId(List<Loaner> allLoaners, String sT) {
-        String searchTerm = sT.toLowerCase();
-        List<Loaner> searchResults = new ArrayList<>();
-
-        for (Loaner eachLoaner : allLoaners) {
-            if (eachLoaner.getSchoolId() != null && eachLoaner.getSchoolId().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachLoaner);
-            }
-        }
-
-        return searchResults;
+    private List<Loaner> searchLoanerInIndex(LoanerSearchIndex.SearchField field, String sT, int limit) {
+        return this.findLoanersInOrder(this.loanerSearchIndex.search(field, sT, limit));
     }
 
     /**
-     * Search the loaners by their name
+     * Fetch the loaners while keeping the order of the ids
      *
-     * @param allloaners list of all loaners
-     * @param sT         search term
-     * @return filtered list of loaner with name meeting the search term
+     * @param ids loaner ids
+     * @return list of loaners
      */
-    private List<Loaner> searchLoanerByName(List<Loaner> allLoaners, String sT) {
-        String searchTerm = sT.toLowerCase();
+    private List<Loaner> findLoanersInOrder(List<Long> ids) {
+        Map<Long, Loaner> loanersById = new HashMap<>();
+
+        for (Loaner eachLoaner : this.loanerRepository.findAllById(ids)) {
+            loanersById.put(eachLoaner.getLoanerId(), eachLoaner);
+        }
+
         List<Loaner> searchResults = new ArrayList<>();
 
-        for (Loaner eachLoaner : allLoaners) {
-            if (eachLoaner.getFullName() != null && eachLoaner.getFullName().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachLoaner);
+        for (Long eachId : ids) {
+            Loaner l = loanersById.get(eachId);
+
+            if (l != null) {
+                searchResults.add(l);
             }
         }
 
@@ -85,28 +113,18 @@ public class LoanerController {
     }
 
     /**
-     * Search the loaner by their parent's name
+     * Search the loaners in the in-memory index, tolerating misspellings
      *
-     * @param allLoaners list of all loaners
-     * @param sT         search term
-     * @return filtered list of students with parent's name meeting the search term
+     * @param field     where to search
+     * @param sT        search term
+     * @param threshold minimum similarity between 0 and 1
+     * @param limit     maximum number of loaners to return
+     * @return list of loaners similar to the search term, most similar first
      */
-    private List<Loaner> searchStudentByParentName(List<Loaner> allLoaners, String sT) {
-        String searchTerm = sT.toLowerCase();
-        List<Loaner> searchResults = new ArrayList<>();
-
-        for (Loaner eachLoaner : allLoaners) {
-            if (eachLoaner.getMotherName() != null && eachLoaner.getFullName().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachLoaner);
-            }
-
-            else if (eachLoaner.getFatherName() != null
-                    && eachLoaner.getFullName().toLowerCase().contains(searchTerm)) {
-                searchResults.add(eachLoaner);
-            }
-        }
+    private List<Loaner> searchSimilarLoanerInIndex(LoanerSearchIndex.SearchField field, String sT,
+            double threshold, int limit) {
 
-        return searchResults;
+        return this.findLoanersInOrder(this.loanerSearchIndex.searchSimilar(field, sT, threshold, limit));
     }
 
     /**
@@ -166,60 +184,115 @@ public class LoanerController {
         }
 
         else {
-            List<Loan> currentLoans = l.get(0).getCurrentLoans();
+            List<Loan> currentLoans = new ArrayList<>(l.get(0).getCurrentLoans());
             return ResponseEntity.status(HttpStatus.OK).body(currentLoans);
         }
     }
 
     /**
-     * Endpoint for GET - search and fetch all loaners meeting search criteria
+     * Endpoint for GET - search and fetch all loaners meeting search criteria.
+     * Searches by school id, name and parent name are served from the in-memory
+     * index and return at most limit loaners.
      *
      * @param searchBy   where to search
      * @param searchTerm what to search
+     * @param limit      maximum number of loaners to return for indexed searches,
+     *                   up to budlib.search.loaner.max-results, or number of loaners in the page when listing all
+     *                   loaners page by page
+     * @param cursor     cursor returned in the X-Next-Cursor header of the
+     *                   previous page, when listing all loaners page by page
+     * @param fuzzy      whether to tolerate misspellings in indexed searches
+     * @param threshold  minimum similarity between 0 and 1 in a fuzzy search
      * @return list of loaners meeting search criteria
      */
     @GetMapping()
     public ResponseEntity<?> searchLoaner(@RequestParam(name = "searchBy", required = false) String searchBy,
-            @RequestParam(name = "searchTerm", required = false) String searchTerm) {
+            @RequestParam(name = "searchTerm", required = false) String searchTerm,
+            @RequestParam(name = "limit", required = false) Integer limit,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "fuzzy", required = false, defaultValue = "false") boolean fuzzy,
+            @RequestParam(name = "threshold", required = false) Double threshold) {
+
+        boolean isListing = searchBy == null || searchTerm == null || searchBy.equals("") || searchTerm.equals("");
+
+        // plain listing is served page by page after the cursor
+        if (KeysetCursor.isRequested(cursor, limit) && isListing) {
+            try {
+                long afterId = KeysetCursor.decode(cursor);
+                List<Loaner> rows = this.loanerRepository.findByLoanerIdGreaterThan(afterId,
+                        KeysetCursor.toPageable(limit, "loanerId"));
+                return KeysetCursor.respond(rows, limit, Loaner::getLoanerId);
+            }
 
-        List<Loaner> allLoaners = this.loanerRepository.findAll();
+            catch (IllegalArgumentException e) {
+                String message = "Invalid cursor";
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+            }
+        }
+
+        int maxResults = (limit == null || limit < 1) ? this.maxSearchResults
+                : Math.min(limit, this.maxSearchResults);
+        double minSimilarity = (threshold == null) ? this.defaultFuzzyThreshold : threshold;
+
+        if (minSimilarity < 0 || minSimilarity > 1 || Double.isNaN(minSimilarity)) {
+            String message = "Invalid threshold";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
 
         try {
             if (searchBy == null || searchTerm == null) {
-                return ResponseEntity.status(HttpStatus.OK).body(allLoaners);
+                return ResponseEntity.status(HttpStatus.OK).body(this.loanerRepository.findAll());
             }
 
             else if (searchBy.equals("") || searchTerm.equals("")) {
-                return ResponseEntity.status(HttpStatus.OK).body(allLoaners);
+                return ResponseEntity.status(HttpStatus.OK).body(this.loanerRepository.findAll());
             }
 
             else if (searchBy.equalsIgnoreCase("id")) {
                 return ResponseEntity.status(HttpStatus.OK).body(this.searchLoanerById(Long.valueOf(searchTerm)));
             }
 
+            else if (searchBy.equalsIgnoreCase("schoolId") && fuzzy) {
+                return ResponseEntity.status(HttpStatus.OK).body(this.searchSimilarLoanerInIndex(
+                        LoanerSearchIndex.SearchField.SCHOOL_ID, searchTerm, minSimilarity, maxResults));
+            }
+
             else if (searchBy.equalsIgnoreCase("schoolId")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchLoanerBySchoolId(allLoaners, searchTerm));
+                return ResponseEntity.status(HttpStatus.OK).body(
+                        this.searchLoanerInIndex(LoanerSearchIndex.SearchField.SCHOOL_ID, searchTerm, maxResults));
+            }
+
+            else if (searchBy.equalsIgnoreCase("name") && fuzzy) {
+                return ResponseEntity.status(HttpStatus.OK).body(this.searchSimilarLoanerInIndex(
+                        LoanerSearchIndex.SearchField.NAME, searchTerm, minSimilarity, maxResults));
             }
 
             else if (searchBy.equalsIgnoreCase("name")) {
-                return ResponseEntity.status(HttpStatus.OK).body(this.searchLoanerByName(allLoaners, searchTerm));
+                return ResponseEntity.status(HttpStatus.OK).body(
+                        this.searchLoanerInIndex(LoanerSearchIndex.SearchField.NAME, searchTerm, maxResults));
+            }
+
+            else if (searchBy.equalsIgnoreCase("parentName") && fuzzy) {
+                return ResponseEntity.status(HttpStatus.OK).body(this.searchSimilarLoanerInIndex(
+                        LoanerSearchIndex.SearchField.PARENT_NAME, searchTerm, minSimilarity, maxResults));
             }
 
             else if (searchBy.equalsIgnoreCase("parentName")) {
-                return ResponseEntity.status(HttpStatus.OK)
-                        .body(this.searchStudentByParentName(allLoaners, searchTerm));
+                return ResponseEntity.status(HttpStatus.OK).body(
+                        this.searchLoanerInIndex(LoanerSearchIndex.SearchField.PARENT_NAME, searchTerm, maxResults));
             }
 
             else {
                 // String message = "Invalid loaner search operation";
                 // return ResponseEntity.status(HttpStatus.BAD_REQUEST)
                 // .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                return ResponseEntity.status(HttpStatus.OK).body(allLoaners);
+                return ResponseEntity.status(HttpStatus.OK).body(this.loanerRepository.findAll());
             }
         }
 
         catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.OK).body(allLoaners);
+            return ResponseEntity.status(HttpStatus.OK).body(this.loanerRepository.findAll());
         }
     }
 
@@ -249,6 +322,56 @@ public class LoanerController {
         return true;
     }
 
+    /**
+     * Find which school ids of the loaners are already taken, one query per chunk
+     * of ids rather than one per loaner. The lookup uses the index on the school
+     * id, and ignores case through the case-insensitive collation of the column.
+     *
+     * @param loaners loaners to be imported
+     * @return school ids already in the database, in lower case
+     */
+    private Set<String> findExistingSchoolIds(List<Loaner> loaners) {
+        List<String> schoolIds = new ArrayList<>();
+
+        for (Loaner eachLoaner : loaners) {
+            if (eachLoaner.getSchoolId() != null && !eachLoaner.getSchoolId().equals("")) {
+                schoolIds.add(eachLoaner.getSchoolId().toLowerCase());
+            }
+        }
+
+        Set<String> existingSchoolIds = new HashSet<>();
+
+        for (int from = 0; from < schoolIds.size(); from += ID_CHUNK_SIZE) {
+            List<String> chunk = schoolIds.subList(from, Math.min(from + ID_CHUNK_SIZE, schoolIds.size()));
+            for (String eachSchoolId : this.loanerRepository.findExistingSchoolIds(chunk)) {
+                existingSchoolIds.add(eachSchoolId.toLowerCase());
+            }
+        }
+
+        return existingSchoolIds;
+    }
+
+    /**
+     * Put the saved loaners in the search index once the database transaction is
+     * committed, so that the index never holds loaners whose save was rolled back
+     *
+     * @param savedLoaners loaners saved in the database transaction
+     */
+    private void putAfterCommit(List<Loaner> savedLoaners) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    loanerSearchIndex.putAll(savedLoaners);
+                }
+            });
+        }
+
+        else {
+            this.loanerSearchIndex.putAll(savedLoaners);
+        }
+    }
+
     /**
      * Endpoint for POST - save the loaner in db
      *
@@ -261,7 +384,8 @@ public class LoanerController {
         l.setLoanerId(0L);
 
         if (this.checkLoanerUniqueness(l)) {
-            this.loanerRepository.save(l);
+            this.loanerSearchIndex.put(this.loanerRepository.save(l));
+            this.libraryCounters.adjust(0, 0, 1, 0);
             String message = "Loaner added successfully";
             return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
         }
@@ -279,26 +403,35 @@ public class LoanerController {
      * @return the message
      */
     @PostMapping(path = "import")
+    @Transactional
     public ResponseEntity<?> importLoaners(@RequestBody List<Loaner> loanerList) {
         boolean flag = false;
         int countNotImported = 0;
         int countImported = 0;
+        List<Loaner> savedLoaners = new ArrayList<>();
+        Set<String> takenSchoolIds = this.findExistingSchoolIds(loanerList);
 
         for (Loaner eachLoaner : loanerList) {
             // reset the id to 0 to prevent overwrite
             eachLoaner.setLoanerId(0L);
 
-            if (this.checkLoanerUniqueness(eachLoaner)) {
-                this.loanerRepository.save(eachLoaner);
-                countImported++;
-            }
+            String schoolId = eachLoaner.getSchoolId();
 
-            else {
+            // duplicate school id, either in the database or earlier in the same import
+            if (schoolId != null && !schoolId.equals("") && !takenSchoolIds.add(schoolId.toLowerCase())) {
                 flag = true;
                 countNotImported++;
             }
+
+            else {
+                savedLoaners.add(this.loanerRepository.save(eachLoaner));
+                countImported++;
+            }
         }
 
+        this.putAfterCommit(savedLoaners);
+        this.libraryCounters.adjust(0, 0, savedLoaners.size(), 0);
+
         String message = String.format("%d loaners imported successfully", countImported);
 
         if (flag) {
@@ -323,7 +456,7 @@ public class LoanerController {
             l.setLoanerId(loanerId);
 
             if (this.checkLoanerUniqueness(l)) {
-                this.loanerRepository.save(l);
+                this.loanerSearchIndex.put(this.loanerRepository.save(l));
                 String message = "Loaner updated successfully";
                 return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
             }
@@ -373,6 +506,9 @@ public class LoanerController {
             }
 
             this.loanerRepository.deleteById(loanerId);
+            this.loanerSearchIndex.remove(loanerId);
+            this.libraryCounters.adjust(0, 0, -1, 0);
+
             String message = "Loaner deleted successfully";
             return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
         }
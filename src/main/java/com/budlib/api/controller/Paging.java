@@ -0,0 +1,114 @@
+package com.budlib.api.controller;
+
+import java.util.Set;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Helpers to translate page, size and sort request parameters for the listing
+ * endpoints
+ */
+public final class Paging {
+    /**
+     * Response header carrying the total number of rows matching the search
+     */
+    public static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+
+    /**
+     * Largest page size a client can ask for
+     */
+    public static final int MAX_PAGE_SIZE = 500;
+
+    /**
+     * Page size used when only the page number is supplied
+     */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private Paging() {
+    }
+
+    /**
+     * Check if the client asked for a paginated result
+     *
+     * @param page page number
+     * @param size page size
+     * @return true if either of page or size is supplied
+     */
+    public static boolean isPaged(Integer page, Integer size) {
+        return page != null || size != null;
+    }
+
+    /**
+     * Parse the sort parameter of the form {@code property} or
+     * {@code property,asc|desc}
+     *
+     * @param sort        sort parameter supplied by the client
+     * @param sortable    properties which the client is allowed to sort on
+     * @param defaultSort sort used when the parameter is missing or invalid
+     * @return sort to be applied on the query
+     */
+    public static Sort toSort(String sort, Set<String> sortable, Sort defaultSort) {
+        if (sort == null || sort.equals("")) {
+            return defaultSort;
+        }
+
+        String[] parts = sort.split(",");
+        String property = parts[0].trim();
+
+        if (!sortable.contains(property)) {
+            return defaultSort;
+        }
+
+        Sort.Direction direction = Sort.Direction.ASC;
+
+        if (parts.length > 1 && parts[1].trim().equalsIgnoreCase("desc")) {
+            direction = Sort.Direction.DESC;
+        }
+
+        // keep a stable order for rows sharing the same value
+        return Sort.by(direction, property).and(defaultSort);
+    }
+
+    /**
+     * Build the page request from the request parameters
+     *
+     * @param page        zero based page number
+     * @param size        page size
+     * @param sort        sort parameter supplied by the client
+     * @param sortable    properties which the client is allowed to sort on
+     * @param defaultSort sort used when the parameter is missing or invalid
+     * @return page request
+     */
+    public static Pageable toPageable(Integer page, Integer size, String sort, Set<String> sortable,
+            Sort defaultSort) {
+        int pageNumber = (page == null || page < 0) ? 0 : page;
+        int pageSize = (size == null || size < 1) ? DEFAULT_PAGE_SIZE : Math.min(size, MAX_PAGE_SIZE);
+
+        return PageRequest.of(pageNumber, pageSize, toSort(sort, sortable, defaultSort));
+    }
+
+    /**
+     * Headers with the total count of rows
+     *
+     * @param totalCount total number of rows matching the search
+     * @return headers to be added to the response
+     */
+    public static HttpHeaders totalCountHeader(long totalCount) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(TOTAL_COUNT_HEADER, String.valueOf(totalCount));
+        return headers;
+    }
+
+    /**
+     * Headers with the total count of rows in the page
+     *
+     * @param result page fetched from the database
+     * @return headers to be added to the response
+     */
+    public static HttpHeaders totalCountHeader(Page<?> result) {
+        return totalCountHeader(result.getTotalElements());
+    }
+}
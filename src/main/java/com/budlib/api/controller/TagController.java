@@ -3,6 +3,7 @@ package com.budlib.api.controller;
 import com.budlib.api.model.*;
 import com.budlib.api.repository.*;
 import com.budlib.api.response.*;
+import com.budlib.api.service.*;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -22,6 +23,9 @@ public class TagController {
     @Autowired
     private TagRepository tagRepository;
 
+    @Autowired
+    private TagBookIndex tagBookIndex;
+
     /**
      * Search the tags by id
      *
@@ -82,6 +86,17 @@ public class TagController {
         }
     }
 
+    /**
+     * Endpoint for GET - fetch the number of books carrying each tag, served from
+     * the tag index
+     *
+     * @return list of tags with their book counts
+     */
+    @GetMapping(path = "counts")
+    public ResponseEntity<?> getTagCounts() {
+        return ResponseEntity.status(HttpStatus.OK).body(this.tagBookIndex.countBooksByTag());
+    }
+
     /**
      * Endpoint for GET - search and fetch all tags meeting search criteria
      *
@@ -145,7 +160,7 @@ public class TagController {
             }
         }
 
-        this.tagRepository.save(t);
+        this.tagBookIndex.putTag(this.tagRepository.save(t));
 
         String message = "Tag added successfully";
         return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
@@ -170,6 +185,7 @@ public class TagController {
 
             if (size == 0) {
                 this.tagRepository.delete(t);
+                this.tagBookIndex.removeTag(t.getTagId());
 
                 count++;
             }
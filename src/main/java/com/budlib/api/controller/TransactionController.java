@@ -4,14 +4,32 @@ import com.budlib.api.model.*;
 import com.budlib.api.enums.*;
 import com.budlib.api.repository.*;
 import com.budlib.api.response.*;
+import com.budlib.api.service.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.Optional;
 import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -20,28 +38,41 @@ import javax.transaction.Transactional;
 /**
  * Controller for transactions
  */
-@CrossOrigin
+@CrossOrigin(exposedHeaders = { Paging.TOTAL_COUNT_HEADER, KeysetCursor.NEXT_CURSOR_HEADER,
+        IdempotencyCache.REPLAYED_HEADER })
 @RestController
 @Transactional
 @RequestMapping("api/transactions")
 public class TransactionController {
-    @Autowired
-    private BookRepository bookRepository;
+    /**
+     * Properties the transaction history can be sorted on
+     */
+    private static final Set<String> TRANSACTION_SORTABLE = Set.of("transactionId", "transactionDateTime",
+            "transactionType");
+
+    /**
+     * Latest transactions first; the id keeps the order stable
+     */
+    private static final Sort TRANSACTION_DEFAULT_SORT = Sort.by(Sort.Direction.DESC, "transactionDateTime")
+            .and(Sort.by(Sort.Direction.DESC, "transactionId"));
 
     @Autowired
     private TransactionRepository transactionRepository;
 
     @Autowired
-    private TrnQuantitiesRepository trnQuantitiesRepository;
+    private LoanerRepository loanerRepository;
 
     @Autowired
-    private LibrarianRepository librarianRepository;
+    private CirculationService circulationService;
 
     @Autowired
-    private LoanerRepository loanerRepository;
+    private CirculationPipeline circulationPipeline;
 
     @Autowired
-    private LoanRepository loanRepository;
+    private IdempotencyCache idempotencyCache;
+
+    @Value("${budlib.circulation.submit-timeout-ms}")
+    private long submitTimeout;
 
     /**
      * Search the transaction by id
@@ -66,83 +97,51 @@ public class TransactionController {
     /**
      * Search the transaction by loaner
      *
-     * @param allTransactions list of all transactions
-     * @param sT              search term
-     * @return filtered list of transaction with loaner meeting the search term
+     * @param sT search term
+     * @return list of transactions with loaner meeting the search term
      */
-    private List<Transaction> searchTransactionByLoaner(List<Transaction> allTransactions, String sT) {
-        List<Transaction> searchResults = new ArrayList<>();
-
+    private List<Transaction> searchTransactionByLoaner(String sT) {
         try {
             long searchTerm = Long.parseLong(sT.toLowerCase());
-
-            for (Transaction eachTransaction : allTransactions) {
-                if (eachTransaction.getLoaner() != null
-                        && eachTransaction.getLoaner().getLoanerId() == searchTerm) {
-                    searchResults.add(eachTransaction);
-                }
-            }
-
-            return searchResults;
+            return this.transactionRepository.findAll(TransactionSpecifications.loanerIs(searchTerm));
         }
 
         catch (NumberFormatException e) {
-            return searchResults;
+            return new ArrayList<>();
         }
     }
 
     /**
      * Search the transaction by librarian
      *
-     * @param allTransactions list of all transactions
-     * @param sT              search term
-     * @return filtered list of transaction with librarian meeting the search term
+     * @param sT search term
+     * @return list of transactions with librarian meeting the search term
      */
-    private List<Transaction> searchTransactionByLibrarian(List<Transaction> allTransactions, String sT) {
-        List<Transaction> searchResults = new ArrayList<>();
-
+    private List<Transaction> searchTransactionByLibrarian(String sT) {
         try {
             long searchTerm = Long.parseLong(sT.toLowerCase());
-
-            for (Transaction eachTransaction : allTransactions) {
-                if (eachTransaction.getLibrarian() != null
-                        && eachTransaction.getLibrarian().getLibrarianId() == searchTerm) {
-                    searchResults.add(eachTransaction);
-                }
-            }
-
-            return searchResults;
+            return this.transactionRepository.findAll(TransactionSpecifications.librarianIs(searchTerm));
         }
 
         catch (NumberFormatException e) {
-            return searchResults;
+            return new ArrayList<>();
         }
     }
 
     /**
      * Search the transactions by their transaction type
      *
-     * @param allTransactions list of all transactions
-     * @param sT              search term
-     * @return filtered list of transactions with type meeting the search term
+     * @param sT search term
+     * @return list of transactions with type meeting the search term
      */
-    private List<Transaction> searchTransactionByType(List<Transaction> allTransactions, String sT) {
-        List<Transaction> searchResults = new ArrayList<>();
-
+    private List<Transaction> searchTransactionByType(String sT) {
         try {
             TransactionType searchTerm = TransactionType.valueOf(sT.toUpperCase());
-
-            for (Transaction eachTransaction : allTransactions) {
-                if (eachTransaction.getTransactionType() == searchTerm) {
-                    searchResults.add(eachTransaction);
-                }
-            }
-
-            return searchResults;
+            return this.transactionRepository.findAll(TransactionSpecifications.typeIs(searchTerm));
         }
 
         catch (IllegalArgumentException e) {
-            return searchResults;
+            return new ArrayList<>();
         }
     }
 
@@ -171,21 +170,43 @@ public class TransactionController {
      *
      * @param searchBy   where to search
      * @param searchTerm what to search
+     * @param cursor     cursor returned in the X-Next-Cursor header of the
+     *                   previous page, when listing all transactions page by page
+     * @param limit      number of transactions in the page, when listing all
+     *                   transactions page by page
      * @return list of transactions meeting search criteria
      */
     @GetMapping()
     public ResponseEntity<?> searchTransactions(@RequestParam(name = "searchBy", required = false) String searchBy,
-            @RequestParam(name = "searchTerm", required = false) String searchTerm) {
+            @RequestParam(name = "searchTerm", required = false) String searchTerm,
+            @RequestParam(name = "cursor", required = false) String cursor,
+            @RequestParam(name = "limit", required = false) Integer limit) {
 
-        List<Transaction> allTransactions = this.transactionRepository.findAll();
+        boolean isListing = searchBy == null || searchTerm == null || searchBy.equals("") || searchTerm.equals("");
+
+        // plain listing is served page by page after the cursor
+        if (KeysetCursor.isRequested(cursor, limit) && isListing) {
+            try {
+                long afterId = KeysetCursor.decode(cursor);
+                List<Transaction> rows = this.transactionRepository.findByTransactionIdGreaterThan(afterId,
+                        KeysetCursor.toPageable(limit, "transactionId"));
+                return KeysetCursor.respond(rows, limit, Transaction::getTransactionId);
+            }
+
+            catch (IllegalArgumentException e) {
+                String message = "Invalid cursor";
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+            }
+        }
 
         try {
             if (searchBy == null || searchTerm == null) {
-                return ResponseEntity.status(HttpStatus.OK).body(allTransactions);
+                return ResponseEntity.status(HttpStatus.OK).body(this.transactionRepository.findAll());
             }
 
             else if (searchBy.equals("") || searchTerm.equals("")) {
-                return ResponseEntity.status(HttpStatus.OK).body(allTransactions);
+                return ResponseEntity.status(HttpStatus.OK).body(this.transactionRepository.findAll());
             }
 
             else if (searchBy.equalsIgnoreCase("id")) {
@@ -194,33 +215,104 @@ public class TransactionController {
             }
 
             else if (searchBy.equalsIgnoreCase("loaner")) {
-                return ResponseEntity.status(HttpStatus.OK)
-                        .body(this.searchTransactionByLoaner(allTransactions, searchTerm));
+                return ResponseEntity.status(HttpStatus.OK).body(this.searchTransactionByLoaner(searchTerm));
             }
 
             else if (searchBy.equalsIgnoreCase("librarian")) {
-                return ResponseEntity.status(HttpStatus.OK)
-                        .body(this.searchTransactionByLibrarian(allTransactions, searchTerm));
+                return ResponseEntity.status(HttpStatus.OK).body(this.searchTransactionByLibrarian(searchTerm));
             }
 
             else if (searchBy.equalsIgnoreCase("type")) {
-                return ResponseEntity.status(HttpStatus.OK)
-                        .body(this.searchTransactionByType(allTransactions, searchTerm));
+                return ResponseEntity.status(HttpStatus.OK).body(this.searchTransactionByType(searchTerm));
             }
 
             else {
                 // String message = "Invalid transaction search operation";
                 // return ResponseEntity.status(HttpStatus.BAD_REQUEST)
                 // .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                return ResponseEntity.status(HttpStatus.OK).body(allTransactions);
+                return ResponseEntity.status(HttpStatus.OK).body(this.transactionRepository.findAll());
             }
         }
 
         catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.OK).body(allTransactions);
+            return ResponseEntity.status(HttpStatus.OK).body(this.transactionRepository.findAll());
         }
     }
 
+    /**
+     * Endpoint for GET - search the transaction history by several criteria at
+     * once. All supplied criteria must match, and the search runs as a single
+     * paginated query in the database. The total count of matching transactions
+     * is returned in the X-Total-Count header.
+     *
+     * @param from        first date of the range as yyyyMMdd, inclusive
+     * @param to          last date of the range as yyyyMMdd, inclusive
+     * @param type        transaction type
+     * @param loanerId    loaner of the transactions
+     * @param librarianId librarian who facilitated the transactions
+     * @param page        zero based page number
+     * @param size        number of transactions in the page
+     * @param sort        property to sort on, optionally followed by ",asc" or
+     *                    ",desc"; latest first by default
+     * @return list of transactions meeting all the criteria
+     */
+    @GetMapping(path = "query")
+    public ResponseEntity<?> queryTransactions(@RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to,
+            @RequestParam(name = "type", required = false) String type,
+            @RequestParam(name = "loaner", required = false) Long loanerId,
+            @RequestParam(name = "librarian", required = false) Long librarianId,
+            @RequestParam(name = "page", required = false) Integer page,
+            @RequestParam(name = "size", required = false) Integer size,
+            @RequestParam(name = "sort", required = false) String sort) {
+
+        Specification<Transaction> spec = Specification.where(null);
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+        try {
+            if (from != null && !from.equals("")) {
+                ZonedDateTime start = LocalDate.parse(from, formatter).atStartOfDay(ZoneId.systemDefault());
+                spec = spec.and(TransactionSpecifications.occurredFrom(start));
+            }
+
+            if (to != null && !to.equals("")) {
+                ZonedDateTime end = LocalDate.parse(to, formatter).plusDays(1).atStartOfDay(ZoneId.systemDefault());
+                spec = spec.and(TransactionSpecifications.occurredBefore(end));
+            }
+        }
+
+        catch (DateTimeParseException e) {
+            String message = "Invalid date specified";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
+
+        if (type != null && !type.equals("")) {
+            try {
+                spec = spec.and(TransactionSpecifications.typeIs(TransactionType.valueOf(type.toUpperCase())));
+            }
+
+            catch (IllegalArgumentException e) {
+                String message = "Invalid transaction type specified";
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+            }
+        }
+
+        if (loanerId != null) {
+            spec = spec.and(TransactionSpecifications.loanerIs(loanerId));
+        }
+
+        if (librarianId != null) {
+            spec = spec.and(TransactionSpecifications.librarianIs(librarianId));
+        }
+
+        Pageable pageable = Paging.toPageable(page, size, sort, TRANSACTION_SORTABLE, TRANSACTION_DEFAULT_SORT);
+        Page<Transaction> result = this.transactionRepository.findAll(spec, pageable);
+
+        return ResponseEntity.status(HttpStatus.OK).headers(Paging.totalCountHeader(result))
+                .body(result.getContent());
+    }
+
     /**
      * Check if the loaner exists in the system. Works only if Loaner.schoolId is
      * not null or empty. This method exists in LoanerController as well.
@@ -249,296 +341,382 @@ public class TransactionController {
     }
 
     /**
-     * Endpoint for POST - save the transaction in db
+     * Endpoint for POST - save the transaction in db. The transaction is
+     * committed by the circulation pipeline, which serializes the writes by book,
+     * so no database transaction is held while waiting for it.
+     *
+     * A request with an Idempotency-Key header is saved only once; retries with
+     * the same key return the original result. Reusing a key for a different
+     * request is rejected.
      *
-     * @param t transaction details in json
+     * @param t              transaction details in json
+     * @param idempotencyKey key identifying the request across retries
      * @return the message
      */
     @PostMapping
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
     public ResponseEntity<?> addTransaction(
             @RequestBody Transaction t,
             @RequestParam(name = "borrowDate", required = false) String suppliedBorrowDateString,
-            @RequestParam(name = "dueDate", required = false) String suppliedDueDateString) {
-        // reset the id to 0 to prevent overwrite
-        t.setTransactionId(0L);
+            @RequestParam(name = "dueDate", required = false) String suppliedDueDateString,
+            @RequestHeader(name = IdempotencyCache.HEADER, required = false) String idempotencyKey) {
 
-        // reset the transaction date time
-        t.setTransactionDateTime(ZonedDateTime.now());
+        if (idempotencyKey == null || idempotencyKey.equals("")) {
+            return this.submitTransaction(t, suppliedBorrowDateString, suppliedDueDateString, null, null);
+        }
 
-        Loaner suppliedLoaner = t.getLoaner();
-        Librarian suppliedLibrarian = t.getLibrarian();
-        List<TrnQuantities> suppliedTrnQtyList = t.getBookCopies();
+        if (idempotencyKey.length() > IdempotencyCache.MAX_KEY_LENGTH) {
+            String message = "Invalid Idempotency-Key";
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        }
 
-        List<TrnQuantities> checkedTrnQtyList = new ArrayList<>();
+        String requestHash = requestFingerprint(t, suppliedBorrowDateString, suppliedDueDateString);
+        IdempotencyRecord record = this.idempotencyCache.find(idempotencyKey);
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
+        // return the original result without saving again
+        if (record != null) {
+            return replay(record, requestHash);
+        }
 
-        // initializing with default values
-        LocalDate suppliedBorrowDate = t.getTransactionDateTime().toLocalDate();
-        LocalDate suppliedDueDate = t.getTransactionDateTime().toLocalDate().plusWeeks(4);
+        if (!this.idempotencyCache.begin(idempotencyKey)) {
+            String message = "A request with the same Idempotency-Key is in progress";
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(new ErrorBody(HttpStatus.CONFLICT, message));
+        }
 
-        // check validity of dates
-        // --------------------------------------------------------------------
-        if (t.getTransactionType().equals(TransactionType.BORROW)) {
-            // borrow date must be specified when borrowing
-            if (suppliedBorrowDateString == null || suppliedBorrowDateString.equals("")) {
-                String message = "Borrow date not specified";
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-            }
+        try {
+            // the key may have been saved just before it was claimed
+            record = this.idempotencyCache.find(idempotencyKey);
+        }
 
-            try {
-                suppliedBorrowDate = LocalDate.parse(suppliedBorrowDateString, formatter);
-            }
+        catch (RuntimeException e) {
+            this.idempotencyCache.end(idempotencyKey);
+            throw e;
+        }
 
-            catch (DateTimeParseException e) {
-                String message = "Invalid borrow date specified";
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-            }
+        if (record != null) {
+            this.idempotencyCache.end(idempotencyKey);
+            return replay(record, requestHash);
+        }
 
-            catch (Exception e) {
-                String message = e.getMessage();
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-            }
+        // the key is released by submitTransaction once the transaction is done
+        return this.submitTransaction(t, suppliedBorrowDateString, suppliedDueDateString, idempotencyKey,
+                requestHash);
+    }
 
-            // if due date is not specified, default is 4 weeks
-            if (suppliedDueDateString == null || suppliedDueDateString.equals("")) {
-                suppliedDueDate = suppliedBorrowDate.plusWeeks(4);
+    /**
+     * Fingerprint of the parts of a transaction request that decide its result.
+     * The books are taken in order of their ids, so the order they are listed in
+     * does not matter.
+     *
+     * @param t          transaction as supplied in the request
+     * @param borrowDate supplied borrow date as yyyyMMdd
+     * @param dueDate    supplied due date as yyyyMMdd
+     * @return fingerprint of the request
+     */
+    private static String requestFingerprint(Transaction t, String borrowDate, String dueDate) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(t.getTransactionType());
+        sb.append('|').append(t.getLoaner() == null ? "" : String.valueOf(t.getLoaner().getLoanerId()));
+        sb.append('|').append(t.getLibrarian() == null ? "" : String.valueOf(t.getLibrarian().getLibrarianId()));
+        sb.append('|').append(borrowDate).append('|').append(dueDate);
+
+        if (t.getBookCopies() != null) {
+            List<TrnQuantities> bookCopies = new ArrayList<>(t.getBookCopies());
+            bookCopies.sort(Comparator.comparingLong(tq -> tq.getBook() == null ? -1L : tq.getBook().getBookId()));
+
+            for (TrnQuantities tq : bookCopies) {
+                sb.append('|').append(tq.getBook() == null ? "" : String.valueOf(tq.getBook().getBookId()));
+                sb.append(':').append(tq.getCopies());
             }
+        }
 
-            // else try to parse what user has supplied
-            else {
-                try {
-                    suppliedDueDate = LocalDate.parse(suppliedDueDateString, formatter);
+        return IdempotencyCache.fingerprint(sb.toString());
+    }
 
-                    if (suppliedDueDate.compareTo(suppliedBorrowDate) < 0) {
-                        throw new Exception("Borrow date cannot be after due date");
-                    }
-                }
+    /**
+     * Answer a retry with the result of the request first saved with its key
+     *
+     * @param record      record of the key
+     * @param requestHash fingerprint of the retried request
+     * @return the message
+     */
+    private static ResponseEntity<?> replay(IdempotencyRecord record, String requestHash) {
+        // records saved before the fingerprints were kept have none
+        if (record.getRequestHash() != null && !record.getRequestHash().equals(requestHash)) {
+            String message = "Idempotency-Key was already used for a different request";
+            return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+                    .body(new ErrorBody(HttpStatus.UNPROCESSABLE_ENTITY, message));
+        }
 
-                catch (DateTimeParseException e) {
-                    String message = "Invalid due date specified";
-                    return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                            .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                }
+        String message = "Transaction completed successfully";
+        return ResponseEntity.status(HttpStatus.OK).header(IdempotencyCache.REPLAYED_HEADER, "true")
+                .body(new ErrorBody(HttpStatus.OK, message));
+    }
 
-                catch (Exception e) {
-                    String message = e.getMessage();
-                    return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                            .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                }
-            }
-        }
+    /**
+     * Save the transaction through the circulation pipeline and wait for it
+     *
+     * @param t                        transaction details
+     * @param suppliedBorrowDateString supplied borrow date as yyyyMMdd
+     * @param suppliedDueDateString    supplied due date as yyyyMMdd
+     * @param idempotencyKey           key identifying the request; may be null
+     * @param requestHash              fingerprint of the request; null without a
+     *                                 key
+     * @return the message
+     */
+    private ResponseEntity<?> submitTransaction(Transaction t, String suppliedBorrowDateString,
+            String suppliedDueDateString, String idempotencyKey, String requestHash) {
+        // reset the id to 0 to prevent overwrite
+        t.setTransactionId(0L);
 
-        // due date must be specified when providing extension
-        else if (t.getTransactionType().equals(TransactionType.EXTEND)) {
-            if (suppliedDueDateString == null || suppliedDueDateString.equals("")) {
-                String message = "Due date not specified";
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-            }
+        // reset the transaction date time
+        t.setTransactionDateTime(ZonedDateTime.now());
 
-            try {
-                suppliedDueDate = LocalDate.parse(suppliedDueDateString, formatter);
-            }
+        CompletableFuture<Transaction> result;
 
-            catch (DateTimeParseException e) {
-                String message = "Invalid due date specified";
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-            }
+        try {
+            result = this.circulationPipeline.submit(t, suppliedBorrowDateString, suppliedDueDateString,
+                    idempotencyKey, requestHash);
+        }
 
-            catch (Exception e) {
-                String message = e.getMessage();
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                        .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        catch (RejectedExecutionException e) {
+            if (idempotencyKey != null) {
+                this.idempotencyCache.end(idempotencyKey);
             }
+
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(new ErrorBody(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage()));
         }
-        // --------------------------------------------------------------------
 
-        // check validity of librarian
-        // --------------------------------------------------------------------
-        if (suppliedLibrarian == null) {
-            String message = "Librarian coordinator not specified";
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+        if (idempotencyKey != null) {
+            // held until the transaction is saved or rejected, even if this request
+            // times out first, so that a retry cannot queue it a second time
+            result.whenComplete((savedTrn, failure) -> this.idempotencyCache.end(idempotencyKey));
         }
 
-        else {
-            Optional<Librarian> librarianOptional = this.librarianRepository
-                    .findById(suppliedLibrarian.getLibrarianId());
+        try {
+            result.get(this.submitTimeout, TimeUnit.MILLISECONDS);
+        }
 
-            if (librarianOptional.isPresent()) {
-                // overwrite supplied details of the librarian
-                suppliedLibrarian = librarianOptional.get();
-                t.setLibrarian(suppliedLibrarian);
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof CirculationService.CirculationException) {
+                CirculationService.CirculationException ce = (CirculationService.CirculationException) e.getCause();
+                return ResponseEntity.status(ce.getStatus()).body(new ErrorBody(ce.getStatus(), ce.getMessage()));
             }
 
-            else {
-                String message = "Librarian not found";
-                return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                        .body(new ErrorBody(HttpStatus.NOT_FOUND, message));
+            if (e.getCause() instanceof CirculationPipeline.AlreadySavedException) {
+                return replay(((CirculationPipeline.AlreadySavedException) e.getCause()).getRecord(), requestHash);
             }
-        }
-        // --------------------------------------------------------------------
 
-        // check validity of loaner
-        // --------------------------------------------------------------------
-        if (suppliedLoaner == null) {
-            String message = "No loaner specified";
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
+            String message = "Error while saving the transaction";
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(new ErrorBody(HttpStatus.INTERNAL_SERVER_ERROR, message));
         }
 
-        else {
-            // for loaners existing in system - find them before doing the transaction
-            Optional<Loaner> loanerOptional = this.loanerRepository.findById(suppliedLoaner.getLoanerId());
+        catch (TimeoutException e) {
+            // still queued or committing; retrying with the same Idempotency-Key is safe
+            String message = "Timed out while saving the transaction";
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(new ErrorBody(HttpStatus.SERVICE_UNAVAILABLE, message));
+        }
 
-            if (loanerOptional.isPresent()) {
-                // overwrite supplied details of the loaner
-                suppliedLoaner = loanerOptional.get();
-                t.setLoaner(suppliedLoaner);
-            }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
 
-            else {
-                String message = "Loaner not found";
-                return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                        .body(new ErrorBody(HttpStatus.NOT_FOUND, message));
-            }
+            String message = "Interrupted while saving the transaction";
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(new ErrorBody(HttpStatus.SERVICE_UNAVAILABLE, message));
         }
-        // --------------------------------------------------------------------
 
-        // check validity of books
-        // --------------------------------------------------------------------
-        if (suppliedTrnQtyList == null || suppliedTrnQtyList.isEmpty()) {
-            String message = "No books specified";
+        String message = "Transaction completed successfully";
+        return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
+    }
+
+    /**
+     * Endpoint for POST - save transactions of the same type for many loaners in
+     * one go, such as a class checking out its textbooks. The librarian, dates and
+     * books are validated once for the whole batch. Transactions that fail their
+     * checks, or find too few copies left because another desk borrowed them, are
+     * skipped with their own status, while the rest are saved together.
+     *
+     * The batch locks its loaners and then its books in id order, like the
+     * circulation lanes, and is run again if it loses a deadlock all the same.
+     *
+     * @param bt transactions in json
+     * @return outcome of the transaction of each loaner, in the order supplied
+     */
+    @PostMapping(path = "bulk")
+    @Transactional(Transactional.TxType.NOT_SUPPORTED)
+    public ResponseEntity<?> addBulkTransaction(
+            @RequestBody BulkTransaction bt,
+            @RequestParam(name = "borrowDate", required = false) String suppliedBorrowDateString,
+            @RequestParam(name = "dueDate", required = false) String suppliedDueDateString) {
+
+        ZonedDateTime now = ZonedDateTime.now();
+        List<Transaction> suppliedTransactions = bt.getTransactions();
+
+        if (suppliedTransactions == null || suppliedTransactions.isEmpty()) {
+            String message = "No transactions specified";
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
         }
 
-        else {
-            // BUGFIX: aggregate the quantities of the books - if the same book is specified
-            // more than once (different loanIds), the quantity is added up
-            List<TrnQuantities> aggregatedTrnQtyList = new ArrayList<>();
+        CirculationService.CirculationDates dates;
+        Librarian librarian;
 
-            for (TrnQuantities stq : suppliedTrnQtyList) {
-                boolean found = false;
+        try {
+            dates = this.circulationService.resolveDates(bt.getTransactionType(), suppliedBorrowDateString,
+                    suppliedDueDateString, now.toLocalDate());
 
-                for (TrnQuantities atq : aggregatedTrnQtyList) {
-                    if (stq.getBook().getBookId() == atq.getBook().getBookId()) {
-                        int oldCopies = atq.getCopies();
+            librarian = this.circulationService.findLibrarian(bt.getLibrarian());
+        }
 
-                        atq.setCopies(oldCopies + stq.getCopies());
-                        found = true;
-                        break;
-                    }
-                }
+        catch (CirculationService.CirculationException e) {
+            return ResponseEntity.status(e.getStatus()).body(new ErrorBody(e.getStatus(), e.getMessage()));
+        }
 
-                if (!found) {
-                    aggregatedTrnQtyList.add(stq);
-                }
-            }
+        List<Transaction> savedTransactions = new ArrayList<>();
+        List<BulkTransactionResult> results;
 
-            for (TrnQuantities tq : aggregatedTrnQtyList) {
-                if (tq.getCopies() < 1) {
-                    String message = "Invalid quantity specified";
-                    return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                            .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                }
+        try {
+            results = this.circulationPipeline.executeWithLockRetry(status -> {
+                savedTransactions.clear();
+                return this.saveBulk(bt, dates, librarian, now, savedTransactions);
+            });
+        }
 
-                Optional<Book> bookOptional = this.bookRepository.findById(tq.getBook().getBookId());
+        catch (PessimisticLockingFailureException e) {
+            String message = "Could not lock the loaners and books, try again";
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(new ErrorBody(HttpStatus.SERVICE_UNAVAILABLE, message));
+        }
 
-                if (bookOptional.isPresent()) {
-                    Book b = bookOptional.get();
+        // committed by now
+        for (Transaction savedTrn : savedTransactions) {
+            this.circulationService.publish(savedTrn);
+        }
 
-                    // cannot borrow if book has no copies left
-                    if (t.getTransactionType().equals(TransactionType.BORROW)
-                            && tq.getCopies() > b.getAvailableQuantity()) {
-                        String message = "Not enough copies available";
-                        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                                .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                    }
+        return ResponseEntity.status(HttpStatus.OK).body(results);
+    }
 
-                    // cannot return more than you borrowed
-                    else if (t.getTransactionType().equals(TransactionType.RETURN)
-                            && tq.getCopies() > suppliedLoaner.findOutstandingCopiesByBook(b)) {
-                        String message = "Cannot return more than what was borrowed";
-                        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                                .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                    }
+    /**
+     * Check and save the transactions of a bulk request; must run within a
+     * database transaction
+     *
+     * @param bt                transactions as supplied in the request
+     * @param dates             borrow and due dates
+     * @param librarian         librarian of the transactions
+     * @param now               time of the transactions
+     * @param savedTransactions to add the saved transactions to
+     * @return outcome of the transaction of each loaner, in the order supplied
+     */
+    private List<BulkTransactionResult> saveBulk(BulkTransaction bt, CirculationService.CirculationDates dates,
+            Librarian librarian, ZonedDateTime now, List<Transaction> savedTransactions) {
 
-                    // cannot extend partial number of copies of the same book
-                    else if (t.getTransactionType().equals(TransactionType.EXTEND)
-                            && tq.getCopies() != suppliedLoaner.findOutstandingCopiesByBook(b)) {
-                        String message = "Cannot extend partial number of copies";
-                        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                                .body(new ErrorBody(HttpStatus.BAD_REQUEST, message));
-                    }
+        List<Transaction> suppliedTransactions = bt.getTransactions();
 
-                    else {
-                        tq.setBook(b);
-                        checkedTrnQtyList.add(tq);
-                    }
-                }
+        // fetch all the loaners and books in one query each
+        Set<Long> loanerIds = new HashSet<>();
+        Set<Long> bookIds = new HashSet<>();
 
-                else {
-                    String message = "One or more books not found";
-                    return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                            .body(new ErrorBody(HttpStatus.NOT_FOUND, message));
+        for (Transaction eachTransaction : suppliedTransactions) {
+            if (eachTransaction.getLoaner() != null) {
+                loanerIds.add(eachTransaction.getLoaner().getLoanerId());
+            }
+
+            if (eachTransaction.getBookCopies() != null) {
+                for (TrnQuantities tq : eachTransaction.getBookCopies()) {
+                    if (tq.getBook() != null) {
+                        bookIds.add(tq.getBook().getBookId());
+                    }
                 }
             }
+        }
 
-            t.setBookCopies(checkedTrnQtyList);
+        Map<Long, Loaner> loanersById = new HashMap<>();
+
+        // loaners and then books, each in id order, as the circulation lanes lock them
+        if (!loanerIds.isEmpty()) {
+            for (Loaner eachLoaner : this.loanerRepository.findAllByIdForUpdate(loanerIds)) {
+                loanersById.put(eachLoaner.getLoanerId(), eachLoaner);
+            }
         }
-        // --------------------------------------------------------------------
 
-        // save transaction
-        Transaction savedTrn = this.transactionRepository.save(t);
+        this.circulationService.lockBooks(bookIds);
+        Map<Long, Book> booksById = this.circulationService.findBooks(bookIds);
 
-        // current loans
-        List<Loan> currentLoans = suppliedLoaner.getCurrentLoans();
+        // check every transaction against the same books, counting the copies
+        // claimed by the earlier ones
+        List<BulkTransactionResult> results = new ArrayList<>();
+        List<Transaction> checkedTransactions = new ArrayList<>();
+        List<BulkTransactionResult> checkedResults = new ArrayList<>();
+        Map<Long, Integer> claimed = new HashMap<>();
+        Set<Long> seenLoaners = new HashSet<>();
 
-        // save book quantities and transaction quantities
-        for (TrnQuantities ctq : checkedTrnQtyList) {
-            ctq.setTransaction(savedTrn);
+        for (Transaction eachTransaction : suppliedTransactions) {
+            Long loanerId = eachTransaction.getLoaner() == null ? null : eachTransaction.getLoaner().getLoanerId();
+            BulkTransactionResult result = new BulkTransactionResult(loanerId, null, HttpStatus.OK,
+                    "Transaction completed successfully");
+            results.add(result);
 
-            Book ctqb = ctq.getBook();
-            int initialQty = ctqb.getAvailableQuantity();
+            try {
+                if (loanerId == null) {
+                    throw new CirculationService.CirculationException(HttpStatus.BAD_REQUEST, "No loaner specified");
+                }
 
-            if (savedTrn.getTransactionType().equals(TransactionType.BORROW)) {
-                ctqb.setAvailableQuantity(initialQty - ctq.getCopies());
+                Loaner loaner = loanersById.get(loanerId);
 
-                Loan newLoan = new Loan(0L, suppliedLoaner, ctqb, ctq.getCopies(), suppliedBorrowDate, suppliedDueDate);
-                this.loanRepository.save(newLoan);
+                if (loaner == null) {
+                    throw new CirculationService.CirculationException(HttpStatus.NOT_FOUND, "Loaner not found");
+                }
 
-                currentLoans.add(newLoan);
-                // suppliedLoaner.setCurrentLoans(currentLoans); // redundant statement
-                this.loanerRepository.save(suppliedLoaner);
+                // the checks of a loaner read their loans as they were before the batch
+                if (!seenLoaners.add(loanerId)) {
+                    throw new CirculationService.CirculationException(HttpStatus.BAD_REQUEST,
+                            "Loaner specified more than once");
+                }
+
+                Map<Long, TrnQuantities> aggregatedTrnQty = this.circulationService
+                        .aggregate(eachTransaction.getBookCopies());
+
+                Transaction t = new Transaction(0L, now, bt.getTransactionType(), loaner, librarian,
+                        this.circulationService.checkQuantities(bt.getTransactionType(), loaner,
+                                aggregatedTrnQty.values(), booksById, claimed));
+
+                checkedTransactions.add(t);
+                checkedResults.add(result);
             }
 
-            else if (savedTrn.getTransactionType().equals(TransactionType.RETURN)) {
-                ctqb.setAvailableQuantity(initialQty + ctq.getCopies());
+            catch (CirculationService.CirculationException e) {
+                result.setStatus(e.getStatus());
+                result.setMessage(e.getMessage());
+            }
+        }
 
-                // this list will have only atmost one element
-                List<Loan> loansToBeDeleted = suppliedLoaner.updateLoans(ctqb, ctq.getCopies());
+        CirculationService.CirculationBatch batch = new CirculationService.CirculationBatch();
 
-                for (Loan deleteLoan : loansToBeDeleted) {
-                    this.loanRepository.delete(deleteLoan);
-                }
+        for (int i = 0; i < checkedTransactions.size(); i++) {
+            Transaction t = checkedTransactions.get(i);
+            BulkTransactionResult result = checkedResults.get(i);
 
-                this.loanerRepository.save(suppliedLoaner);
+            Map<Long, Integer> copiesByBook = new HashMap<>();
+            CirculationService.sumCopiesByBook(t.getBookCopies(), copiesByBook);
+
+            try {
+                this.circulationService.adjustAvailabilityOrUndo(bt.getTransactionType(), copiesByBook);
             }
 
-            else {
-                suppliedLoaner.updateLoanDueDate(ctqb, suppliedDueDate);
-                this.loanerRepository.save(suppliedLoaner);
+            catch (CirculationService.CirculationException e) {
+                result.setStatus(e.getStatus());
+                result.setMessage(e.getMessage());
+                continue;
             }
 
-            this.bookRepository.save(ctqb);
-            this.trnQuantitiesRepository.save(ctq);
+            Transaction savedTrn = this.circulationService.record(t, dates, batch);
+            result.setTransactionId(savedTrn.getTransactionId());
+            savedTransactions.add(savedTrn);
         }
 
-        String message = "Transaction completed successfully";
-        return ResponseEntity.status(HttpStatus.OK).body(new ErrorBody(HttpStatus.OK, message));
+        this.circulationService.persist(batch);
+        return results;
     }
 }
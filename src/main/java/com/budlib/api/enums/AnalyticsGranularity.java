@@ -0,0 +1,9 @@
+package com.budlib.api.enums;
+
+/**
+ * Represents the length of the periods the circulation analytics are grouped
+ * into - a day, a week starting on Monday, or a school term
+ */
+public enum AnalyticsGranularity {
+    DAY, WEEK, TERM;
+}
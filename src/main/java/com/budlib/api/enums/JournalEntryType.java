@@ -0,0 +1,9 @@
+package com.budlib.api.enums;
+
+/**
+ * Represents type of circulation journal entry - a transaction, or a change in
+ * the copies of a book made outside transactions
+ */
+public enum JournalEntryType {
+    BORROW, RETURN, EXTEND, ADJUST;
+}
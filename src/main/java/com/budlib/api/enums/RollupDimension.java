@@ -0,0 +1,9 @@
+package com.budlib.api.enums;
+
+/**
+ * Represents what the circulation rollups are broken down by - the whole
+ * library, library section, language, tag, book or loaner
+ */
+public enum RollupDimension {
+    ALL, SECTION, LANGUAGE, TAG, BOOK, LOANER;
+}
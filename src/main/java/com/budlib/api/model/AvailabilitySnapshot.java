@@ -0,0 +1,51 @@
+package com.budlib.api.model;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.ZonedDateTime;
+import lombok.*;
+
+/**
+ * Available copies of a book after all the journal entries up to an entry
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "availability_snapshot", indexes = {
+        @Index(name = "idx_snapshot_book_taken_at", columnList = "book_id, taken_at"),
+        @Index(name = "idx_snapshot_last_entry", columnList = "last_entry_id") })
+public class AvailabilitySnapshot implements Serializable {
+    /**
+     * Snapshot ID
+     */
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "snapshot_id")
+    private long snapshotId;
+
+    /**
+     * The book
+     */
+    @Column(name = "book_id")
+    private long bookId;
+
+    /**
+     * Last journal entry included in the snapshot
+     */
+    @Column(name = "last_entry_id")
+    private long lastEntryId;
+
+    /**
+     * Available copies of the book
+     */
+    @Column(name = "available_quantity")
+    private int availableQuantity;
+
+    /**
+     * Date Time the snapshot was taken
+     */
+    @Column(name = "taken_at")
+    private ZonedDateTime takenAt;
+}
@@ -1,10 +1,12 @@
 package com.budlib.api.model;
 
 import com.budlib.api.enums.*;
+import com.budlib.api.util.Isbn;
 import javax.persistence.*;
 import java.io.Serializable;
 import java.util.List;
 import lombok.*;
+import org.hibernate.annotations.BatchSize;
 import com.fasterxml.jackson.annotation.*;
 
 /**
@@ -15,13 +17,17 @@ import com.fasterxml.jackson.annotation.*;
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name = "book")
+@Table(name = "book", uniqueConstraints = @UniqueConstraint(name = "uk_book_isbn_key", columnNames = "isbn_key"), indexes = {
+        @Index(name = "idx_book_section_language", columnList = "library_section, language"),
+        @Index(name = "idx_book_available_quantity", columnList = "available_quantity") })
 public class Book implements Serializable {
     /**
      * Internal unique ID of the book
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "book_id")
+    @TableGenerator(name = "book_id", table = "id_sequence", pkColumnName = "sequence_name",
+            valueColumnName = "next_val", pkColumnValue = "book", allocationSize = 50)
     @Column(name = "book_id")
     private long bookId;
 
@@ -79,6 +85,14 @@ public class Book implements Serializable {
     @Column(name = "isbn_13")
     private String isbn_13;
 
+    /**
+     * Canonical ISBN 13 of the book as a number, derived from ISBN 13 or else from
+     * ISBN 10
+     */
+    @Column(name = "isbn_key")
+    @JsonIgnore
+    private Long isbnKey;
+
     /**
      * Section in the library branch where the book is usually placed
      */
@@ -121,6 +135,7 @@ public class Book implements Serializable {
      * Tags related to the book
      */
     @ManyToMany
+    @BatchSize(size = 100)
     @JoinTable(name = "book_tag", joinColumns = @JoinColumn(name = "book_id", referencedColumnName = "book_id", foreignKey = @ForeignKey(name = "fk_booktag_book")), inverseJoinColumns = @JoinColumn(name = "tag_id", referencedColumnName = "tag_id", foreignKey = @ForeignKey(name = "fk_booktag_tag")))
     private List<Tag> tags;
 
@@ -142,6 +157,13 @@ public class Book implements Serializable {
     @Column(name = "library_price")
     private Double priceLibrary;
 
+    /**
+     * Time the book was last added or updated, in milliseconds since the epoch
+     */
+    @Column(name = "modified_at")
+    @JsonIgnore
+    private Long modifiedAt;
+
     /**
      * Setter for ISBN 10 by removing special characters like dashes/hyphens
      *
@@ -155,6 +177,8 @@ public class Book implements Serializable {
         else {
             this.isbn_10 = isbn_10;
         }
+
+        this.updateIsbnKey();
     }
 
     /**
@@ -170,5 +194,42 @@ public class Book implements Serializable {
         else {
             this.isbn_13 = isbn_13;
         }
+
+        this.updateIsbnKey();
+    }
+
+    /**
+     * Derive the canonical ISBN 13 key from the ISBN 13, falling back to the ISBN
+     * 10
+     */
+    public void updateIsbnKey() {
+        this.isbnKey = this.computeIsbnKey();
+    }
+
+    /**
+     * Compute the canonical ISBN 13 key without setting it
+     *
+     * @return key from the ISBN 13, or else from the ISBN 10, null if neither is
+     *         valid
+     */
+    public Long computeIsbnKey() {
+        Long key = Isbn.toIsbn13Key(this.isbn_13);
+
+        if (key == null) {
+            key = Isbn.toIsbn13Key(this.isbn_10);
+        }
+
+        return key;
+    }
+
+    /**
+     * Derive the ISBN key and stamp the modification time before the book is
+     * saved
+     */
+    @PrePersist
+    @PreUpdate
+    public void beforeSave() {
+        this.updateIsbnKey();
+        this.modifiedAt = System.currentTimeMillis();
     }
 }
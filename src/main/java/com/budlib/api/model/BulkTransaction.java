@@ -0,0 +1,30 @@
+package com.budlib.api.model;
+
+import com.budlib.api.enums.*;
+import java.util.List;
+import lombok.*;
+
+/**
+ * Represents transactions of the same type for many loaners, such as a class
+ * checking out its textbooks
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkTransaction {
+    /**
+     * The type of the transactions - BORROW or RETURN or EXTEND
+     */
+    private TransactionType transactionType;
+
+    /**
+     * The librarian who facilitated the transactions
+     */
+    private Librarian librarian;
+
+    /**
+     * The loaners and their books; the type and librarian of each are ignored
+     */
+    private List<Transaction> transactions;
+}
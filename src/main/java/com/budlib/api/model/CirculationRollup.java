@@ -0,0 +1,61 @@
+package com.budlib.api.model;
+
+import com.budlib.api.enums.*;
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.LocalDate;
+import lombok.*;
+
+/**
+ * Daily count of transactions of one type, for the whole library or for one
+ * section, language, tag, book or loaner
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@IdClass(CirculationRollupId.class)
+@Table(name = "circulation_rollup")
+public class CirculationRollup implements Serializable {
+    /**
+     * Day of the transactions
+     */
+    @Id
+    @Column(name = "rollup_day")
+    private LocalDate day;
+
+    /**
+     * The type of transaction - BORROW or RETURN or EXTEND
+     */
+    @Id
+    @Column(name = "trn_type")
+    private TransactionType transactionType;
+
+    /**
+     * What the rollup is broken down by
+     */
+    @Id
+    @Column(name = "dimension")
+    private RollupDimension dimension;
+
+    /**
+     * Section, language, tag name, book id or loaner id; empty for the whole
+     * library
+     */
+    @Id
+    @Column(name = "dim_key")
+    private String dimensionKey;
+
+    /**
+     * Number of transactions
+     */
+    @Column(name = "trn_count")
+    private long transactionCount;
+
+    /**
+     * Copies of books in the transactions
+     */
+    @Column(name = "copies")
+    private long copies;
+}
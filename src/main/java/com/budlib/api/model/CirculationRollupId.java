@@ -0,0 +1,37 @@
+package com.budlib.api.model;
+
+import com.budlib.api.enums.*;
+import java.io.Serializable;
+import java.time.LocalDate;
+import lombok.*;
+
+/**
+ * Represents the day, transaction type and breakdown of a circulation rollup
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@EqualsAndHashCode
+public class CirculationRollupId implements Serializable {
+    /**
+     * Day of the transactions
+     */
+    private LocalDate day;
+
+    /**
+     * The type of transaction
+     */
+    private TransactionType transactionType;
+
+    /**
+     * What the rollup is broken down by
+     */
+    private RollupDimension dimension;
+
+    /**
+     * Section, language, tag name, book id or loaner id; empty for the whole
+     * library
+     */
+    private String dimensionKey;
+}
@@ -0,0 +1,79 @@
+package com.budlib.api.model;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.ZonedDateTime;
+import lombok.*;
+import org.springframework.data.domain.Persistable;
+
+/**
+ * Remembers a transaction saved with an Idempotency-Key, so that a retry of the
+ * request returns the original result instead of saving it again
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@Table(name = "idempotency_record", indexes = @Index(name = "idx_idem_created_at", columnList = "created_at"))
+public class IdempotencyRecord implements Serializable, Persistable<String> {
+    /**
+     * Idempotency-Key supplied by the client
+     */
+    @Id
+    @Column(name = "idem_key", length = 100)
+    private String idempotencyKey;
+
+    /**
+     * The transaction saved for the key
+     */
+    @Column(name = "trn_id")
+    private long transactionId;
+
+    /**
+     * SHA-256 of the request, as hex; a reused key must come with the same
+     * request
+     */
+    @Column(name = "request_hash", length = 64)
+    private String requestHash;
+
+    /**
+     * Date Time the transaction was saved
+     */
+    @Column(name = "created_at")
+    private ZonedDateTime createdAt;
+
+    /**
+     * Whether the record is yet to be saved; the key is assigned by the client
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean fresh = true;
+
+    public IdempotencyRecord(String idempotencyKey, long transactionId, String requestHash,
+            ZonedDateTime createdAt) {
+        this.idempotencyKey = idempotencyKey;
+        this.transactionId = transactionId;
+        this.requestHash = requestHash;
+        this.createdAt = createdAt;
+    }
+
+    @Override
+    public String getId() {
+        return this.idempotencyKey;
+    }
+
+    @Override
+    public boolean isNew() {
+        return this.fresh;
+    }
+
+    /**
+     * Mark the record as saved once it is loaded or persisted
+     */
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        this.fresh = false;
+    }
+}
@@ -0,0 +1,85 @@
+package com.budlib.api.model;
+
+import com.budlib.api.enums.*;
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import lombok.*;
+
+/**
+ * Entry of the append-only circulation journal. Entries are never updated, and
+ * keep the ids of the book and loaner rather than references, so that they
+ * outlive the rows they describe.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "circulation_journal", indexes = {
+        @Index(name = "idx_journal_book_entry", columnList = "book_id, entry_id") })
+public class JournalEntry implements Serializable {
+    /**
+     * Entry ID, increasing in the order entries are recorded
+     */
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "entry_id")
+    private long entryId;
+
+    /**
+     * The type of entry - BORROW or RETURN or EXTEND or ADJUST
+     */
+    @Column(name = "entry_type")
+    private JournalEntryType entryType;
+
+    /**
+     * The transaction which recorded the entry; null for adjustments and for the
+     * entries describing the state when the journal was started
+     */
+    @Column(name = "trn_id")
+    private Long transactionId;
+
+    /**
+     * The book involved
+     */
+    @Column(name = "book_id")
+    private long bookId;
+
+    /**
+     * The loaner involved; null for adjustments
+     */
+    @Column(name = "loaner_id")
+    private Long loanerId;
+
+    /**
+     * Copies of the book involved
+     */
+    @Column(name = "copies")
+    private int copies;
+
+    /**
+     * Change in the available copies of the book
+     */
+    @Column(name = "delta")
+    private int delta;
+
+    /**
+     * Date of borrowing; set for borrows
+     */
+    @Column(name = "borrow_date")
+    private LocalDate borrowDate;
+
+    /**
+     * Due date of the loan; set for borrows and extensions
+     */
+    @Column(name = "due_date")
+    private LocalDate dueDate;
+
+    /**
+     * Date Time the entry was recorded
+     */
+    @Column(name = "recorded_at")
+    private ZonedDateTime recordedAt;
+}
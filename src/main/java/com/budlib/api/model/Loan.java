@@ -13,13 +13,16 @@ import lombok.*;
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name = "loan")
+@Table(name = "loan", indexes = {
+        @Index(name = "idx_loan_due_date", columnList = "due_date, loan_id") })
 public class Loan implements Serializable {
     /**
      * Loan ID
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "loan_id")
+    @TableGenerator(name = "loan_id", table = "id_sequence", pkColumnName = "sequence_name",
+            valueColumnName = "next_val", pkColumnValue = "loan", allocationSize = 50)
     @Column(name = "loan_id")
     private long loanId;
 
@@ -4,8 +4,13 @@ import javax.persistence.*;
 import java.io.Serializable;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.time.LocalDate;
 import lombok.*;
+import org.hibernate.annotations.BatchSize;
 import com.fasterxml.jackson.annotation.*;
 
 /**
@@ -16,13 +21,15 @@ import com.fasterxml.jackson.annotation.*;
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name = "loaner")
+@Table(name = "loaner", indexes = { @Index(name = "idx_loaner_school_id", columnList = "school_id") })
 public class Loaner implements Serializable {
     /**
      * Unique ID of the loaner
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "loaner_id")
+    @TableGenerator(name = "loaner_id", table = "id_sequence", pkColumnName = "sequence_name",
+            valueColumnName = "next_val", pkColumnValue = "loaner", allocationSize = 50)
     @Column(name = "loaner_id")
     private long loanerId;
 
@@ -89,11 +96,65 @@ public class Loaner implements Serializable {
     private List<Transaction> transactionHistory;
 
     /**
-     * Current loans by the loaner
+     * Current loans by the loaner, in the order they were made; a set, so that a
+     * settled loan is removed without scanning the others
      */
     @OneToMany(mappedBy = "loaner")
+    @OrderBy("loanId")
     @JsonIgnore
-    private List<Loan> currentLoans;
+    @BatchSize(size = 100)
+    private Set<Loan> currentLoans;
+
+    /**
+     * Current loans by book id, built on first use; loans must be added with
+     * {@link Loaner#addLoan(Loan)} to keep it in step with currentLoans
+     */
+    @Transient
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<Long, List<Loan>> loansByBook;
+
+    /**
+     * Set the current loans of the loaner
+     *
+     * @param currentLoans current loans
+     */
+    public void setCurrentLoans(Set<Loan> currentLoans) {
+        this.currentLoans = currentLoans;
+        this.loansByBook = null;
+    }
+
+    /**
+     * Returns the current loans of the book, indexing the loans on first use
+     *
+     * @param bookId book id
+     * @return loans of the book, in the order of currentLoans
+     */
+    private List<Loan> findLoansByBook(long bookId) {
+        if (this.loansByBook == null) {
+            this.loansByBook = new HashMap<>();
+
+            for (Loan eachLoan : this.currentLoans) {
+                this.loansByBook.computeIfAbsent(eachLoan.getBook().getBookId(), k -> new ArrayList<>()).add(eachLoan);
+            }
+        }
+
+        return this.loansByBook.getOrDefault(bookId, Collections.emptyList());
+    }
+
+    /**
+     * Add a new loan of the loaner
+     *
+     * @param newLoan the loan
+     */
+    public void addLoan(Loan newLoan) {
+        this.currentLoans.add(newLoan);
+
+        if (this.loansByBook != null) {
+            this.loansByBook.computeIfAbsent(newLoan.getBook().getBookId(), k -> new ArrayList<>()).add(newLoan);
+        }
+    }
 
     /**
      * Returns the full name of the loaner
@@ -149,13 +210,8 @@ public class Loaner implements Serializable {
      * @return number of copies
      */
     public int findOutstandingCopiesByBook(Book returningBook) {
-        for (Loan eachLoan : this.currentLoans) {
-            if (eachLoan.getBook().getBookId() == returningBook.getBookId()) {
-                return eachLoan.getCopies();
-            }
-        }
-
-        return 0;
+        List<Loan> loans = this.findLoansByBook(returningBook.getBookId());
+        return loans.isEmpty() ? 0 : loans.get(0).getCopies();
     }
 
     /**
@@ -181,30 +237,28 @@ public class Loaner implements Serializable {
      * @return loans returned by the Loaner
      */
     public List<Loan> updateLoans(Book returningBook, int copiesReturned) {
-        List<Loan> updatedLoans = new ArrayList<>();
         List<Loan> settledLoans = new ArrayList<>();
 
-        for (Loan eachLoan : this.currentLoans) {
-            if (returningBook.getBookId() == eachLoan.getBook().getBookId()) {
-                int copiesStillLoaned = eachLoan.getCopies() - copiesReturned;
-
-                if (copiesStillLoaned <= 0) {
-                    settledLoans.add(eachLoan);
-                    continue;
-                }
-
-                else {
-                    eachLoan.setCopies(copiesStillLoaned);
-                    updatedLoans.add(eachLoan);
-                }
+        for (Loan eachLoan : this.findLoansByBook(returningBook.getBookId())) {
+            int copiesStillLoaned = eachLoan.getCopies() - copiesReturned;
+
+            if (copiesStillLoaned <= 0) {
+                settledLoans.add(eachLoan);
             }
 
             else {
-                updatedLoans.add(eachLoan);
+                eachLoan.setCopies(copiesStillLoaned);
             }
         }
 
-        this.currentLoans = updatedLoans;
+        if (!settledLoans.isEmpty()) {
+            for (Loan eachLoan : settledLoans) {
+                this.currentLoans.remove(eachLoan);
+            }
+
+            this.loansByBook.get(returningBook.getBookId()).removeAll(settledLoans);
+        }
+
         return settledLoans;
     }
 
@@ -212,13 +266,17 @@ public class Loaner implements Serializable {
      * Update the loans by the user after they extend a book
      *
      * @param extendingBook the book loaner returned
+     * @param newDueDate    the new due date
+     * @return the extended loan, or null if the book is not on loan
      */
-    public void updateLoanDueDate(Book extendingBook, LocalDate newDueDate) {
-        for (Loan eachLoan : this.currentLoans) {
-            if (extendingBook.getBookId() == eachLoan.getBook().getBookId()) {
-                eachLoan.setDueDate(newDueDate);
-                break;
-            }
+    public Loan updateLoanDueDate(Book extendingBook, LocalDate newDueDate) {
+        List<Loan> loans = this.findLoansByBook(extendingBook.getBookId());
+
+        if (!loans.isEmpty()) {
+            loans.get(0).setDueDate(newDueDate);
+            return loans.get(0);
         }
+
+        return null;
     }
 }
@@ -0,0 +1,68 @@
+package com.budlib.api.model;
+
+import com.budlib.api.enums.*;
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.ZonedDateTime;
+import lombok.*;
+
+/**
+ * Circulation event waiting to be delivered outside the application. Events
+ * are written in the database transaction of the circulation they describe,
+ * and marked once delivered.
+ */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "outbox_event", indexes = {
+        @Index(name = "idx_outbox_pending", columnList = "dispatched_at, event_id") })
+public class OutboxEvent implements Serializable {
+    /**
+     * Event ID, increasing in the order events are written; the events of a
+     * loaner are written one transaction at a time, so their ids follow the order
+     * of their commits
+     */
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "event_id")
+    private long eventId;
+
+    /**
+     * The type of transaction - BORROW or RETURN or EXTEND
+     */
+    @Column(name = "event_type")
+    private TransactionType eventType;
+
+    /**
+     * The transaction described
+     */
+    @Column(name = "trn_id")
+    private long transactionId;
+
+    /**
+     * The loaner involved
+     */
+    @Column(name = "loaner_id")
+    private long loanerId;
+
+    /**
+     * The event as JSON
+     */
+    @Lob
+    @Column(name = "payload")
+    private String payload;
+
+    /**
+     * Date Time the event was written
+     */
+    @Column(name = "created_at")
+    private ZonedDateTime createdAt;
+
+    /**
+     * Date Time the event was delivered; null until then
+     */
+    @Column(name = "dispatched_at")
+    private ZonedDateTime dispatchedAt;
+}
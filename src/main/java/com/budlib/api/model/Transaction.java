@@ -6,6 +6,7 @@ import java.io.Serializable;
 import java.time.ZonedDateTime;
 import java.util.List;
 import lombok.*;
+import org.hibernate.annotations.BatchSize;
 
 /**
  * Represents a transaction
@@ -15,13 +16,19 @@ import lombok.*;
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name = "transaction")
+@Table(name = "transaction", indexes = {
+        @Index(name = "idx_trn_datetime", columnList = "trn_datetime"),
+        @Index(name = "idx_trn_loaner_datetime", columnList = "loaner_id, trn_datetime"),
+        @Index(name = "idx_trn_librarian_datetime", columnList = "librarian_id, trn_datetime"),
+        @Index(name = "idx_trn_type_datetime", columnList = "trn_type, trn_datetime") })
 public class Transaction implements Serializable {
     /**
      * Transaction ID
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "transaction_id")
+    @TableGenerator(name = "transaction_id", table = "id_sequence", pkColumnName = "sequence_name",
+            valueColumnName = "next_val", pkColumnValue = "transaction", allocationSize = 50)
     @Column(name = "trn_id")
     private long transactionId;
 
@@ -56,5 +63,6 @@ public class Transaction implements Serializable {
      * The books involved in the transaction
      */
     @OneToMany(mappedBy = "transaction")
+    @BatchSize(size = 100)
     private List<TrnQuantities> bookCopies;
 }
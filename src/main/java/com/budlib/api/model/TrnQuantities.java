@@ -4,6 +4,7 @@ import javax.persistence.*;
 import java.io.Serializable;
 import lombok.*;
 import com.fasterxml.jackson.annotation.*;
+import org.springframework.data.domain.Persistable;
 
 /**
  * Represents quantity of books in the transaction
@@ -13,10 +14,10 @@ import com.fasterxml.jackson.annotation.*;
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
-@EqualsAndHashCode
+@EqualsAndHashCode(exclude = "fresh")
 @IdClass(TrnQuantitiesId.class)
 @Table(name = "trn_quantities")
-public class TrnQuantities implements Serializable {
+public class TrnQuantities implements Serializable, Persistable<TrnQuantitiesId> {
     /**
      * The transaction ID
      */
@@ -39,4 +40,37 @@ public class TrnQuantities implements Serializable {
      */
     @Column(name = "copies")
     private int copies;
+
+    /**
+     * Whether the quantity is yet to be saved. The id is assigned by the caller,
+     * so without this flag every save would first select the row to decide
+     * between insert and update.
+     */
+    @Transient
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean fresh = true;
+
+    @Override
+    @JsonIgnore
+    public TrnQuantitiesId getId() {
+        return new TrnQuantitiesId(this.transaction == null ? null : this.transaction.getTransactionId(),
+                this.book == null ? null : this.book.getBookId());
+    }
+
+    @Override
+    @JsonIgnore
+    public boolean isNew() {
+        return this.fresh;
+    }
+
+    /**
+     * Mark the quantity as saved once it is loaded or persisted
+     */
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        this.fresh = false;
+    }
 }
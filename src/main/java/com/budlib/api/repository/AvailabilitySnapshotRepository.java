@@ -0,0 +1,21 @@
+package com.budlib.api.repository;
+
+import com.budlib.api.model.AvailabilitySnapshot;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface AvailabilitySnapshotRepository extends JpaRepository<AvailabilitySnapshot, Long> {
+    Optional<AvailabilitySnapshot> findFirstByBookIdAndTakenAtLessThanEqualOrderByTakenAtDesc(long bookId,
+            ZonedDateTime takenAt);
+
+    @Query("SELECT MAX(s.lastEntryId) FROM AvailabilitySnapshot s")
+    Long findLastCoveredEntryId();
+
+    @Query("SELECT s FROM AvailabilitySnapshot s WHERE s.lastEntryId = (SELECT MAX(s2.lastEntryId) FROM AvailabilitySnapshot s2 WHERE s2.bookId = s.bookId)")
+    List<AvailabilitySnapshot> findLatestOfEachBook();
+}
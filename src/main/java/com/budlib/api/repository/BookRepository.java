@@ -1,10 +1,65 @@
 package com.budlib.api.repository;
 
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
 import com.budlib.api.model.Book;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public interface BookRepository extends JpaRepository<Book, Long> {
+public interface BookRepository extends JpaRepository<Book, Long>, JpaSpecificationExecutor<Book> {
+    Optional<Book> findByIsbnKey(Long isbnKey);
+
+    @Query("SELECT b FROM Book b WHERE b.bookId > :bookId AND b.isbnKey IS NULL"
+            + " AND (b.isbn_13 IS NOT NULL OR b.isbn_10 IS NOT NULL) ORDER BY b.bookId")
+    List<Book> findWithoutIsbnKeyAfter(@Param("bookId") long bookId, Pageable pageable);
+
+    @Query("SELECT b.isbnKey FROM Book b WHERE b.isbnKey IN :isbnKeys")
+    List<Long> findExistingIsbnKeys(@Param("isbnKeys") Collection<Long> isbnKeys);
+
+    @Query("SELECT b.bookId, t.tagId FROM Book b JOIN b.tags t")
+    List<Object[]> findAllBookTagPairs();
+
+    List<Book> findByBookIdGreaterThan(long bookId, Pageable pageable);
+
+    @Query("SELECT DISTINCT b FROM Book b LEFT JOIN FETCH b.tags WHERE b.bookId IN :bookIds")
+    List<Book> findAllWithTagsById(@Param("bookIds") Collection<Long> bookIds);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT b FROM Book b WHERE b.bookId IN :bookIds ORDER BY b.bookId")
+    List<Book> findAllByIdForUpdate(@Param("bookIds") Collection<Long> bookIds);
+
+    @Query("SELECT COALESCE(SUM(b.totalQuantity), 0) FROM Book b")
+    long sumTotalQuantity();
+
+    @Query("SELECT COALESCE(MAX(b.bookId), 0) FROM Book b")
+    long findMaxBookId();
+
+    @Query("SELECT COALESCE(MAX(b.modifiedAt), 0) FROM Book b")
+    long findMaxModifiedAt();
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+    @Query("SELECT b, t.tagName FROM Book b LEFT JOIN b.tags t WHERE b.bookId > :fromId AND b.bookId <= :toId ORDER BY b.bookId")
+    Stream<Object[]> streamWithTagNames(@Param("fromId") long fromId, @Param("toId") long toId);
+
+    @Modifying
+    @Query("UPDATE Book b SET b.availableQuantity = b.availableQuantity - :copies WHERE b.bookId = :bookId AND b.availableQuantity >= :copies")
+    int decrementAvailableQuantity(@Param("bookId") long bookId, @Param("copies") int copies);
 
+    @Modifying
+    @Query("UPDATE Book b SET b.availableQuantity = b.availableQuantity + :copies WHERE b.bookId = :bookId")
+    int incrementAvailableQuantity(@Param("bookId") long bookId, @Param("copies") int copies);
 }
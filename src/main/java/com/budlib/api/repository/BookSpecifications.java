@@ -0,0 +1,196 @@
+package com.budlib.api.repository;
+
+import com.budlib.api.enums.LibrarySection;
+import com.budlib.api.model.Book;
+import com.budlib.api.model.Tag;
+import com.budlib.api.util.Isbn;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.persistence.criteria.Join;
+import org.springframework.data.jpa.domain.Specification;
+
+/**
+ * Query predicates for searching books in the database
+ */
+public final class BookSpecifications {
+    private BookSpecifications() {
+    }
+
+    /**
+     * Escapes the LIKE wildcards in the search term and wraps it for a contains
+     * match
+     *
+     * @param sT search term
+     * @return lower case pattern for LIKE
+     */
+    static String containsPattern(String sT) {
+        String escaped = sT.toLowerCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        return "%" + escaped + "%";
+    }
+
+    /**
+     * Books with the given id
+     *
+     * @param id book id
+     * @return specification
+     */
+    public static Specification<Book> hasId(long id) {
+        return (root, query, cb) -> cb.equal(root.get("bookId"), id);
+    }
+
+    /**
+     * Books after the given id, for keyset pagination
+     *
+     * @param id id of the last book of the previous page
+     * @return specification
+     */
+    public static Specification<Book> idGreaterThan(long id) {
+        return (root, query, cb) -> cb.greaterThan(root.get("bookId"), id);
+    }
+
+    /**
+     * Books with title or subtitle containing the search term
+     *
+     * @param sT search term
+     * @return specification
+     */
+    public static Specification<Book> titleOrSubtitleContains(String sT) {
+        String pattern = containsPattern(sT);
+
+        return (root, query, cb) -> cb.or(
+                cb.like(cb.lower(root.get("title")), pattern, '\\'),
+                cb.like(cb.lower(root.get("subtitle")), pattern, '\\'));
+    }
+
+    /**
+     * Books with authors containing the search term
+     *
+     * @param sT search term
+     * @return specification
+     */
+    public static Specification<Book> authorContains(String sT) {
+        String pattern = containsPattern(sT);
+        return (root, query, cb) -> cb.like(cb.lower(root.get("authors")), pattern, '\\');
+    }
+
+    /**
+     * Books with publisher containing the search term
+     *
+     * @param sT search term
+     * @return specification
+     */
+    public static Specification<Book> publisherContains(String sT) {
+        String pattern = containsPattern(sT);
+        return (root, query, cb) -> cb.like(cb.lower(root.get("publisher")), pattern, '\\');
+    }
+
+    /**
+     * Books with language containing the search term
+     *
+     * @param sT search term
+     * @return specification
+     */
+    public static Specification<Book> languageContains(String sT) {
+        String pattern = containsPattern(sT);
+        return (root, query, cb) -> cb.like(cb.lower(root.get("language")), pattern, '\\');
+    }
+
+    /**
+     * Books in the given language. The comparison is left to the column collation,
+     * which is case insensitive in MySQL by default, so that the index is used.
+     *
+     * @param language language of the book
+     * @return specification
+     */
+    public static Specification<Book> languageEquals(String language) {
+        return (root, query, cb) -> cb.equal(root.get("language"), language);
+    }
+
+    /**
+     * Books with at least the given number of copies available
+     *
+     * @param copies minimum available copies
+     * @return specification
+     */
+    public static Specification<Book> availableAtLeast(int copies) {
+        return (root, query, cb) -> cb.greaterThanOrEqualTo(root.get("availableQuantity"), copies);
+    }
+
+    /**
+     * Books with the ISBN matching the search term. ISBN 10 and ISBN 13 search
+     * terms both match through the canonical ISBN 13 key.
+     *
+     * @param sT search term
+     * @return specification
+     */
+    public static Specification<Book> isbnMatches(String sT) {
+        Long isbnKey = Isbn.toIsbn13Key(sT);
+
+        if (isbnKey == null) {
+            return (root, query, cb) -> cb.disjunction();
+        }
+
+        return (root, query, cb) -> cb.equal(root.get("isbnKey"), isbnKey);
+    }
+
+    /**
+     * Books placed in the library sections whose name contains the search term
+     *
+     * @param sT search term
+     * @return specification
+     */
+    public static Specification<Book> librarySectionContains(String sT) {
+        String searchTerm = sT.toLowerCase();
+        List<LibrarySection> sections = new ArrayList<>();
+
+        // sections are stored as ordinals, so match the names here and query by value
+        for (LibrarySection eachSection : LibrarySection.values()) {
+            if (eachSection.toString().toLowerCase().contains(searchTerm)) {
+                sections.add(eachSection);
+            }
+        }
+
+        if (sections.isEmpty()) {
+            return (root, query, cb) -> cb.disjunction();
+        }
+
+        return (root, query, cb) -> root.get("librarySection").in(sections);
+    }
+
+    /**
+     * Books having at least one of the tags
+     *
+     * @param tagIds tag ids
+     * @return specification
+     */
+    public static Specification<Book> hasAnyTag(Collection<Long> tagIds) {
+        if (tagIds.isEmpty()) {
+            return (root, query, cb) -> cb.disjunction();
+        }
+
+        return (root, query, cb) -> {
+            // a book may have more than one of the tags
+            query.distinct(true);
+            Join<Book, Tag> tags = root.join("tags");
+            return tags.get("tagId").in(tagIds);
+        };
+    }
+
+    /**
+     * Books having a tag with name containing the search term
+     *
+     * @param sT search term
+     * @return specification
+     */
+    public static Specification<Book> tagNameContains(String sT) {
+        String pattern = containsPattern(sT);
+
+        return (root, query, cb) -> {
+            // a book may match with more than one of its tags
+            query.distinct(true);
+            Join<Book, Tag> tags = root.join("tags");
+            return cb.like(cb.lower(tags.get("tagName")), pattern, '\\');
+        };
+    }
+}
@@ -0,0 +1,11 @@
+package com.budlib.api.repository;
+
+import com.budlib.api.model.CirculationRollup;
+import com.budlib.api.model.CirculationRollupId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface CirculationRollupRepository extends JpaRepository<CirculationRollup, CirculationRollupId> {
+
+}
@@ -0,0 +1,25 @@
+package com.budlib.api.repository;
+
+import com.budlib.api.model.JournalEntry;
+import java.time.ZonedDateTime;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface JournalEntryRepository extends JpaRepository<JournalEntry, Long> {
+    List<JournalEntry> findByEntryIdGreaterThan(long entryId, Pageable pageable);
+
+    @Query("SELECT MAX(e.entryId) FROM JournalEntry e WHERE e.recordedAt < :before")
+    Long findLastEntryIdRecordedBefore(@Param("before") ZonedDateTime before);
+
+    @Query("SELECT e.bookId, SUM(e.delta) FROM JournalEntry e WHERE e.entryId > :afterEntryId AND e.entryId <= :uptoEntryId GROUP BY e.bookId")
+    List<Object[]> sumDeltaByBook(@Param("afterEntryId") long afterEntryId, @Param("uptoEntryId") long uptoEntryId);
+
+    @Query("SELECT COALESCE(SUM(e.delta), 0) FROM JournalEntry e WHERE e.bookId = :bookId AND e.entryId > :afterEntryId AND e.recordedAt < :before")
+    long sumDeltaOfBook(@Param("bookId") long bookId, @Param("afterEntryId") long afterEntryId,
+            @Param("before") ZonedDateTime before);
+}
@@ -1,10 +1,12 @@
 package com.budlib.api.repository;
 
 import com.budlib.api.model.Librarian;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface LibrarianRepository extends JpaRepository<Librarian, Long> {
-
+    List<Librarian> findByLibrarianIdGreaterThan(long librarianId, Pageable pageable);
 }
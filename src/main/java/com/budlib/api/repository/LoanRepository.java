@@ -1,10 +1,41 @@
 package com.budlib.api.repository;
 
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
 import com.budlib.api.model.Loan;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.persistence.QueryHint;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface LoanRepository extends JpaRepository<Loan, Long> {
+    Page<Loan> findByDueDateBefore(LocalDate date, Pageable pageable);
+
+    List<Loan> findByDueDateBefore(LocalDate date, Sort sort);
+
+    Page<Loan> findByDueDateBetween(LocalDate from, LocalDate to, Pageable pageable);
+
+    List<Loan> findByDueDateBetween(LocalDate from, LocalDate to, Sort sort);
+
+    @Query("SELECT COALESCE(MAX(l.loanId), 0) FROM Loan l")
+    long findMaxLoanId();
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+    @Query("SELECT l FROM Loan l JOIN FETCH l.loaner JOIN FETCH l.book WHERE l.loanId > :fromId AND l.loanId <= :toId ORDER BY l.loanId")
+    Stream<Loan> streamWithLoanerAndBook(@Param("fromId") long fromId, @Param("toId") long toId);
+
+    @Query("SELECT l.loanId, l.dueDate FROM Loan l")
+    List<Object[]> findAllDueDates();
 
+    @Query("SELECT COALESCE(SUM(l.copies), 0) FROM Loan l")
+    long sumCopies();
 }
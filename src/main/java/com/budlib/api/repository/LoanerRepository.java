@@ -1,10 +1,41 @@
 package com.budlib.api.repository;
 
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
 import com.budlib.api.model.Loaner;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import javax.persistence.QueryHint;
+import javax.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface LoanerRepository extends JpaRepository<Loaner, Long> {
+    List<Loaner> findByLoanerIdGreaterThan(long loanerId, Pageable pageable);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT l FROM Loaner l WHERE l.loanerId = :loanerId")
+    Optional<Loaner> findByIdForUpdate(@Param("loanerId") long loanerId);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT l FROM Loaner l WHERE l.loanerId IN :loanerIds ORDER BY l.loanerId")
+    List<Loaner> findAllByIdForUpdate(@Param("loanerIds") Collection<Long> loanerIds);
+
+    @Query("SELECT l.schoolId FROM Loaner l WHERE l.schoolId IN :schoolIds")
+    List<String> findExistingSchoolIds(@Param("schoolIds") Collection<String> schoolIds);
+
+    @Query("SELECT COALESCE(MAX(l.loanerId), 0) FROM Loaner l")
+    long findMaxLoanerId();
 
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+    @Query("SELECT l FROM Loaner l WHERE l.loanerId > :fromId AND l.loanerId <= :toId ORDER BY l.loanerId")
+    Stream<Loaner> stream(@Param("fromId") long fromId, @Param("toId") long toId);
 }
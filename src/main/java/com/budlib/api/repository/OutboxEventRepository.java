@@ -0,0 +1,25 @@
+package com.budlib.api.repository;
+
+import com.budlib.api.model.OutboxEvent;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface OutboxEventRepository extends JpaRepository<OutboxEvent, Long> {
+    List<OutboxEvent> findByDispatchedAtIsNullOrderByEventIdAsc(Pageable pageable);
+
+    @Modifying
+    @Query("UPDATE OutboxEvent e SET e.dispatchedAt = :dispatchedAt WHERE e.eventId IN :eventIds")
+    int markDispatched(@Param("eventIds") Collection<Long> eventIds, @Param("dispatchedAt") ZonedDateTime dispatchedAt);
+
+    @Modifying
+    @Query("DELETE FROM OutboxEvent e WHERE e.dispatchedAt < :before")
+    int deleteDispatchedBefore(@Param("before") ZonedDateTime before);
+}
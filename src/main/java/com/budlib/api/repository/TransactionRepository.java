@@ -1,10 +1,25 @@
 package com.budlib.api.repository;
 
 import com.budlib.api.model.Transaction;
+import java.util.List;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public interface TransactionRepository extends JpaRepository<Transaction, Long> {
+public interface TransactionRepository
+        extends JpaRepository<Transaction, Long>, JpaSpecificationExecutor<Transaction> {
+    List<Transaction> findByTransactionIdGreaterThan(long transactionId, Pageable pageable);
 
+    @Override
+    @EntityGraph(attributePaths = { "loaner", "librarian" })
+    List<Transaction> findAll(Specification<Transaction> spec);
+
+    @Override
+    @EntityGraph(attributePaths = { "loaner", "librarian" })
+    Page<Transaction> findAll(Specification<Transaction> spec, Pageable pageable);
 }
@@ -0,0 +1,64 @@
+package com.budlib.api.repository;
+
+import com.budlib.api.enums.TransactionType;
+import com.budlib.api.model.Transaction;
+import java.time.ZonedDateTime;
+import org.springframework.data.jpa.domain.Specification;
+
+/**
+ * Query predicates for searching transactions in the database
+ */
+public final class TransactionSpecifications {
+    private TransactionSpecifications() {
+    }
+
+    /**
+     * Transactions of the loaner
+     *
+     * @param loanerId loaner id
+     * @return specification
+     */
+    public static Specification<Transaction> loanerIs(long loanerId) {
+        return (root, query, cb) -> cb.equal(root.get("loaner").get("loanerId"), loanerId);
+    }
+
+    /**
+     * Transactions facilitated by the librarian
+     *
+     * @param librarianId librarian id
+     * @return specification
+     */
+    public static Specification<Transaction> librarianIs(long librarianId) {
+        return (root, query, cb) -> cb.equal(root.get("librarian").get("librarianId"), librarianId);
+    }
+
+    /**
+     * Transactions of the type
+     *
+     * @param type transaction type
+     * @return specification
+     */
+    public static Specification<Transaction> typeIs(TransactionType type) {
+        return (root, query, cb) -> cb.equal(root.get("transactionType"), type);
+    }
+
+    /**
+     * Transactions at or after the date time
+     *
+     * @param from start of the range, inclusive
+     * @return specification
+     */
+    public static Specification<Transaction> occurredFrom(ZonedDateTime from) {
+        return (root, query, cb) -> cb.greaterThanOrEqualTo(root.get("transactionDateTime"), from);
+    }
+
+    /**
+     * Transactions before the date time
+     *
+     * @param until end of the range, exclusive
+     * @return specification
+     */
+    public static Specification<Transaction> occurredBefore(ZonedDateTime until) {
+        return (root, query, cb) -> cb.lessThan(root.get("transactionDateTime"), until);
+    }
+}
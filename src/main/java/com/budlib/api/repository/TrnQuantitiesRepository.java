@@ -1,11 +1,28 @@
 package com.budlib.api.repository;
 
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+import com.budlib.api.enums.TransactionType;
 import com.budlib.api.model.TrnQuantities;
 import com.budlib.api.model.TrnQuantitiesId;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.persistence.QueryHint;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface TrnQuantitiesRepository extends JpaRepository<TrnQuantities, TrnQuantitiesId> {
+    @Query("SELECT tq.book.bookId, SUM(tq.copies) FROM TrnQuantities tq WHERE tq.transaction.transactionType = :type GROUP BY tq.book.bookId")
+    List<Object[]> sumCopiesByBook(@Param("type") TransactionType type);
+
+    @Query("SELECT COALESCE(MAX(tq.transaction.transactionId), 0) FROM TrnQuantities tq")
+    long findMaxTransactionId();
 
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+    @Query("SELECT tq FROM TrnQuantities tq JOIN FETCH tq.transaction t LEFT JOIN FETCH t.librarian LEFT JOIN FETCH t.loaner JOIN FETCH tq.book b WHERE t.transactionId > :fromId AND t.transactionId <= :toId ORDER BY t.transactionId, b.bookId")
+    Stream<TrnQuantities> streamWithTransactionAndBook(@Param("fromId") long fromId, @Param("toId") long toId);
 }
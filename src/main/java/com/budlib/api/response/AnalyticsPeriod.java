@@ -0,0 +1,45 @@
+package com.budlib.api.response;
+
+import com.budlib.api.enums.*;
+import java.time.LocalDate;
+import java.util.Map;
+import lombok.*;
+
+/**
+ * Circulation counts of one day, week or term, by transaction type
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class AnalyticsPeriod {
+    /**
+     * First day of the period
+     */
+    private LocalDate start;
+
+    /**
+     * Last day of the period
+     */
+    private LocalDate end;
+
+    /**
+     * Counts for the whole library
+     */
+    private Map<TransactionType, TrnCounts> totals;
+
+    /**
+     * Counts by library section
+     */
+    private Map<String, Map<TransactionType, TrnCounts>> bySection;
+
+    /**
+     * Counts by language of the book
+     */
+    private Map<String, Map<TransactionType, TrnCounts>> byLanguage;
+
+    /**
+     * Counts by tag; a book with several tags counts for each of them
+     */
+    private Map<String, Map<TransactionType, TrnCounts>> byTag;
+}
@@ -0,0 +1,45 @@
+package com.budlib.api.response;
+
+import com.budlib.api.enums.*;
+import java.time.LocalDate;
+import java.util.List;
+import lombok.*;
+
+/**
+ * Circulation analytics of a date range
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class AnalyticsReport {
+    /**
+     * First day of the range
+     */
+    private LocalDate from;
+
+    /**
+     * Last day of the range
+     */
+    private LocalDate to;
+
+    /**
+     * Length of the periods
+     */
+    private AnalyticsGranularity granularity;
+
+    /**
+     * Periods with any circulation, in order
+     */
+    private List<AnalyticsPeriod> periods;
+
+    /**
+     * Most borrowed books in the range, by copies
+     */
+    private List<RankedCount> topBooks;
+
+    /**
+     * Loaners who borrowed most in the range, by copies
+     */
+    private List<RankedCount> topBorrowers;
+}
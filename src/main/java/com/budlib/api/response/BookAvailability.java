@@ -0,0 +1,28 @@
+package com.budlib.api.response;
+
+import java.time.ZonedDateTime;
+import lombok.*;
+
+/**
+ * Available copies of a book at a point in time
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class BookAvailability {
+    /**
+     * ID of the book
+     */
+    private long bookId;
+
+    /**
+     * The point in time
+     */
+    private ZonedDateTime at;
+
+    /**
+     * Available copies of the book
+     */
+    private int availableQuantity;
+}
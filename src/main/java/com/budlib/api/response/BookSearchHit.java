@@ -0,0 +1,37 @@
+package com.budlib.api.response;
+
+import lombok.*;
+
+/**
+ * Represents a book matched by the full-text search, ranked by relevance
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class BookSearchHit {
+    /**
+     * Internal unique ID of the book
+     */
+    private long bookId;
+
+    /**
+     * Title of the book
+     */
+    private String title;
+
+    /**
+     * Subtitle of the book
+     */
+    private String subtitle;
+
+    /**
+     * Authors of the book
+     */
+    private String authors;
+
+    /**
+     * Relevance of the book to the search query; higher is better
+     */
+    private float score;
+}
@@ -0,0 +1,33 @@
+package com.budlib.api.response;
+
+import org.springframework.http.HttpStatus;
+import lombok.*;
+
+/**
+ * Outcome of the transaction of one loaner in a bulk transaction
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkTransactionResult {
+    /**
+     * ID of the loaner
+     */
+    private Long loanerId;
+
+    /**
+     * ID of the saved transaction; null if it was rejected
+     */
+    private Long transactionId;
+
+    /**
+     * HTTP Status the transaction would have on its own
+     */
+    private HttpStatus status;
+
+    /**
+     * The message to provide explanation
+     */
+    private String message;
+}
@@ -0,0 +1,68 @@
+package com.budlib.api.response;
+
+import com.budlib.api.enums.*;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.List;
+import lombok.*;
+
+/**
+ * Circulation event as delivered from the outbox
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class CirculationEvent {
+    /**
+     * ID of the transaction
+     */
+    private long transactionId;
+
+    /**
+     * The type of transaction - BORROW or RETURN or EXTEND
+     */
+    private TransactionType transactionType;
+
+    /**
+     * ID of the loaner
+     */
+    private long loanerId;
+
+    /**
+     * ID of the librarian who recorded the transaction
+     */
+    private long librarianId;
+
+    /**
+     * Date Time of the transaction
+     */
+    private ZonedDateTime transactionDateTime;
+
+    /**
+     * Date of borrowing; set for borrows
+     */
+    private LocalDate borrowDate;
+
+    /**
+     * Due date of the loans; set for borrows and extensions
+     */
+    private LocalDate dueDate;
+
+    /**
+     * Copies of each book involved
+     */
+    private List<BookCopies> books;
+
+    /**
+     * Copies of one book in the transaction
+     */
+    @Getter
+    @Setter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class BookCopies {
+        private long bookId;
+        private int copies;
+    }
+}
@@ -0,0 +1,22 @@
+package com.budlib.api.response;
+
+import lombok.*;
+
+/**
+ * Outcome of rebuilding the circulation from the journal
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class JournalRebuildResult {
+    /**
+     * Number of books whose available copies were corrected
+     */
+    private int booksCorrected;
+
+    /**
+     * Number of loans after the rebuild
+     */
+    private int loansRebuilt;
+}
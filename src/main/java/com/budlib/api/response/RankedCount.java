@@ -0,0 +1,32 @@
+package com.budlib.api.response;
+
+import lombok.*;
+
+/**
+ * Book or borrower in a top-N list of the circulation analytics
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class RankedCount {
+    /**
+     * ID of the book or loaner
+     */
+    private long id;
+
+    /**
+     * Title of the book or full name of the loaner; null if deleted since
+     */
+    private String name;
+
+    /**
+     * Number of borrow transactions
+     */
+    private long transactions;
+
+    /**
+     * Copies borrowed
+     */
+    private long copies;
+}
@@ -0,0 +1,27 @@
+package com.budlib.api.response;
+
+import lombok.*;
+
+/**
+ * Represents an autocomplete suggestion for the book search box
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class Suggestion {
+    /**
+     * Text to be suggested
+     */
+    private String text;
+
+    /**
+     * What the text is - TITLE or AUTHOR or TAG
+     */
+    private String kind;
+
+    /**
+     * Number of copies borrowed of the books having this text
+     */
+    private long borrowCount;
+}
@@ -0,0 +1,27 @@
+package com.budlib.api.response;
+
+import lombok.*;
+
+/**
+ * Represents the number of books carrying a tag
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class TagCount {
+    /**
+     * Internal unique ID of the tag
+     */
+    private long tagId;
+
+    /**
+     * String representation of the tag
+     */
+    private String tagName;
+
+    /**
+     * Number of books having the tag
+     */
+    private long bookCount;
+}
@@ -0,0 +1,22 @@
+package com.budlib.api.response;
+
+import lombok.*;
+
+/**
+ * Number of transactions and copies of books in them
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class TrnCounts {
+    /**
+     * Number of transactions
+     */
+    private long transactions;
+
+    /**
+     * Copies of books in the transactions
+     */
+    private long copies;
+}
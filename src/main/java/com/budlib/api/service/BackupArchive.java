@@ -0,0 +1,284 @@
+package com.budlib.api.service;
+
+import com.budlib.api.repository.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.apache.commons.csv.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Writes the books, loaners, loans and transactions exports as the CSV entries
+ * of one ZIP archive. Each table is split into ranges of ids, and the ranges of
+ * all the tables are exported in parallel on a fixed set of threads, each range
+ * in its own read-only database transaction, into temporary files. The archive
+ * takes the ranges in order, so the rows of each entry are in the order of
+ * their ids, and only a few ranges per thread are exported ahead of it.
+ *
+ * The ranges are read in separate database transactions, so the archive is not
+ * a single snapshot; rows added after the export starts are left out.
+ */
+@Service
+public class BackupArchive {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupArchive.class);
+
+    @Autowired
+    private CsvExports csvExports;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    @Autowired
+    private LoanRepository loanRepository;
+
+    @Autowired
+    private TrnQuantitiesRepository trnQuantitiesRepository;
+
+    @Value("${budlib.export.threads}")
+    private int threads;
+
+    @Value("${budlib.export.range-size}")
+    private long rangeSize;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Export of a table, written as one entry of the archive
+     */
+    private static class Part {
+        private final String entryName;
+        private final String[] headers;
+        private final CsvExports.RangeExport export;
+        private final List<Range> ranges = new ArrayList<>();
+
+        private Part(String entryName, String[] headers, CsvExports.RangeExport export) {
+            this.entryName = entryName;
+            this.headers = headers;
+            this.export = export;
+        }
+    }
+
+    /**
+     * Range of ids of a table, exported into a temporary file
+     */
+    private static class Range {
+        private final Part part;
+        private final long fromId;
+        private final long toId;
+        private Path file;
+        private Future<?> result;
+
+        private Range(Part part, long fromId, long toId) {
+            this.part = part;
+            this.fromId = fromId;
+            this.toId = toId;
+        }
+    }
+
+    /**
+     * Start the threads exporting the ranges
+     */
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadCount = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "backup-export-" + threadCount.getAndIncrement()));
+    }
+
+    /**
+     * Stop the threads, abandoning any export in progress
+     */
+    @PreDestroy
+    public void stop() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Write the archive
+     *
+     * @param outputStream where to write the ZIP
+     * @throws IOException if an export or writing fails
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        List<Part> parts = new ArrayList<>();
+        parts.add(this.partOf("budlib_books_export.csv", CsvExports.BOOK_HEADERS, this.csvExports::writeBooks,
+                this.bookRepository.findMaxBookId()));
+        parts.add(this.partOf("budlib_loaners_export.csv", CsvExports.LOANER_HEADERS, this.csvExports::writeLoaners,
+                this.loanerRepository.findMaxLoanerId()));
+        parts.add(this.partOf("budlib_outstanding_loans_export.csv", CsvExports.LOAN_HEADERS,
+                this.csvExports::writeLoans, this.loanRepository.findMaxLoanId()));
+        parts.add(this.partOf("budlib_transactions_export.csv", CsvExports.TRANSACTION_HEADERS,
+                this.csvExports::writeTransactions, this.trnQuantitiesRepository.findMaxTransactionId()));
+
+        List<Range> ranges = new ArrayList<>();
+
+        for (Part eachPart : parts) {
+            ranges.addAll(eachPart.ranges);
+        }
+
+        // ranges exported ahead of the one being written, bounding the temporary files
+        int window = this.threads * 2;
+        int submitted = 0;
+        int written = 0;
+
+        ZipOutputStream zip = new ZipOutputStream(outputStream, StandardCharsets.UTF_8);
+        zip.setMethod(ZipOutputStream.DEFLATED);
+        zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+
+        try {
+            for (Part eachPart : parts) {
+                zip.putNextEntry(new ZipEntry(eachPart.entryName));
+
+                Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+                new CSVPrinter(writer, CSVFormat.DEFAULT).printRecord((Object[]) eachPart.headers);
+                writer.flush();
+
+                for (Range eachRange : eachPart.ranges) {
+                    while (submitted < ranges.size() && submitted < written + window) {
+                        this.submit(ranges.get(submitted));
+                        submitted++;
+                    }
+
+                    this.await(eachRange);
+                    Files.copy(eachRange.file, zip);
+                    Files.delete(eachRange.file);
+                    written++;
+                }
+
+                zip.closeEntry();
+            }
+
+            zip.finish();
+        }
+
+        finally {
+            for (int i = written; i < submitted; i++) {
+                this.discard(ranges.get(i));
+            }
+        }
+    }
+
+    /**
+     * Split the table into ranges of ids
+     *
+     * @param entryName name of the entry in the archive
+     * @param headers   CSV headers
+     * @param export    export of a range of the table
+     * @param maxId     highest id in the table
+     * @return the export of the table
+     */
+    private Part partOf(String entryName, String[] headers, CsvExports.RangeExport export, long maxId) {
+        Part part = new Part(entryName, headers, export);
+
+        for (long fromId = 0; fromId < maxId; fromId += this.rangeSize) {
+            part.ranges.add(new Range(part, fromId, Math.min(fromId + this.rangeSize, maxId)));
+        }
+
+        return part;
+    }
+
+    /**
+     * Start exporting the range into a temporary file
+     *
+     * @param range range to export
+     * @throws IOException if the file cannot be created or the threads are
+     *                     stopped
+     */
+    private void submit(Range range) throws IOException {
+        range.file = Files.createTempFile("budlib_backup", ".csv");
+
+        try {
+            range.result = this.executor.submit(() -> {
+                try (Writer writer = Files.newBufferedWriter(range.file, StandardCharsets.UTF_8)) {
+                    range.part.export.writeTo(writer, range.fromId, range.toId);
+                }
+
+                return null;
+            });
+        }
+
+        catch (RejectedExecutionException e) {
+            Files.deleteIfExists(range.file);
+            throw new IOException("Backup export is stopped", e);
+        }
+    }
+
+    /**
+     * Wait until the range is exported
+     *
+     * @param range range being exported
+     * @throws IOException if the export failed
+     */
+    private void await(Range range) throws IOException {
+        try {
+            range.result.get();
+        }
+
+        catch (ExecutionException e) {
+            throw new IOException("Error while exporting " + range.part.entryName, e.getCause());
+        }
+
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting " + range.part.entryName, e);
+        }
+    }
+
+    /**
+     * Cancel the export of the range and delete its file, once it is no longer
+     * being written
+     *
+     * @param range range not written to the archive
+     */
+    private void discard(Range range) {
+        if (!range.result.cancel(false)) {
+            try {
+                range.result.get();
+            }
+
+            catch (ExecutionException | CancellationException e) {
+                // the archive is abandoned anyway
+            }
+
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            Files.deleteIfExists(range.file);
+        }
+
+        catch (IOException e) {
+            LOGGER.warn("Could not delete " + range.file, e);
+        }
+    }
+}
@@ -0,0 +1,612 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import com.budlib.api.response.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Full-text index of the book catalog kept on the local disk. The index is
+ * updated whenever a book is added, updated or deleted, and serves ranked
+ * searches without touching the book table.
+ *
+ * Each commit of the index records the highest book id and the latest
+ * modification time of the books it holds, so that a restart can tell whether
+ * books were added, updated or deleted while the index was not being updated.
+ */
+@Service
+public class BookSearchIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookSearchIndex.class);
+
+    private static final String FIELD_ID = "bookId";
+    private static final String FIELD_TITLE = "title";
+    private static final String FIELD_SUBTITLE = "subtitle";
+    private static final String FIELD_AUTHORS = "authors";
+    private static final String FIELD_PUBLISHER = "publisher";
+    private static final String FIELD_LANGUAGE = "language";
+    private static final String FIELD_TAGS = "tags";
+
+    /**
+     * Searchable fields and their weight in the ranking
+     */
+    private static final Map<String, Float> FIELD_BOOSTS = Map.of(
+            FIELD_TITLE, 4.0f,
+            FIELD_AUTHORS, 3.0f,
+            FIELD_SUBTITLE, 2.0f,
+            FIELD_TAGS, 2.0f,
+            FIELD_PUBLISHER, 1.0f,
+            FIELD_LANGUAGE, 1.0f);
+
+    /**
+     * Number of books read from the database at once while rebuilding
+     */
+    private static final int REBUILD_PAGE_SIZE = 1000;
+
+    /**
+     * Keys of the commit user data holding the high-water marks of the index
+     */
+    private static final String COMMIT_MAX_BOOK_ID = "maxBookId";
+    private static final String COMMIT_MAX_MODIFIED_AT = "maxModifiedAt";
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${budlib.search.index-dir}")
+    private String indexDir;
+
+    private final Analyzer analyzer = new BookAnalyzer();
+
+    private Directory directory;
+
+    private volatile IndexWriter writer;
+
+    private volatile SearcherManager searcherManager;
+
+    /**
+     * Updates of single books share the read lock; a rebuild holds the write lock
+     * from reading the book table until the new index is committed and visible
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicLong maxBookId = new AtomicLong();
+
+    private final AtomicLong maxModifiedAt = new AtomicLong();
+
+    /**
+     * Tokenizes on word boundaries, lower cases and folds accented characters so
+     * that "Éloïse" matches "eloise"
+     */
+    private static class BookAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            Tokenizer source = new StandardTokenizer();
+            TokenStream result = new LowerCaseFilter(source);
+            result = new ASCIIFoldingFilter(result);
+            return new TokenStreamComponents(source, result);
+        }
+    }
+
+    /**
+     * Open the index on the disk, creating it if it does not exist
+     *
+     * @throws IOException if the index directory cannot be opened
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        Path indexPath = Paths.get(this.indexDir);
+        Files.createDirectories(indexPath);
+
+        this.directory = FSDirectory.open(indexPath);
+        this.openWriter();
+    }
+
+    /**
+     * Open the writer and the searchers on the last commit of the index, and
+     * load the high-water marks it recorded
+     *
+     * @throws IOException if the index cannot be opened
+     */
+    private void openWriter() throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(this.analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+
+        this.writer = new IndexWriter(this.directory, config);
+        this.searcherManager = new SearcherManager(this.writer, null);
+
+        // high-water marks of the last commit; an index without them is rebuilt
+        this.maxBookId.set(0);
+        this.maxModifiedAt.set(0);
+        Iterable<Map.Entry<String, String>> commitData = this.writer.getLiveCommitData();
+
+        if (commitData != null) {
+            for (Map.Entry<String, String> eachEntry : commitData) {
+                if (eachEntry.getKey().equals(COMMIT_MAX_BOOK_ID)) {
+                    this.maxBookId.set(Long.parseLong(eachEntry.getValue()));
+                }
+
+                else if (eachEntry.getKey().equals(COMMIT_MAX_MODIFIED_AT)) {
+                    this.maxModifiedAt.set(Long.parseLong(eachEntry.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuild the index at startup only if it is out of step with the book table:
+     * a book was deleted if the counts differ, added if the highest ids differ and
+     * updated if the latest modification times differ
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildIfStale() {
+        // updates of single books wait, so they cannot hide the changes that were missed
+        this.lock.writeLock().lock();
+
+        try {
+            long indexedBooks = this.writer.getDocStats().numDocs;
+            long storedBooks = this.bookRepository.count();
+            long storedMaxBookId = this.bookRepository.findMaxBookId();
+            long storedMaxModifiedAt = this.bookRepository.findMaxModifiedAt();
+
+            if (indexedBooks != storedBooks || this.maxBookId.get() != storedMaxBookId
+                    || this.maxModifiedAt.get() != storedMaxModifiedAt) {
+
+                LOGGER.info("Book index has {} books up to id {} modified at {} but database has {} up to id {}"
+                        + " modified at {}, rebuilding", indexedBooks, this.maxBookId.get(),
+                        this.maxModifiedAt.get(), storedBooks, storedMaxBookId, storedMaxModifiedAt);
+
+                this.rebuild();
+            }
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the index and build it again from the book table, reading the books
+     * in pages by id. Updates of single books wait until the rebuilt index is
+     * committed and visible to searches, and are then applied on top of it;
+     * searches see the old index until then.
+     *
+     * If the rebuild fails, the index is rolled back to its last commit, so that
+     * the next periodic commit does not publish a half built index.
+     */
+    public void rebuild() {
+        TransactionTemplate template = new TransactionTemplate(this.transactionManager);
+        template.setReadOnly(true);
+
+        this.lock.writeLock().lock();
+
+        try {
+            // keep the updates made so far should the rebuild be rolled back
+            this.commitChanges();
+
+            template.executeWithoutResult(status -> {
+                try {
+                    this.writer.deleteAll();
+
+                    long rebuiltMaxBookId = 0;
+                    long rebuiltMaxModifiedAt = 0;
+                    Pageable pageable = PageRequest.of(0, REBUILD_PAGE_SIZE, Sort.by("bookId"));
+                    List<Book> page;
+
+                    do {
+                        page = this.bookRepository.findByBookIdGreaterThan(rebuiltMaxBookId, pageable);
+
+                        for (Book eachBook : page) {
+                            this.writer.addDocument(this.toDocument(eachBook));
+                            rebuiltMaxBookId = Math.max(rebuiltMaxBookId, eachBook.getBookId());
+
+                            if (eachBook.getModifiedAt() != null) {
+                                rebuiltMaxModifiedAt = Math.max(rebuiltMaxModifiedAt, eachBook.getModifiedAt());
+                            }
+                        }
+
+                        // books already indexed need not stay in the persistence context
+                        this.entityManager.clear();
+                    } while (page.size() == REBUILD_PAGE_SIZE);
+
+                    this.maxBookId.set(rebuiltMaxBookId);
+                    this.maxModifiedAt.set(rebuiltMaxModifiedAt);
+
+                    this.setCommitData();
+                    this.writer.commit();
+                    this.searcherManager.maybeRefresh();
+                }
+
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        catch (RuntimeException e) {
+            this.rollback();
+            throw e;
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Commit the pending changes of the index along with its high-water marks
+     */
+    private void commitChanges() {
+        try {
+            if (this.writer.hasUncommittedChanges()) {
+                this.setCommitData();
+                this.writer.commit();
+            }
+        }
+
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Discard the changes since the last commit and open the index again on it.
+     * Rolling back closes the writer, so the searchers are replaced as well.
+     */
+    private void rollback() {
+        SearcherManager oldSearcherManager = this.searcherManager;
+
+        try {
+            this.writer.rollback();
+            this.openWriter();
+            oldSearcherManager.close();
+        }
+
+        catch (IOException e) {
+            LOGGER.error("Could not roll back book index", e);
+        }
+    }
+
+    /**
+     * Record the high-water marks in the next commit of the index. The marks are
+     * raised after the documents are added, so a commit never records a book it
+     * does not hold.
+     */
+    private void setCommitData() {
+        this.writer.setLiveCommitData(Map.of(
+                COMMIT_MAX_BOOK_ID, String.valueOf(this.maxBookId.get()),
+                COMMIT_MAX_MODIFIED_AT, String.valueOf(this.maxModifiedAt.get())).entrySet());
+    }
+
+    /**
+     * Raise the high-water marks with the book that was indexed
+     *
+     * @param b book that was indexed
+     */
+    private void raiseMarks(Book b) {
+        this.maxBookId.accumulateAndGet(b.getBookId(), Math::max);
+
+        if (b.getModifiedAt() != null) {
+            this.maxModifiedAt.accumulateAndGet(b.getModifiedAt(), Math::max);
+        }
+    }
+
+    /**
+     * Convert the book into a document of the index
+     *
+     * @param b book to be indexed
+     * @return document representing the book
+     */
+    private Document toDocument(Book b) {
+        Document doc = new Document();
+
+        doc.add(new StringField(FIELD_ID, String.valueOf(b.getBookId()), Field.Store.YES));
+        addText(doc, FIELD_TITLE, b.getTitle(), Field.Store.YES);
+        addText(doc, FIELD_SUBTITLE, b.getSubtitle(), Field.Store.YES);
+        addText(doc, FIELD_AUTHORS, b.getAuthors(), Field.Store.YES);
+        addText(doc, FIELD_PUBLISHER, b.getPublisher(), Field.Store.NO);
+        addText(doc, FIELD_LANGUAGE, b.getLanguage(), Field.Store.NO);
+
+        if (b.getTags() != null) {
+            for (Tag eachTag : b.getTags()) {
+                addText(doc, FIELD_TAGS, eachTag.getTagName(), Field.Store.NO);
+            }
+        }
+
+        return doc;
+    }
+
+    private static void addText(Document doc, String field, String value, Field.Store store) {
+        if (value != null && !value.equals("")) {
+            doc.add(new TextField(field, value, store));
+        }
+    }
+
+    /**
+     * Add or replace the book in the index
+     *
+     * @param b book that was saved
+     */
+    public void index(Book b) {
+        this.lock.readLock().lock();
+
+        try {
+            this.writer.updateDocument(new Term(FIELD_ID, String.valueOf(b.getBookId())), this.toDocument(b));
+            this.raiseMarks(b);
+            this.searcherManager.maybeRefresh();
+        }
+
+        catch (IOException e) {
+            LOGGER.error("Could not index book {}", b.getBookId(), e);
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add or replace the books in the index
+     *
+     * @param books books that were saved
+     */
+    public void index(List<Book> books) {
+        this.lock.readLock().lock();
+
+        try {
+            for (Book eachBook : books) {
+                this.writer.updateDocument(new Term(FIELD_ID, String.valueOf(eachBook.getBookId())),
+                        this.toDocument(eachBook));
+                this.raiseMarks(eachBook);
+            }
+
+            this.searcherManager.maybeRefresh();
+        }
+
+        catch (IOException e) {
+            LOGGER.error("Could not index {} books", books.size(), e);
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the book from the index
+     *
+     * @param bookId id of the book that was deleted
+     */
+    public void remove(long bookId) {
+        this.lock.readLock().lock();
+
+        try {
+            this.writer.deleteDocuments(new Term(FIELD_ID, String.valueOf(bookId)));
+            this.searcherManager.maybeRefresh();
+        }
+
+        catch (IOException e) {
+            LOGGER.error("Could not remove book {} from index", bookId, e);
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Split the text into the terms as they are stored in the index
+     *
+     * @param text text to be analyzed
+     * @return list of terms
+     */
+    private List<String> analyze(String text) throws IOException {
+        List<String> terms = new ArrayList<>();
+
+        try (TokenStream stream = this.analyzer.tokenStream(FIELD_TITLE, text)) {
+            CharTermAttribute termAttribute = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+
+            while (stream.incrementToken()) {
+                terms.add(termAttribute.toString());
+            }
+
+            stream.end();
+        }
+
+        return terms;
+    }
+
+    /**
+     * Number of edits allowed for the term in a fuzzy search; short terms allow
+     * fewer edits as they would otherwise match almost anything
+     *
+     * @param term     analyzed term
+     * @param maxEdits maximum number of edits requested
+     * @return number of edits allowed
+     */
+    private static int allowedEdits(String term, int maxEdits) {
+        if (term.length() < 3) {
+            return 0;
+        }
+
+        else if (term.length() < 6) {
+            return Math.min(1, maxEdits);
+        }
+
+        else {
+            return Math.min(LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE, maxEdits);
+        }
+    }
+
+    /**
+     * Build the query where every term must match at least one field. A term
+     * matches a field exactly or as a prefix of a word, the exact match ranking
+     * higher. In a fuzzy search a term may also match words within the allowed
+     * number of edits, ranking lower than the exact and prefix matches.
+     *
+     * @param terms    analyzed terms of the search text
+     * @param maxEdits maximum number of edits for fuzzy matching; 0 for none
+     * @return query for the index
+     */
+    private Query buildQuery(List<String> terms, int maxEdits) {
+        BooleanQuery.Builder allTerms = new BooleanQuery.Builder();
+
+        for (String eachTerm : terms) {
+            BooleanQuery.Builder anyField = new BooleanQuery.Builder();
+
+            for (Map.Entry<String, Float> eachField : FIELD_BOOSTS.entrySet()) {
+                Term t = new Term(eachField.getKey(), eachTerm);
+                float boost = eachField.getValue();
+
+                anyField.add(new BoostQuery(new TermQuery(t), boost * 2), BooleanClause.Occur.SHOULD);
+                anyField.add(new BoostQuery(new PrefixQuery(t), boost), BooleanClause.Occur.SHOULD);
+
+                int edits = allowedEdits(eachTerm, maxEdits);
+
+                if (edits > 0) {
+                    // the first letter is rarely mistyped, and fixing it keeps the query fast
+                    anyField.add(new BoostQuery(new FuzzyQuery(t, edits, 1), boost / 2), BooleanClause.Occur.SHOULD);
+                }
+            }
+
+            allTerms.add(anyField.build(), BooleanClause.Occur.MUST);
+        }
+
+        return allTerms.build();
+    }
+
+    /**
+     * Search the index for books matching the text
+     *
+     * @param text     free text to search in title, subtitle, authors, publisher,
+     *                 language and tags
+     * @param limit    maximum number of books to return
+     * @param maxEdits maximum number of edits per word to tolerate misspellings;
+     *                 0 for exact and prefix matches only
+     * @return books ranked by relevance
+     * @throws IOException if the index cannot be read
+     */
+    public List<BookSearchHit> search(String text, int limit, int maxEdits) throws IOException {
+        List<BookSearchHit> hits = new ArrayList<>();
+        List<String> terms = this.analyze(text);
+
+        if (terms.isEmpty()) {
+            return hits;
+        }
+
+        // released to the manager it came from, should a rollback replace it
+        SearcherManager manager = this.searcherManager;
+        IndexSearcher searcher = manager.acquire();
+
+        try {
+            TopDocs topDocs = searcher.search(this.buildQuery(terms, maxEdits), limit);
+
+            for (ScoreDoc eachScoreDoc : topDocs.scoreDocs) {
+                Document doc = searcher.doc(eachScoreDoc.doc);
+
+                hits.add(new BookSearchHit(Long.parseLong(doc.get(FIELD_ID)), doc.get(FIELD_TITLE),
+                        doc.get(FIELD_SUBTITLE), doc.get(FIELD_AUTHORS), eachScoreDoc.score));
+            }
+
+            return hits;
+        }
+
+        finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * Persist the changes to the disk periodically; searches see the changes
+     * right away irrespective of the commit
+     */
+    @Scheduled(fixedDelayString = "${budlib.search.commit-interval-ms}")
+    public void commit() {
+        this.lock.readLock().lock();
+
+        try {
+            this.commitChanges();
+        }
+
+        catch (UncheckedIOException e) {
+            LOGGER.error("Could not commit book index", e);
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Commit the pending changes and release the index files
+     *
+     * @throws IOException if the index cannot be written
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        this.searcherManager.close();
+        this.setCommitData();
+        this.writer.close();
+        this.directory.close();
+    }
+}
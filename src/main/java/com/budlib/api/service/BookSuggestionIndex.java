@@ -0,0 +1,599 @@
+package com.budlib.api.service;
+
+import com.budlib.api.enums.*;
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import com.budlib.api.response.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * In-memory prefix trie over book titles, authors and tag names for the
+ * autocomplete of the search box. Every node caches its top suggestions ranked
+ * by the number of copies borrowed, and the caches along a path are recomputed
+ * only after something under that path changes. Keys are cut at a fixed depth,
+ * and a query longer than that filters the entries at the deepest node.
+ *
+ * Changes recompute the caches before they release the write lock, so queries
+ * only read the trie and run in parallel under the read lock.
+ */
+@Service
+public class BookSuggestionIndex {
+    /**
+     * Maximum number of words of a text from which a suggestion can be matched,
+     * so that "potter" suggests "harry potter"
+     */
+    private static final int MAX_WORD_STARTS = 8;
+
+    /**
+     * Length at which the keys are cut, bounding the depth of the trie
+     */
+    private static final int MAX_KEY_DEPTH = 32;
+
+    /**
+     * Number of books read from the database at once while rebuilding
+     */
+    private static final int REBUILD_PAGE_SIZE = 1000;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private TrnQuantitiesRepository trnQuantitiesRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Number of suggestions cached at every node, which is also the most a query
+     * can ask for
+     */
+    @Value("${budlib.suggest.top-k}")
+    private int topK;
+
+    /**
+     * A distinct text that can be suggested, shared by all the books having it
+     */
+    private static class Entry {
+        private final String text;
+        private final String kind;
+        private final List<String> keys;
+        private final Set<Long> bookIds = new HashSet<>();
+        private long borrowCount;
+
+        private Entry(String text, String kind, List<String> keys) {
+            this.text = text;
+            this.kind = kind;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * Node of the trie. Most nodes have a single child and no entries, so the
+     * map and the list are only created when needed.
+     */
+    private static class Node {
+        private Map<Character, Node> children;
+        private List<Entry> entries;
+        private List<Entry> top = Collections.emptyList();
+        private boolean dirty;
+
+        private Node child(char c) {
+            return this.children == null ? null : this.children.get(c);
+        }
+
+        private boolean isEmpty() {
+            return (this.entries == null || this.entries.isEmpty())
+                    && (this.children == null || this.children.isEmpty());
+        }
+    }
+
+    private static final Comparator<Entry> RANKING = Comparator.comparingLong((Entry e) -> e.borrowCount).reversed()
+            .thenComparing(Comparator.comparingInt((Entry e) -> e.bookIds.size()).reversed())
+            .thenComparing(e -> e.text);
+
+    private Node root = new Node();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Entries by kind and normalized text
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Entries of each book, to detach them when the book changes
+     */
+    private final Map<Long, List<Entry>> entriesByBook = new HashMap<>();
+
+    /**
+     * Copies borrowed of each book
+     */
+    private final Map<Long, Long> borrowCounts = new HashMap<>();
+
+    /**
+     * Build the trie at startup from the books and their borrow counts
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        Map<Long, Long> counts = new HashMap<>();
+
+        for (Object[] eachRow : this.trnQuantitiesRepository.sumCopiesByBook(TransactionType.BORROW)) {
+            counts.put((Long) eachRow[0], (Long) eachRow[1]);
+        }
+
+        this.lock.writeLock().lock();
+
+        try {
+            this.root = new Node();
+            this.entries.clear();
+            this.entriesByBook.clear();
+            this.borrowCounts.clear();
+            this.borrowCounts.putAll(counts);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+
+        TransactionTemplate template = new TransactionTemplate(this.transactionManager);
+        template.setReadOnly(true);
+
+        template.executeWithoutResult(status -> {
+            PageRequest pageRequest = PageRequest.of(0, REBUILD_PAGE_SIZE, Sort.by("bookId"));
+            Page<Book> page;
+
+            do {
+                page = this.bookRepository.findAll(pageRequest);
+                this.putBooks(page.getContent());
+
+                this.entityManager.clear();
+                pageRequest = pageRequest.next();
+            } while (page.hasNext());
+        });
+    }
+
+    /**
+     * Lower cases and collapses the whitespace of the text
+     *
+     * @param text text to be normalized
+     * @return normalized text
+     */
+    private static String normalize(String text) {
+        return text.toLowerCase().trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * The text itself and the text from the start of each following word
+     *
+     * @param normalized normalized text
+     * @return list of texts
+     */
+    private static List<String> wordStartsOf(String normalized) {
+        List<String> wordStarts = new ArrayList<>();
+        wordStarts.add(normalized);
+
+        int from = 0;
+
+        while (wordStarts.size() < MAX_WORD_STARTS) {
+            int space = normalized.indexOf(' ', from);
+
+            if (space < 0) {
+                break;
+            }
+
+            wordStarts.add(normalized.substring(space + 1));
+            from = space + 1;
+        }
+
+        return wordStarts;
+    }
+
+    /**
+     * Keys under which the text is reachable: its word starts, cut at the depth
+     * of the trie
+     *
+     * @param normalized normalized text
+     * @return list of distinct keys
+     */
+    private static List<String> keysOf(String normalized) {
+        Set<String> keys = new LinkedHashSet<>();
+
+        for (String eachWordStart : wordStartsOf(normalized)) {
+            keys.add(eachWordStart.length() > MAX_KEY_DEPTH ? eachWordStart.substring(0, MAX_KEY_DEPTH)
+                    : eachWordStart);
+        }
+
+        return new ArrayList<>(keys);
+    }
+
+    /**
+     * Check whether the text or one of its words starts with the key
+     *
+     * @param e   entry
+     * @param key normalized text typed so far
+     * @return true if the entry matches
+     */
+    private static boolean matches(Entry e, String key) {
+        for (String eachWordStart : wordStartsOf(normalize(e.text))) {
+            if (eachWordStart.startsWith(key)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Texts of the book that can be suggested, as pairs of kind and text
+     *
+     * @param b book
+     * @return list of kind and text pairs
+     */
+    private static List<String[]> textsOf(Book b) {
+        List<String[]> texts = new ArrayList<>();
+
+        if (b.getTitle() != null && !b.getTitle().isBlank()) {
+            texts.add(new String[] { "TITLE", b.getTitle().trim() });
+        }
+
+        // multiple authors are separated by slashes or semicolons; commas separate
+        // the last and first names
+        if (b.getAuthors() != null) {
+            for (String eachAuthor : b.getAuthors().split("[/;]")) {
+                if (!eachAuthor.isBlank()) {
+                    texts.add(new String[] { "AUTHOR", eachAuthor.trim() });
+                }
+            }
+        }
+
+        if (b.getTags() != null) {
+            for (Tag eachTag : b.getTags()) {
+                if (eachTag.getTagName() != null && !eachTag.getTagName().isBlank()) {
+                    texts.add(new String[] { "TAG", eachTag.getTagName().trim() });
+                }
+            }
+        }
+
+        return texts;
+    }
+
+    /**
+     * Mark the nodes along the keys of the entry as needing recomputation
+     */
+    private void markDirty(Entry e) {
+        for (String eachKey : e.keys) {
+            Node node = this.root;
+            node.dirty = true;
+
+            for (int i = 0; i < eachKey.length() && node != null; i++) {
+                node = node.child(eachKey.charAt(i));
+
+                if (node != null) {
+                    node.dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Place the entry at the end of each of its keys
+     */
+    private void attach(Entry e) {
+        for (String eachKey : e.keys) {
+            Node node = this.root;
+
+            for (int i = 0; i < eachKey.length(); i++) {
+                if (node.children == null) {
+                    node.children = new HashMap<>(4);
+                }
+
+                node = node.children.computeIfAbsent(eachKey.charAt(i), k -> new Node());
+            }
+
+            if (node.entries == null) {
+                node.entries = new ArrayList<>(1);
+            }
+
+            node.entries.add(e);
+        }
+
+        this.markDirty(e);
+    }
+
+    /**
+     * Remove the entry from the end of each of its keys, pruning empty branches
+     */
+    private void detach(Entry e) {
+        this.markDirty(e);
+
+        for (String eachKey : e.keys) {
+            Deque<Node> path = new ArrayDeque<>();
+            Node node = this.root;
+
+            for (int i = 0; i < eachKey.length() && node != null; i++) {
+                path.push(node);
+                node = node.child(eachKey.charAt(i));
+            }
+
+            if (node == null || node.entries == null) {
+                continue;
+            }
+
+            node.entries.remove(e);
+
+            if (node.entries.isEmpty()) {
+                node.entries = null;
+            }
+
+            for (int i = eachKey.length() - 1; i >= 0; i--) {
+                if (!node.isEmpty()) {
+                    break;
+                }
+
+                Node parent = path.pop();
+                parent.children.remove(eachKey.charAt(i));
+
+                if (parent.children.isEmpty()) {
+                    parent.children = null;
+                }
+
+                node = parent;
+            }
+        }
+    }
+
+    /**
+     * Detach the book from its entries; caller must hold the write lock
+     */
+    private void deleteBook(long bookId) {
+        List<Entry> oldEntries = this.entriesByBook.remove(bookId);
+
+        if (oldEntries == null) {
+            return;
+        }
+
+        long borrowed = this.borrowCounts.getOrDefault(bookId, 0L);
+
+        for (Entry eachEntry : oldEntries) {
+            eachEntry.bookIds.remove(bookId);
+            eachEntry.borrowCount -= borrowed;
+
+            if (eachEntry.bookIds.isEmpty()) {
+                this.entries.remove(eachEntry.kind + ":" + normalize(eachEntry.text));
+                this.detach(eachEntry);
+            }
+
+            else {
+                this.markDirty(eachEntry);
+            }
+        }
+    }
+
+    /**
+     * Attach the book to the entries of its texts; caller must hold the write lock
+     */
+    private void insertBook(Book b) {
+        long borrowed = this.borrowCounts.getOrDefault(b.getBookId(), 0L);
+        Set<Entry> bookEntries = new LinkedHashSet<>();
+
+        for (String[] eachText : textsOf(b)) {
+            String normalized = normalize(eachText[1]);
+            String entryKey = eachText[0] + ":" + normalized;
+            Entry e = this.entries.get(entryKey);
+
+            if (e == null) {
+                e = new Entry(eachText[1], eachText[0], keysOf(normalized));
+                this.entries.put(entryKey, e);
+                this.attach(e);
+            }
+
+            if (bookEntries.add(e) && e.bookIds.add(b.getBookId())) {
+                e.borrowCount += borrowed;
+                this.markDirty(e);
+            }
+        }
+
+        this.entriesByBook.put(b.getBookId(), new ArrayList<>(bookEntries));
+    }
+
+    /**
+     * Add or replace the book in the trie
+     *
+     * @param b book that was saved
+     */
+    public void putBook(Book b) {
+        this.putBooks(List.of(b));
+    }
+
+    /**
+     * Add or replace the books in the trie
+     *
+     * @param books books that were saved
+     */
+    public void putBooks(Collection<Book> books) {
+        this.lock.writeLock().lock();
+
+        try {
+            for (Book eachBook : books) {
+                this.deleteBook(eachBook.getBookId());
+                this.insertBook(eachBook);
+            }
+
+            this.refresh(this.root);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the book from the trie
+     *
+     * @param bookId id of the book that was deleted
+     */
+    public void removeBook(long bookId) {
+        this.lock.writeLock().lock();
+
+        try {
+            this.deleteBook(bookId);
+            this.borrowCounts.remove(bookId);
+            this.refresh(this.root);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Raise the rank of the texts of the book after it is borrowed
+     *
+     * @param bookId id of the book borrowed
+     * @param copies number of copies borrowed
+     */
+    public void recordBorrow(long bookId, int copies) {
+        this.lock.writeLock().lock();
+
+        try {
+            this.borrowCounts.merge(bookId, (long) copies, Long::sum);
+
+            for (Entry eachEntry : this.entriesByBook.getOrDefault(bookId, Collections.emptyList())) {
+                eachEntry.borrowCount += copies;
+                this.markDirty(eachEntry);
+            }
+
+            this.refresh(this.root);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Recompute the cached top suggestions of the dirty nodes under the node. The
+     * top suggestions of a node are among its own entries and the top suggestions
+     * of its children. Caller must hold the write lock.
+     */
+    private void refresh(Node node) {
+        if (!node.dirty) {
+            return;
+        }
+
+        Map<Entry, Boolean> candidates = new IdentityHashMap<>();
+
+        if (node.entries != null) {
+            for (Entry eachEntry : node.entries) {
+                candidates.put(eachEntry, Boolean.TRUE);
+            }
+        }
+
+        if (node.children != null) {
+            for (Node eachChild : node.children.values()) {
+                this.refresh(eachChild);
+
+                for (Entry eachEntry : eachChild.top) {
+                    candidates.put(eachEntry, Boolean.TRUE);
+                }
+            }
+        }
+
+        List<Entry> ranked = new ArrayList<>(candidates.keySet());
+        ranked.sort(RANKING);
+
+        node.top = ranked.size() > this.topK ? new ArrayList<>(ranked.subList(0, this.topK)) : ranked;
+        node.dirty = false;
+    }
+
+    /**
+     * Suggest the titles, authors and tags starting with the prefix, or having a
+     * word starting with it
+     *
+     * @param prefix text typed so far
+     * @param limit  maximum number of suggestions
+     * @return suggestions, most borrowed first
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+        List<Suggestion> suggestions = new ArrayList<>();
+        String key = normalize(prefix);
+
+        if (key.isEmpty()) {
+            return suggestions;
+        }
+
+        this.lock.readLock().lock();
+
+        try {
+            Node node = this.root;
+
+            for (int i = 0; i < key.length() && i < MAX_KEY_DEPTH && node != null; i++) {
+                node = node.child(key.charAt(i));
+            }
+
+            if (node == null) {
+                return suggestions;
+            }
+
+            List<Entry> ranked = node.top;
+
+            // the keys are cut at the deepest node, so its entries are filtered on the rest
+            if (key.length() > MAX_KEY_DEPTH) {
+                ranked = new ArrayList<>();
+
+                if (node.entries != null) {
+                    for (Entry eachEntry : node.entries) {
+                        if (matches(eachEntry, key)) {
+                            ranked.add(eachEntry);
+                        }
+                    }
+                }
+
+                ranked.sort(RANKING);
+            }
+
+            for (Entry eachEntry : ranked) {
+                if (suggestions.size() >= limit) {
+                    break;
+                }
+
+                suggestions.add(new Suggestion(eachEntry.text, eachEntry.kind, eachEntry.borrowCount));
+            }
+
+            return suggestions;
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,720 @@
+package com.budlib.api.service;
+
+import com.budlib.api.enums.*;
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import com.budlib.api.response.*;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.MonthDay;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Daily rollups of the circulation - transactions and copies per day and
+ * transaction type, for the whole library and broken down by section,
+ * language, tag, book and loaner. The rollups are held in memory, so reports
+ * never touch the transaction tables, and saved in the circulation_rollup
+ * table.
+ *
+ * Each saved transaction adds to the rollups once its database transaction
+ * commits. The additions are written to the table in the background, a batch
+ * at a time. The table can be rebuilt from the transactions, which is done at
+ * startup when it is empty.
+ *
+ * A rebuild reads the transactions from one snapshot, taken while no
+ * circulation transaction is committing. Transactions committed before the
+ * snapshot are counted by the rebuild and their additions dropped; those
+ * committed after it are added on top of the rebuilt rollups.
+ *
+ * A transaction adds to the section, language and tag of each book as they are
+ * when it is saved, while a rebuild joins the transactions to the books as they
+ * are now. After a book is moved to another section or retagged, a rebuild
+ * counts its earlier transactions under the new ones.
+ */
+@Service
+public class CirculationAnalytics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CirculationAnalytics.class);
+
+    /**
+     * Number of rebuilt rollups written at once, matching the jdbc batch size
+     */
+    private static final int REBUILD_BATCH_SIZE = 50;
+
+    private static final String UPSERT = "INSERT INTO circulation_rollup (rollup_day, trn_type, dimension, dim_key, "
+            + "trn_count, copies) VALUES (?1, ?2, ?3, ?4, ?5, ?6) ON DUPLICATE KEY UPDATE "
+            + "trn_count = trn_count + VALUES(trn_count), copies = copies + VALUES(copies)";
+
+    @Autowired
+    private CirculationRollupRepository circulationRollupRepository;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${budlib.analytics.term-starts}")
+    private String termStartsProperty;
+
+    private TransactionTemplate transactionTemplate;
+
+    private TransactionTemplate rebuildTemplate;
+
+    private final List<MonthDay> termStarts = new ArrayList<>();
+
+    /**
+     * Rollups by day
+     */
+    private final TreeMap<LocalDate, DayRollups> rollups = new TreeMap<>();
+
+    /**
+     * Additions not yet written to the table
+     */
+    private Map<CirculationRollupId, long[]> pending = new HashMap<>();
+
+    /**
+     * Held while writing to the table, so that a rebuild does not race a flush
+     */
+    private final ReentrantLock tableLock = new ReentrantLock();
+
+    /**
+     * Read-held by circulation transactions while they commit and add to the
+     * rollups, write-held by a rebuild while it takes its snapshot
+     */
+    private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+
+    /**
+     * Load the rollups, building them first if the table is empty
+     */
+    @PostConstruct
+    public void init() {
+        this.transactionTemplate = new TransactionTemplate(this.transactionManager);
+
+        // one snapshot for all the rollups
+        this.rebuildTemplate = new TransactionTemplate(this.transactionManager);
+        this.rebuildTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+
+        for (String eachTermStart : this.termStartsProperty.split(",")) {
+            this.termStarts.add(MonthDay.parse("--" + eachTermStart.trim()));
+        }
+
+        this.termStarts.sort(Comparator.naturalOrder());
+
+        if (this.circulationRollupRepository.count() == 0) {
+            this.rebuild();
+        }
+
+        else {
+            this.load();
+        }
+    }
+
+    /**
+     * Rollups of one day, by dimension and transaction type, so that a report
+     * reads only the rollups it needs. Books and loaners are kept by their ids,
+     * so that a report does not parse them.
+     */
+    private static class DayRollups {
+        private static final int TYPES = TransactionType.values().length;
+
+        /**
+         * Transactions and copies by dimension key, indexed by dimension and type
+         */
+        @SuppressWarnings("unchecked")
+        private final Map<String, long[]>[] byKey = new Map[RollupDimension.values().length * TYPES];
+
+        /**
+         * Transactions and copies by book or loaner id, indexed by dimension and
+         * type
+         */
+        @SuppressWarnings("unchecked")
+        private final Map<Long, long[]>[] byId = new Map[RollupDimension.values().length * TYPES];
+
+        private static int indexOf(RollupDimension dimension, TransactionType type) {
+            return dimension.ordinal() * TYPES + type.ordinal();
+        }
+
+        private static boolean isById(RollupDimension dimension) {
+            return dimension == RollupDimension.BOOK || dimension == RollupDimension.LOANER;
+        }
+
+        private Map<String, long[]> byKey(RollupDimension dimension, TransactionType type) {
+            Map<String, long[]> counts = this.byKey[indexOf(dimension, type)];
+            return counts == null ? Map.of() : counts;
+        }
+
+        private Map<Long, long[]> byId(RollupDimension dimension, TransactionType type) {
+            Map<Long, long[]> counts = this.byId[indexOf(dimension, type)];
+            return counts == null ? Map.of() : counts;
+        }
+
+        private void add(CirculationRollupId id, long transactions, long copies) {
+            int index = indexOf(id.getDimension(), id.getTransactionType());
+
+            if (isById(id.getDimension())) {
+                if (this.byId[index] == null) {
+                    this.byId[index] = new HashMap<>();
+                }
+
+                CirculationAnalytics.add(this.byId[index], Long.valueOf(id.getDimensionKey()), transactions,
+                        copies);
+            }
+
+            else {
+                if (this.byKey[index] == null) {
+                    this.byKey[index] = new HashMap<>();
+                }
+
+                CirculationAnalytics.add(this.byKey[index], id.getDimensionKey(), transactions, copies);
+            }
+        }
+    }
+
+    private static <K> void add(Map<K, long[]> counts, K key, long transactions, long copies) {
+        long[] current = counts.computeIfAbsent(key, k -> new long[2]);
+        current[0] += transactions;
+        current[1] += copies;
+    }
+
+    /**
+     * Add to the rollup in memory; must hold the lock of this object
+     *
+     * @param id           the rollup
+     * @param transactions transactions to add
+     * @param copies       copies to add
+     */
+    private void addRollup(CirculationRollupId id, long transactions, long copies) {
+        this.rollups.computeIfAbsent(id.getDay(), d -> new DayRollups()).add(id, transactions, copies);
+    }
+
+    /**
+     * Add the saved transaction to the rollups once its database transaction
+     * commits; must run within that database transaction. The books must have
+     * their tags loaded.
+     *
+     * @param savedTrn saved transaction, with its books
+     */
+    public void record(Transaction savedTrn) {
+        LocalDate day = savedTrn.getTransactionDateTime().toLocalDate();
+        TransactionType type = savedTrn.getTransactionType();
+        Map<CirculationRollupId, long[]> additions = new HashMap<>();
+
+        for (TrnQuantities tq : savedTrn.getBookCopies()) {
+            Book b = tq.getBook();
+            List<CirculationRollupId> ids = new ArrayList<>();
+
+            ids.add(new CirculationRollupId(day, type, RollupDimension.ALL, ""));
+            ids.add(new CirculationRollupId(day, type, RollupDimension.BOOK, String.valueOf(b.getBookId())));
+
+            if (b.getLibrarySection() != null) {
+                ids.add(new CirculationRollupId(day, type, RollupDimension.SECTION, b.getLibrarySection().name()));
+            }
+
+            if (b.getLanguage() != null) {
+                ids.add(new CirculationRollupId(day, type, RollupDimension.LANGUAGE, b.getLanguage()));
+            }
+
+            if (b.getTags() != null) {
+                for (Tag eachTag : b.getTags()) {
+                    ids.add(new CirculationRollupId(day, type, RollupDimension.TAG, eachTag.getTagName()));
+                }
+            }
+
+            if (savedTrn.getLoaner() != null) {
+                ids.add(new CirculationRollupId(day, type, RollupDimension.LOANER,
+                        String.valueOf(savedTrn.getLoaner().getLoanerId())));
+            }
+
+            for (CirculationRollupId eachId : ids) {
+                add(additions, eachId, 0, tq.getCopies());
+            }
+        }
+
+        // the transaction counts once for each rollup it touches
+        for (long[] eachCounts : additions.values()) {
+            eachCounts[0] = 1;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                private boolean committing;
+
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    // a rebuild must not take its snapshot between the commit and the additions
+                    commitLock.readLock().lock();
+                    this.committing = true;
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (!this.committing) {
+                        return;
+                    }
+
+                    try {
+                        if (status == STATUS_COMMITTED) {
+                            apply(additions);
+                        }
+                    }
+
+                    finally {
+                        commitLock.readLock().unlock();
+                    }
+                }
+            });
+        }
+
+        else {
+            this.apply(additions);
+        }
+    }
+
+    private synchronized void apply(Map<CirculationRollupId, long[]> additions) {
+        for (Map.Entry<CirculationRollupId, long[]> eachAddition : additions.entrySet()) {
+            CirculationRollupId id = eachAddition.getKey();
+            long[] counts = eachAddition.getValue();
+
+            this.addRollup(id, counts[0], counts[1]);
+            add(this.pending, id, counts[0], counts[1]);
+        }
+    }
+
+    /**
+     * Write the pending additions to the table. If writing fails, they are kept
+     * for the next run.
+     */
+    @Scheduled(fixedDelayString = "${budlib.analytics.flush-interval-ms}")
+    @PreDestroy
+    public void flush() {
+        this.tableLock.lock();
+
+        try {
+            Map<CirculationRollupId, long[]> additions;
+
+            synchronized (this) {
+                if (this.pending.isEmpty()) {
+                    return;
+                }
+
+                additions = this.pending;
+                this.pending = new HashMap<>();
+            }
+
+            try {
+                this.transactionTemplate.executeWithoutResult(status -> {
+                    for (Map.Entry<CirculationRollupId, long[]> eachAddition : additions.entrySet()) {
+                        CirculationRollupId id = eachAddition.getKey();
+
+                        this.entityManager.createNativeQuery(UPSERT)
+                                .setParameter(1, id.getDay())
+                                .setParameter(2, id.getTransactionType().ordinal())
+                                .setParameter(3, id.getDimension().ordinal())
+                                .setParameter(4, id.getDimensionKey())
+                                .setParameter(5, eachAddition.getValue()[0])
+                                .setParameter(6, eachAddition.getValue()[1])
+                                .executeUpdate();
+                    }
+                });
+            }
+
+            catch (RuntimeException e) {
+                LOGGER.warn("Circulation rollups could not be saved, will retry", e);
+
+                synchronized (this) {
+                    for (Map.Entry<CirculationRollupId, long[]> eachAddition : additions.entrySet()) {
+                        add(this.pending, eachAddition.getKey(), eachAddition.getValue()[0],
+                                eachAddition.getValue()[1]);
+                    }
+                }
+            }
+        }
+
+        finally {
+            this.tableLock.unlock();
+        }
+    }
+
+    /**
+     * Replace the rollups in memory with the table
+     */
+    private void load() {
+        List<CirculationRollup> rows = this.circulationRollupRepository.findAll();
+
+        synchronized (this) {
+            this.rollups.clear();
+
+            for (CirculationRollup eachRow : rows) {
+                CirculationRollupId id = new CirculationRollupId(eachRow.getDay(), eachRow.getTransactionType(),
+                        eachRow.getDimension(), eachRow.getDimensionKey());
+
+                this.addRollup(id, eachRow.getTransactionCount(), eachRow.getCopies());
+            }
+
+            // additions not yet written are not in the table
+            for (Map.Entry<CirculationRollupId, long[]> eachAddition : this.pending.entrySet()) {
+                CirculationRollupId id = eachAddition.getKey();
+
+                this.addRollup(id, eachAddition.getValue()[0], eachAddition.getValue()[1]);
+            }
+        }
+    }
+
+    /**
+     * Query computing the rollups of one dimension from the transactions
+     *
+     * @param dimension what the rollups are broken down by
+     * @param key       SQL expression of the dimension key
+     * @param joins     joins needed by the key
+     * @param condition rows to include
+     * @return the query
+     */
+    private static String rebuildQuery(RollupDimension dimension, String key, String joins, String condition) {
+        return "SELECT DATE(t.trn_datetime), t.trn_type, " + dimension.ordinal() + ", " + key
+                + ", COUNT(DISTINCT t.trn_id), SUM(q.copies) "
+                + "FROM transaction t JOIN trn_quantities q ON q.trn_id = t.trn_id " + joins
+                + " WHERE t.trn_type IS NOT NULL AND " + condition
+                + " GROUP BY DATE(t.trn_datetime), t.trn_type, " + key;
+    }
+
+    private static LocalDate toLocalDate(Object value) {
+        return value instanceof java.sql.Date ? ((java.sql.Date) value).toLocalDate() : (LocalDate) value;
+    }
+
+    /**
+     * Rebuild the table and the rollups in memory from the transactions.
+     * Circulation only waits for the snapshot to be taken, and the table is
+     * rewritten in the same database transaction. The rollups by section,
+     * language and tag follow the current attributes of the books.
+     *
+     * @return number of rollups
+     */
+    @SuppressWarnings("unchecked")
+    public int rebuild() {
+        StringBuilder sectionNames = new StringBuilder();
+
+        for (LibrarySection eachSection : LibrarySection.values()) {
+            sectionNames.append(", '").append(eachSection.name()).append("'");
+        }
+
+        String bookJoin = "JOIN book b ON b.book_id = q.book_id";
+
+        List<String> queries = new ArrayList<>();
+        queries.add(rebuildQuery(RollupDimension.ALL, "''", "", "TRUE"));
+        queries.add(rebuildQuery(RollupDimension.SECTION, "ELT(b.library_section + 1" + sectionNames + ")",
+                bookJoin, "b.library_section IS NOT NULL"));
+        queries.add(rebuildQuery(RollupDimension.LANGUAGE, "b.language", bookJoin, "b.language IS NOT NULL"));
+        queries.add(rebuildQuery(RollupDimension.TAG, "tg.tag_name",
+                "JOIN book_tag bt ON bt.book_id = q.book_id JOIN tag tg ON tg.tag_id = bt.tag_id", "TRUE"));
+        queries.add(rebuildQuery(RollupDimension.BOOK, "CAST(q.book_id AS CHAR)", "", "TRUE"));
+        queries.add(rebuildQuery(RollupDimension.LOANER, "CAST(t.loaner_id AS CHAR)", "",
+                "t.loaner_id IS NOT NULL"));
+
+        // the flush must not write additions that the rebuild counts as well
+        this.tableLock.lock();
+
+        try {
+            List<CirculationRollup> rebuilt = this.rebuildTemplate.execute(status -> {
+                this.commitLock.writeLock().lock();
+
+                try {
+                    // the first read takes the snapshot that all the queries see
+                    this.entityManager.createNativeQuery("SELECT COUNT(*) FROM transaction WHERE trn_id = 0")
+                            .getSingleResult();
+
+                    // counted by the rebuild; additions from here on are not
+                    synchronized (this) {
+                        this.pending.clear();
+                    }
+                }
+
+                finally {
+                    this.commitLock.writeLock().unlock();
+                }
+
+                List<CirculationRollup> rows = new ArrayList<>();
+
+                for (String eachQuery : queries) {
+                    for (Object[] eachRow : (List<Object[]>) this.entityManager.createNativeQuery(eachQuery)
+                            .getResultList()) {
+
+                        rows.add(new CirculationRollup(toLocalDate(eachRow[0]),
+                                TransactionType.values()[((Number) eachRow[1]).intValue()],
+                                RollupDimension.values()[((Number) eachRow[2]).intValue()], (String) eachRow[3],
+                                ((Number) eachRow[4]).longValue(), ((Number) eachRow[5]).longValue()));
+                    }
+                }
+
+                this.entityManager.createNativeQuery("DELETE FROM circulation_rollup").executeUpdate();
+
+                for (int i = 0; i < rows.size(); i++) {
+                    this.entityManager.persist(rows.get(i));
+
+                    // written in jdbc batches
+                    if ((i + 1) % REBUILD_BATCH_SIZE == 0) {
+                        this.entityManager.flush();
+                        this.entityManager.clear();
+                    }
+                }
+
+                return rows;
+            });
+
+            synchronized (this) {
+                this.rollups.clear();
+
+                for (CirculationRollup eachRow : rebuilt) {
+                    CirculationRollupId id = new CirculationRollupId(eachRow.getDay(), eachRow.getTransactionType(),
+                            eachRow.getDimension(), eachRow.getDimensionKey());
+
+                    this.addRollup(id, eachRow.getTransactionCount(), eachRow.getCopies());
+                }
+
+                // committed after the snapshot, so not in the rebuilt rollups
+                for (Map.Entry<CirculationRollupId, long[]> eachAddition : this.pending.entrySet()) {
+                    CirculationRollupId id = eachAddition.getKey();
+
+                    this.addRollup(id, eachAddition.getValue()[0], eachAddition.getValue()[1]);
+                }
+            }
+
+            LOGGER.info("Rebuilt {} circulation rollups", rebuilt.size());
+            return rebuilt.size();
+        }
+
+        finally {
+            this.tableLock.unlock();
+        }
+    }
+
+    /**
+     * First day of the period containing the date
+     *
+     * @param date        the date
+     * @param granularity length of the periods
+     * @return first day of the period
+     */
+    private LocalDate periodStart(LocalDate date, AnalyticsGranularity granularity) {
+        if (granularity == AnalyticsGranularity.WEEK) {
+            return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        }
+
+        if (granularity == AnalyticsGranularity.TERM) {
+            for (int i = this.termStarts.size() - 1; i >= 0; i--) {
+                LocalDate termStart = this.termStarts.get(i).atYear(date.getYear());
+
+                if (!termStart.isAfter(date)) {
+                    return termStart;
+                }
+            }
+
+            return this.termStarts.get(this.termStarts.size() - 1).atYear(date.getYear() - 1);
+        }
+
+        return date;
+    }
+
+    /**
+     * Last day of the period starting on the date
+     *
+     * @param start       first day of the period
+     * @param granularity length of the periods
+     * @return last day of the period
+     */
+    private LocalDate periodEnd(LocalDate start, AnalyticsGranularity granularity) {
+        if (granularity == AnalyticsGranularity.WEEK) {
+            return start.plusDays(6);
+        }
+
+        if (granularity == AnalyticsGranularity.TERM) {
+            for (MonthDay eachTermStart : this.termStarts) {
+                LocalDate termStart = eachTermStart.atYear(start.getYear());
+
+                if (termStart.isAfter(start)) {
+                    return termStart.minusDays(1);
+                }
+            }
+
+            return this.termStarts.get(0).atYear(start.getYear() + 1).minusDays(1);
+        }
+
+        return start;
+    }
+
+    private static TrnCounts countsOf(Map<TransactionType, TrnCounts> countsByType, TransactionType type) {
+        return countsByType.computeIfAbsent(type, t -> new TrnCounts());
+    }
+
+    private static void addTo(TrnCounts counts, long[] addition) {
+        counts.setTransactions(counts.getTransactions() + addition[0]);
+        counts.setCopies(counts.getCopies() + addition[1]);
+    }
+
+    private static void addTo(Map<String, Map<TransactionType, TrnCounts>> countsByKey, TransactionType type,
+            Map<String, long[]> additions) {
+        for (Map.Entry<String, long[]> eachAddition : additions.entrySet()) {
+            Map<TransactionType, TrnCounts> countsByType = countsByKey.computeIfAbsent(eachAddition.getKey(),
+                    k -> new EnumMap<>(TransactionType.class));
+            addTo(countsOf(countsByType, type), eachAddition.getValue());
+        }
+    }
+
+    private static void addTo(Map<Long, long[]> borrows, Map<Long, long[]> additions) {
+        for (Map.Entry<Long, long[]> eachAddition : additions.entrySet()) {
+            add(borrows, eachAddition.getKey(), eachAddition.getValue()[0], eachAddition.getValue()[1]);
+        }
+    }
+
+    /**
+     * Keep the ids with the most copies
+     *
+     * @param borrows copies and transactions by id
+     * @param top     number of ids to keep
+     * @return ids with the most copies, most first
+     */
+    private static List<Map.Entry<Long, long[]>> topOf(Map<Long, long[]> borrows, int top) {
+        TreeSet<Map.Entry<Long, long[]>> best = new TreeSet<>(
+                Comparator.comparingLong((Map.Entry<Long, long[]> e) -> e.getValue()[1])
+                        .thenComparingLong(e -> e.getValue()[0])
+                        .thenComparing(Map.Entry::getKey, Comparator.reverseOrder()));
+
+        for (Map.Entry<Long, long[]> eachEntry : borrows.entrySet()) {
+            best.add(eachEntry);
+
+            if (best.size() > top) {
+                best.pollFirst();
+            }
+        }
+
+        return new ArrayList<>(best.descendingSet());
+    }
+
+    /**
+     * Circulation analytics of the dates
+     *
+     * @param from        first day, included
+     * @param to          last day, included
+     * @param granularity length of the periods
+     * @param top         number of books and borrowers to rank
+     * @return the report
+     */
+    public AnalyticsReport report(LocalDate from, LocalDate to, AnalyticsGranularity granularity, int top) {
+        Map<LocalDate, AnalyticsPeriod> periods = new LinkedHashMap<>();
+        Map<Long, long[]> bookBorrows = new HashMap<>();
+        Map<Long, long[]> loanerBorrows = new HashMap<>();
+
+        synchronized (this) {
+            for (Map.Entry<LocalDate, DayRollups> eachDay : this.rollups.subMap(from, true, to, true).entrySet()) {
+                LocalDate start = this.periodStart(eachDay.getKey(), granularity);
+
+                // counted in hash maps, and sorted once the period is complete
+                AnalyticsPeriod period = periods.computeIfAbsent(start,
+                        s -> new AnalyticsPeriod(s, this.periodEnd(s, granularity),
+                                new EnumMap<>(TransactionType.class), new HashMap<>(), new HashMap<>(),
+                                new HashMap<>()));
+
+                DayRollups day = eachDay.getValue();
+
+                for (TransactionType eachType : TransactionType.values()) {
+                    for (long[] eachCounts : day.byKey(RollupDimension.ALL, eachType).values()) {
+                        addTo(countsOf(period.getTotals(), eachType), eachCounts);
+                    }
+
+                    addTo(period.getBySection(), eachType, day.byKey(RollupDimension.SECTION, eachType));
+                    addTo(period.getByLanguage(), eachType, day.byKey(RollupDimension.LANGUAGE, eachType));
+                    addTo(period.getByTag(), eachType, day.byKey(RollupDimension.TAG, eachType));
+                }
+
+                addTo(bookBorrows, day.byId(RollupDimension.BOOK, TransactionType.BORROW));
+                addTo(loanerBorrows, day.byId(RollupDimension.LOANER, TransactionType.BORROW));
+            }
+        }
+
+        for (AnalyticsPeriod eachPeriod : periods.values()) {
+            eachPeriod.setBySection(new TreeMap<>(eachPeriod.getBySection()));
+            eachPeriod.setByLanguage(new TreeMap<>(eachPeriod.getByLanguage()));
+            eachPeriod.setByTag(new TreeMap<>(eachPeriod.getByTag()));
+        }
+
+        return new AnalyticsReport(from, to, granularity, new ArrayList<>(periods.values()),
+                this.rankBooks(topOf(bookBorrows, top)), this.rankLoaners(topOf(loanerBorrows, top)));
+    }
+
+    private static List<Long> idsOf(Collection<Map.Entry<Long, long[]>> entries) {
+        List<Long> ids = new ArrayList<>();
+
+        for (Map.Entry<Long, long[]> eachEntry : entries) {
+            ids.add(eachEntry.getKey());
+        }
+
+        return ids;
+    }
+
+    private List<RankedCount> rankBooks(List<Map.Entry<Long, long[]>> topBooks) {
+        Map<Long, String> titles = new HashMap<>();
+
+        for (Book eachBook : this.bookRepository.findAllById(idsOf(topBooks))) {
+            titles.put(eachBook.getBookId(), eachBook.getTitle());
+        }
+
+        List<RankedCount> ranked = new ArrayList<>();
+
+        for (Map.Entry<Long, long[]> eachEntry : topBooks) {
+            ranked.add(new RankedCount(eachEntry.getKey(), titles.get(eachEntry.getKey()), eachEntry.getValue()[0],
+                    eachEntry.getValue()[1]));
+        }
+
+        return ranked;
+    }
+
+    private List<RankedCount> rankLoaners(List<Map.Entry<Long, long[]>> topLoaners) {
+        Map<Long, String> names = new HashMap<>();
+
+        for (Loaner eachLoaner : this.loanerRepository.findAllById(idsOf(topLoaners))) {
+            names.put(eachLoaner.getLoanerId(), eachLoaner.getFullName());
+        }
+
+        List<RankedCount> ranked = new ArrayList<>();
+
+        for (Map.Entry<Long, long[]> eachEntry : topLoaners) {
+            ranked.add(new RankedCount(eachEntry.getKey(), names.get(eachEntry.getKey()), eachEntry.getValue()[0],
+                    eachEntry.getValue()[1]));
+        }
+
+        return ranked;
+    }
+}
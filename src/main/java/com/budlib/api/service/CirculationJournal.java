@@ -0,0 +1,404 @@
+package com.budlib.api.service;
+
+import com.budlib.api.enums.*;
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import com.budlib.api.response.JournalRebuildResult;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Transactional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Append-only journal of the circulation. Every transaction adds an entry per
+ * book, and every change to the copies of a book outside transactions adds an
+ * adjustment, in the same database transaction as the change itself. The
+ * available copies of a book are the sum of the changes of its entries.
+ *
+ * Snapshots of the available copies are taken periodically, so that the
+ * availability of a book at a point in time is found by replaying only the
+ * entries after the nearest earlier snapshot. The journal can also rebuild the
+ * available copies of all books and the loans of all loaners.
+ */
+@Service
+public class CirculationJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CirculationJournal.class);
+
+    /**
+     * Snapshots only cover entries recorded at least this long ago, so that an
+     * entry whose database transaction is still open is not skipped
+     */
+    private static final Duration SNAPSHOT_LAG = Duration.ofMinutes(1);
+
+    /**
+     * Number of entries read at a time when replaying the journal
+     */
+    private static final int REPLAY_PAGE_SIZE = 1000;
+
+    @Autowired
+    private JournalEntryRepository journalEntryRepository;
+
+    @Autowired
+    private AvailabilitySnapshotRepository availabilitySnapshotRepository;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    @Autowired
+    private LoanRepository loanRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Build the entries of a saved transaction; they are written along with the
+     * rest of the transaction
+     *
+     * @param savedTrn the saved transaction
+     * @param dates    borrow and due dates of the transaction
+     * @return entries, one per book
+     */
+    public List<JournalEntry> entriesOf(Transaction savedTrn, CirculationService.CirculationDates dates) {
+        List<JournalEntry> entries = new ArrayList<>();
+        ZonedDateTime now = ZonedDateTime.now();
+
+        for (TrnQuantities tq : savedTrn.getBookCopies()) {
+            JournalEntry entry = new JournalEntry();
+            entry.setTransactionId(savedTrn.getTransactionId());
+            entry.setBookId(tq.getBook().getBookId());
+            entry.setLoanerId(savedTrn.getLoaner().getLoanerId());
+            entry.setCopies(tq.getCopies());
+            entry.setRecordedAt(now);
+
+            if (savedTrn.getTransactionType().equals(TransactionType.BORROW)) {
+                entry.setEntryType(JournalEntryType.BORROW);
+                entry.setDelta(-tq.getCopies());
+                entry.setBorrowDate(dates.getBorrowDate());
+                entry.setDueDate(dates.getDueDate());
+            }
+
+            else if (savedTrn.getTransactionType().equals(TransactionType.RETURN)) {
+                entry.setEntryType(JournalEntryType.RETURN);
+                entry.setDelta(tq.getCopies());
+            }
+
+            else {
+                entry.setEntryType(JournalEntryType.EXTEND);
+                entry.setDueDate(dates.getDueDate());
+            }
+
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Record a change in the available copies of a book made outside
+     * transactions, such as adding a book or correcting its quantities; must run
+     * within the database transaction making the change
+     *
+     * @param bookId book id
+     * @param delta  change in the available copies
+     */
+    public void recordAdjustment(long bookId, int delta) {
+        if (delta != 0) {
+            this.journalEntryRepository.save(this.adjustmentOf(bookId, delta));
+        }
+    }
+
+    /**
+     * Record the changes in the available copies of many books made outside
+     * transactions together, such as an import; must run within the database
+     * transaction making the changes
+     *
+     * @param deltaByBook change in the available copies by book id
+     */
+    public void recordAdjustments(Map<Long, Integer> deltaByBook) {
+        List<JournalEntry> adjustments = new ArrayList<>();
+
+        for (Map.Entry<Long, Integer> eachBook : deltaByBook.entrySet()) {
+            if (eachBook.getValue() != 0) {
+                adjustments.add(this.adjustmentOf(eachBook.getKey(), eachBook.getValue()));
+            }
+        }
+
+        this.journalEntryRepository.saveAll(adjustments);
+    }
+
+    private JournalEntry adjustmentOf(long bookId, int delta) {
+        return new JournalEntry(0L, JournalEntryType.ADJUST, null, bookId, null, Math.abs(delta), delta, null,
+                null, ZonedDateTime.now());
+    }
+
+    /**
+     * Start the journal from the current state of the books and loans, when it
+     * is empty
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startIfEmpty() {
+        TransactionTemplate template = new TransactionTemplate(this.transactionManager);
+
+        template.executeWithoutResult(status -> {
+            if (this.journalEntryRepository.count() > 0) {
+                return;
+            }
+
+            ZonedDateTime now = ZonedDateTime.now();
+            List<JournalEntry> entries = new ArrayList<>();
+
+            for (Book eachBook : this.bookRepository.findAll()) {
+                entries.add(new JournalEntry(0L, JournalEntryType.ADJUST, null, eachBook.getBookId(), null,
+                        eachBook.getAvailableQuantity(), eachBook.getAvailableQuantity(), null, null, now));
+            }
+
+            // the copies on loan are already left out of the available copies
+            for (Loan eachLoan : this.loanRepository.findAll()) {
+                entries.add(new JournalEntry(0L, JournalEntryType.BORROW, null, eachLoan.getBook().getBookId(),
+                        eachLoan.getLoaner().getLoanerId(), eachLoan.getCopies(), 0, eachLoan.getBorrowDate(),
+                        eachLoan.getDueDate(), now));
+            }
+
+            this.journalEntryRepository.saveAll(entries);
+
+            if (!entries.isEmpty()) {
+                LOGGER.info("Started the circulation journal with {} entries", entries.size());
+            }
+        });
+    }
+
+    /**
+     * Take a snapshot of the available copies of every book with entries since
+     * the last snapshot
+     *
+     * @return number of snapshots taken
+     */
+    @Scheduled(cron = "${budlib.journal.snapshot-cron}")
+    @Transactional
+    public int takeSnapshots() {
+        ZonedDateTime now = ZonedDateTime.now();
+        Long lastEntryId = this.journalEntryRepository.findLastEntryIdRecordedBefore(now.minus(SNAPSHOT_LAG));
+        Long lastCoveredEntryId = this.availabilitySnapshotRepository.findLastCoveredEntryId();
+        long coveredUpto = lastCoveredEntryId == null ? 0L : lastCoveredEntryId;
+
+        if (lastEntryId == null || lastEntryId <= coveredUpto) {
+            return 0;
+        }
+
+        Map<Long, Integer> latestQuantities = new HashMap<>();
+
+        for (AvailabilitySnapshot eachSnapshot : this.availabilitySnapshotRepository.findLatestOfEachBook()) {
+            latestQuantities.put(eachSnapshot.getBookId(), eachSnapshot.getAvailableQuantity());
+        }
+
+        List<AvailabilitySnapshot> snapshots = new ArrayList<>();
+
+        for (Object[] eachRow : this.journalEntryRepository.sumDeltaByBook(coveredUpto, lastEntryId)) {
+            long bookId = (Long) eachRow[0];
+            int quantity = latestQuantities.getOrDefault(bookId, 0) + ((Number) eachRow[1]).intValue();
+
+            snapshots.add(new AvailabilitySnapshot(0L, bookId, lastEntryId, quantity, now));
+        }
+
+        this.availabilitySnapshotRepository.saveAll(snapshots);
+        return snapshots.size();
+    }
+
+    /**
+     * Available copies of the book at a point in time, replayed from the nearest
+     * earlier snapshot
+     *
+     * @param bookId book id
+     * @param at     point in time
+     * @return available copies, or empty if the journal was started later
+     */
+    public Optional<Integer> availabilityAt(long bookId, ZonedDateTime at) {
+        Optional<JournalEntry> firstEntry = this.journalEntryRepository
+                .findByEntryIdGreaterThan(0L, PageRequest.of(0, 1, Sort.by("entryId"))).stream().findFirst();
+
+        if (firstEntry.isEmpty() || firstEntry.get().getRecordedAt().isAfter(at)) {
+            return Optional.empty();
+        }
+
+        Optional<AvailabilitySnapshot> snapshot = this.availabilitySnapshotRepository
+                .findFirstByBookIdAndTakenAtLessThanEqualOrderByTakenAtDesc(bookId, at);
+
+        int base = snapshot.isPresent() ? snapshot.get().getAvailableQuantity() : 0;
+        long afterEntryId = snapshot.isPresent() ? snapshot.get().getLastEntryId() : 0L;
+
+        return Optional.of(base + (int) this.journalEntryRepository.sumDeltaOfBook(bookId, afterEntryId, at));
+    }
+
+    /**
+     * Loan replayed from the journal
+     */
+    private static class ReplayedLoan {
+        private final long loanerId;
+        private final long bookId;
+        private final LocalDate borrowDate;
+        private LocalDate dueDate;
+        private int copies;
+
+        private ReplayedLoan(JournalEntry borrow) {
+            this.loanerId = borrow.getLoanerId();
+            this.bookId = borrow.getBookId();
+            this.borrowDate = borrow.getBorrowDate();
+            this.dueDate = borrow.getDueDate();
+            this.copies = borrow.getCopies();
+        }
+    }
+
+    /**
+     * Rebuild the available copies of all books and the loans of all loaners from
+     * the journal. Every loan is saved again with a new id, so this must run while
+     * no circulation is in progress, through
+     * {@link CirculationPipeline#runExclusively}, and the loan due index and the
+     * counters must be reloaded after it commits.
+     *
+     * @return number of books and loans corrected
+     */
+    @Transactional
+    public JournalRebuildResult rebuild() {
+        // available copies - latest snapshots plus the entries after them; books
+        // without entries since their latest snapshot were not changed since
+        Long lastCoveredEntryId = this.availabilitySnapshotRepository.findLastCoveredEntryId();
+        long coveredUpto = lastCoveredEntryId == null ? 0L : lastCoveredEntryId;
+        Map<Long, Integer> quantities = new HashMap<>();
+
+        for (AvailabilitySnapshot eachSnapshot : this.availabilitySnapshotRepository.findLatestOfEachBook()) {
+            quantities.put(eachSnapshot.getBookId(), eachSnapshot.getAvailableQuantity());
+        }
+
+        for (Object[] eachRow : this.journalEntryRepository.sumDeltaByBook(coveredUpto, Long.MAX_VALUE)) {
+            quantities.merge((Long) eachRow[0], ((Number) eachRow[1]).intValue(), Integer::sum);
+        }
+
+        // loans - every entry from the start, in the order recorded
+        Map<String, List<ReplayedLoan>> loansByLoanerAndBook = new LinkedHashMap<>();
+        long afterEntryId = 0L;
+
+        while (true) {
+            List<JournalEntry> entries = this.journalEntryRepository.findByEntryIdGreaterThan(afterEntryId,
+                    PageRequest.of(0, REPLAY_PAGE_SIZE, Sort.by("entryId")));
+
+            for (JournalEntry eachEntry : entries) {
+                this.replayLoan(eachEntry, loansByLoanerAndBook);
+                afterEntryId = eachEntry.getEntryId();
+            }
+
+            // the entries are only read, so there is no need to keep them
+            this.entityManager.clear();
+
+            if (entries.size() < REPLAY_PAGE_SIZE) {
+                break;
+            }
+        }
+
+        int booksCorrected = 0;
+        Set<Long> bookIds = new HashSet<>();
+        Set<Long> loanerIds = new HashSet<>();
+
+        for (Book eachBook : this.bookRepository.findAll()) {
+            int quantity = quantities.getOrDefault(eachBook.getBookId(), 0);
+            bookIds.add(eachBook.getBookId());
+
+            if (eachBook.getAvailableQuantity() != quantity) {
+                eachBook.setAvailableQuantity(quantity);
+                booksCorrected++;
+            }
+        }
+
+        for (Loaner eachLoaner : this.loanerRepository.findAll()) {
+            loanerIds.add(eachLoaner.getLoanerId());
+        }
+
+        List<Loan> rebuiltLoans = new ArrayList<>();
+
+        for (List<ReplayedLoan> eachList : loansByLoanerAndBook.values()) {
+            for (ReplayedLoan eachLoan : eachList) {
+                if (!bookIds.contains(eachLoan.bookId) || !loanerIds.contains(eachLoan.loanerId)) {
+                    continue;
+                }
+
+                rebuiltLoans.add(new Loan(0L, this.loanerRepository.getById(eachLoan.loanerId),
+                        this.bookRepository.getById(eachLoan.bookId), eachLoan.copies,
+                        eachLoan.borrowDate, eachLoan.dueDate));
+            }
+        }
+
+        this.loanRepository.deleteAllInBatch();
+        this.loanRepository.saveAll(rebuiltLoans);
+
+        LOGGER.info("Rebuilt the circulation from the journal - {} books corrected, {} loans", booksCorrected,
+                rebuiltLoans.size());
+
+        return new JournalRebuildResult(booksCorrected, rebuiltLoans.size());
+    }
+
+    /**
+     * Apply the entry to the loans, the way Loaner applies the transactions
+     *
+     * @param entry                journal entry
+     * @param loansByLoanerAndBook outstanding loans by loaner and book
+     */
+    private void replayLoan(JournalEntry entry, Map<String, List<ReplayedLoan>> loansByLoanerAndBook) {
+        if (entry.getLoanerId() == null) {
+            return;
+        }
+
+        String key = entry.getLoanerId() + ":" + entry.getBookId();
+
+        if (entry.getEntryType().equals(JournalEntryType.BORROW)) {
+            loansByLoanerAndBook.computeIfAbsent(key, k -> new ArrayList<>()).add(new ReplayedLoan(entry));
+        }
+
+        else if (entry.getEntryType().equals(JournalEntryType.RETURN)) {
+            List<ReplayedLoan> loans = loansByLoanerAndBook.getOrDefault(key, new ArrayList<>());
+
+            for (Iterator<ReplayedLoan> it = loans.iterator(); it.hasNext();) {
+                ReplayedLoan eachLoan = it.next();
+                eachLoan.copies -= entry.getCopies();
+
+                if (eachLoan.copies <= 0) {
+                    it.remove();
+                }
+            }
+        }
+
+        else if (entry.getEntryType().equals(JournalEntryType.EXTEND)) {
+            List<ReplayedLoan> loans = loansByLoanerAndBook.get(key);
+
+            if (loans != null && !loans.isEmpty()) {
+                loans.get(0).dueDate = entry.getDueDate();
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.budlib.api.service;
+
+import com.budlib.api.enums.*;
+import com.budlib.api.model.*;
+import com.budlib.api.repository.OutboxEventRepository;
+import com.budlib.api.response.CirculationEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import javax.transaction.Transactional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Transactional outbox of the circulation events. Each saved transaction
+ * writes an event in its own database transaction, so an event exists exactly
+ * when its transaction is committed. A background dispatcher hands the pending
+ * events to the {@link OutboxSink} in batches and marks them once delivered.
+ *
+ * Delivery is at least once: an event delivered but not yet marked is
+ * delivered again. Pending events are taken in the order of their ids, and a
+ * failed batch stops the round, so a later event is never delivered before an
+ * earlier pending one. The loaner is locked while a transaction is recorded,
+ * so the events of a loaner are committed, and delivered, in order.
+ */
+@Service
+public class CirculationOutbox {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CirculationOutbox.class);
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private OutboxSink outboxSink;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${budlib.outbox.batch-size}")
+    private int batchSize;
+
+    @Value("${budlib.outbox.retention-hours}")
+    private long retentionHours;
+
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Create the transaction template used to mark the delivered events
+     */
+    @PostConstruct
+    public void init() {
+        this.transactionTemplate = new TransactionTemplate(this.transactionManager);
+    }
+
+    /**
+     * Outbox event of the saved transaction, to be written in the same database
+     * transaction
+     *
+     * @param savedTrn saved transaction, with its books
+     * @param dates    borrow and due dates of the transaction
+     * @return the event
+     */
+    public OutboxEvent eventOf(Transaction savedTrn, CirculationService.CirculationDates dates) {
+        List<CirculationEvent.BookCopies> books = new ArrayList<>();
+
+        for (TrnQuantities tq : savedTrn.getBookCopies()) {
+            books.add(new CirculationEvent.BookCopies(tq.getBook().getBookId(), tq.getCopies()));
+        }
+
+        TransactionType type = savedTrn.getTransactionType();
+
+        CirculationEvent event = new CirculationEvent(savedTrn.getTransactionId(), type,
+                savedTrn.getLoaner().getLoanerId(), savedTrn.getLibrarian().getLibrarianId(),
+                savedTrn.getTransactionDateTime(), type.equals(TransactionType.BORROW) ? dates.getBorrowDate() : null,
+                type.equals(TransactionType.RETURN) ? null : dates.getDueDate(), books);
+
+        String payload;
+
+        try {
+            payload = this.objectMapper.writeValueAsString(event);
+        }
+
+        catch (JsonProcessingException e) {
+            throw new IllegalStateException("Circulation event could not be written", e);
+        }
+
+        return new OutboxEvent(0L, type, savedTrn.getTransactionId(), savedTrn.getLoaner().getLoanerId(), payload,
+                ZonedDateTime.now(), null);
+    }
+
+    /**
+     * Deliver the pending events, a batch at a time, until none are left or the
+     * sink fails
+     */
+    @Scheduled(fixedDelayString = "${budlib.outbox.poll-interval-ms}")
+    public void dispatch() {
+        while (true) {
+            List<OutboxEvent> events = this.outboxEventRepository
+                    .findByDispatchedAtIsNullOrderByEventIdAsc(PageRequest.of(0, this.batchSize));
+
+            if (events.isEmpty()) {
+                return;
+            }
+
+            try {
+                this.outboxSink.deliver(events);
+            }
+
+            catch (IOException | RuntimeException e) {
+                // retried from the same event on the next round
+                LOGGER.warn("Outbox delivery failed at event " + events.get(0).getEventId(), e);
+                return;
+            }
+
+            List<Long> eventIds = new ArrayList<>();
+
+            for (OutboxEvent eachEvent : events) {
+                eventIds.add(eachEvent.getEventId());
+            }
+
+            ZonedDateTime now = ZonedDateTime.now();
+            this.transactionTemplate.execute(status -> this.outboxEventRepository.markDispatched(eventIds, now));
+
+            if (events.size() < this.batchSize) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delete the events delivered before the retention period
+     */
+    @Scheduled(fixedDelayString = "${budlib.outbox.purge-interval-ms}")
+    @Transactional
+    public void purge() {
+        this.outboxEventRepository.deleteDispatchedBefore(ZonedDateTime.now().minusHours(this.retentionHours));
+    }
+}
@@ -0,0 +1,506 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Serializes the circulation writes by book. Every transaction is routed to
+ * one of a fixed set of lanes by the lowest id among its books, and each lane
+ * is drained by a single thread. Transactions on the same title therefore queue
+ * in memory instead of piling up on the row lock of the book, while different
+ * titles proceed in parallel.
+ *
+ * A lane takes all the transactions waiting in its queue, up to a limit, and
+ * commits them in one database transaction. A transaction that fails its checks
+ * is left out of the batch; if one fails after writing, the batch is rolled
+ * back and its transactions are retried one by one. Transactions sharing only
+ * some of their books may still land on different lanes, where the guarded
+ * updates of the available copies keep them correct.
+ *
+ * A batch locks all its loaners and then all its books, each in id order,
+ * before anything else, the same order as the bulk circulation, so that writers
+ * do not deadlock on each other's rows. A database transaction that still loses
+ * a deadlock or times out waiting for a lock is retried.
+ *
+ * Work that must not overlap any circulation, such as rebuilding the loans from
+ * the journal, runs exclusively: the lanes hold their batches and the bulk
+ * circulation waits until it is done.
+ */
+@Service
+public class CirculationPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CirculationPipeline.class);
+
+    /**
+     * Times a database transaction is run again after losing a deadlock or timing
+     * out on a lock
+     */
+    private static final int LOCK_RETRIES = 3;
+
+    @Autowired
+    private CirculationService circulationService;
+
+    @Autowired
+    private IdempotencyCache idempotencyCache;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${budlib.circulation.lanes}")
+    private int laneCount;
+
+    @Value("${budlib.circulation.max-batch}")
+    private int maxBatch;
+
+    @Value("${budlib.circulation.queue-capacity}")
+    private int queueCapacity;
+
+    private TransactionTemplate transactionTemplate;
+
+    private final List<Lane> lanes = new ArrayList<>();
+
+    /**
+     * Circulation writes share the read lock; exclusive work holds the write lock.
+     * Fair, so that exclusive work waiting for the lock is not starved by a steady
+     * stream of batches.
+     */
+    private final ReentrantReadWriteLock circulationLock = new ReentrantReadWriteLock(true);
+
+    private volatile boolean running;
+
+    /**
+     * Transaction waiting in a lane, with the dates and the Idempotency-Key as
+     * supplied in the request
+     */
+    private static class Command {
+        private final Transaction transaction;
+        private final String borrowDate;
+        private final String dueDate;
+        private final String idempotencyKey;
+        private final String requestHash;
+        private final CompletableFuture<Transaction> result = new CompletableFuture<>();
+        private IdempotencyRecord idempotencyRecord;
+
+        private Command(Transaction transaction, String borrowDate, String dueDate, String idempotencyKey,
+                String requestHash) {
+            this.transaction = transaction;
+            this.borrowDate = borrowDate;
+            this.dueDate = dueDate;
+            this.idempotencyKey = idempotencyKey;
+            this.requestHash = requestHash;
+        }
+    }
+
+    /**
+     * Completes a transaction whose Idempotency-Key was saved by an earlier
+     * request in the meantime, so that its result is returned instead
+     */
+    public static class AlreadySavedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Record of the key
+         */
+        private final transient IdempotencyRecord record;
+
+        public AlreadySavedException(IdempotencyRecord record) {
+            super("Idempotency-Key was already saved");
+            this.record = record;
+        }
+
+        public IdempotencyRecord getRecord() {
+            return this.record;
+        }
+    }
+
+    /**
+     * Thrown to roll back a batch when a transaction fails after writing
+     */
+    private static class BatchConflictException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Queue of transactions and the thread committing them
+     */
+    private class Lane implements Runnable {
+        private final BlockingQueue<Command> queue = new LinkedBlockingQueue<>(queueCapacity);
+        private Thread thread;
+
+        @Override
+        public void run() {
+            while (running || !this.queue.isEmpty()) {
+                List<Command> commands = new ArrayList<>();
+
+                try {
+                    Command first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+
+                    if (first == null) {
+                        continue;
+                    }
+
+                    commands.add(first);
+                    this.queue.drainTo(commands, maxBatch - 1);
+
+                    commitBatch(commands);
+                }
+
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                catch (Throwable e) {
+                    // fail the batch but keep the lane running for the transactions behind it
+                    LOGGER.error("Circulation lane failed", e);
+                    failAll(commands, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the lanes
+     */
+    @PostConstruct
+    public void start() {
+        this.transactionTemplate = new TransactionTemplate(this.transactionManager);
+        this.running = true;
+
+        for (int i = 0; i < this.laneCount; i++) {
+            Lane lane = new Lane();
+            lane.thread = new Thread(lane, "circulation-lane-" + i);
+            lane.thread.start();
+            this.lanes.add(lane);
+        }
+    }
+
+    /**
+     * Stop the lanes once the waiting transactions are committed
+     */
+    @PreDestroy
+    public void stop() {
+        this.running = false;
+
+        for (Lane eachLane : this.lanes) {
+            try {
+                eachLane.thread.join(TimeUnit.SECONDS.toMillis(30));
+            }
+
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue the transaction in the lane of its books
+     *
+     * @param t              transaction as supplied in the request
+     * @param borrowDate     supplied borrow date as yyyyMMdd
+     * @param dueDate        supplied due date as yyyyMMdd
+     * @param idempotencyKey Idempotency-Key of the request, saved along with the
+     *                       transaction; may be null
+     * @param requestHash    fingerprint of the request, saved along with the key
+     * @return the saved transaction; completes with a
+     *         {@link CirculationService.CirculationException} if the transaction
+     *         is not valid, or an {@link AlreadySavedException} if its key was
+     *         saved before it was committed
+     * @throws RejectedExecutionException if the lane is full or stopped
+     */
+    public CompletableFuture<Transaction> submit(Transaction t, String borrowDate, String dueDate,
+            String idempotencyKey, String requestHash) {
+        if (!this.running) {
+            throw new RejectedExecutionException("Circulation pipeline is stopped");
+        }
+
+        Command command = new Command(t, borrowDate, dueDate, idempotencyKey, requestHash);
+
+        if (!this.lanes.get(this.laneOf(t)).queue.offer(command)) {
+            throw new RejectedExecutionException("Too many pending transactions");
+        }
+
+        return command.result;
+    }
+
+    /**
+     * Lane of the transaction, by the lowest id among its books
+     *
+     * @param t transaction
+     * @return index of the lane
+     */
+    private int laneOf(Transaction t) {
+        long lowestBookId = Long.MAX_VALUE;
+
+        if (t.getBookCopies() != null) {
+            for (TrnQuantities tq : t.getBookCopies()) {
+                if (tq.getBook() != null) {
+                    lowestBookId = Math.min(lowestBookId, tq.getBook().getBookId());
+                }
+            }
+        }
+
+        return Math.floorMod(Long.hashCode(lowestBookId), this.laneCount);
+    }
+
+    /**
+     * Copy the transaction as supplied, so that a retry does not see the changes
+     * of a rolled back attempt
+     *
+     * @param t transaction as supplied in the request
+     * @return copy of the transaction
+     */
+    private static Transaction copyOf(Transaction t) {
+        List<TrnQuantities> bookCopies = null;
+
+        if (t.getBookCopies() != null) {
+            bookCopies = new ArrayList<>();
+
+            for (TrnQuantities tq : t.getBookCopies()) {
+                TrnQuantities copy = new TrnQuantities();
+                copy.setBook(tq.getBook());
+                copy.setCopies(tq.getCopies());
+                bookCopies.add(copy);
+            }
+        }
+
+        return new Transaction(0L, t.getTransactionDateTime(), t.getTransactionType(), t.getLoaner(),
+                t.getLibrarian(), bookCopies);
+    }
+
+    /**
+     * Fail the transactions not completed yet
+     *
+     * @param commands transactions taken from the lane
+     * @param e        cause of the failure
+     */
+    private static void failAll(List<Command> commands, Throwable e) {
+        for (Command eachCommand : commands) {
+            eachCommand.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Commit the transactions in one database transaction, falling back to one
+     * database transaction each if any of them fails after writing
+     *
+     * @param commands transactions taken from the lane
+     */
+    private void commitBatch(List<Command> commands) {
+        Map<Command, Object> outcomes;
+
+        try {
+            outcomes = this.executeWithLockRetry(status -> this.executeAll(commands, status));
+        }
+
+        catch (RuntimeException e) {
+            if (commands.size() > 1) {
+                for (Command eachCommand : commands) {
+                    this.commitBatch(Collections.singletonList(eachCommand));
+                }
+            }
+
+            else {
+                LOGGER.error("Circulation transaction failed", e);
+                commands.get(0).result.completeExceptionally(e);
+            }
+
+            return;
+        }
+
+        for (Map.Entry<Command, Object> eachOutcome : outcomes.entrySet()) {
+            if (eachOutcome.getValue() instanceof Transaction) {
+                Transaction savedTrn = (Transaction) eachOutcome.getValue();
+                this.circulationService.publish(savedTrn);
+
+                if (eachOutcome.getKey().idempotencyRecord != null) {
+                    this.idempotencyCache.remember(eachOutcome.getKey().idempotencyRecord);
+                }
+
+                eachOutcome.getKey().result.complete(savedTrn);
+            }
+
+            else {
+                eachOutcome.getKey().result.completeExceptionally((Throwable) eachOutcome.getValue());
+            }
+        }
+    }
+
+    /**
+     * Run the callback in a database transaction, running it again in a new one
+     * if it loses a deadlock or times out waiting for a lock
+     *
+     * @param <T>      type of the result
+     * @param callback work of the database transaction
+     * @return result of the callback
+     */
+    public <T> T executeWithLockRetry(TransactionCallback<T> callback) {
+        this.circulationLock.readLock().lock();
+
+        try {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    return this.transactionTemplate.execute(callback);
+                }
+
+                catch (DeadlockLoserDataAccessException | CannotAcquireLockException e) {
+                    if (attempt == LOCK_RETRIES) {
+                        throw e;
+                    }
+
+                    LOGGER.warn("Circulation lost a row lock, retrying", e);
+                }
+            }
+        }
+
+        finally {
+            this.circulationLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Run the work once the circulation in progress is committed, holding back
+     * further circulation until the work is done
+     *
+     * @param <T>           type of the result
+     * @param work          work that must not overlap any circulation
+     * @param timeoutMillis how long to wait for the circulation in progress
+     * @return result of the work
+     * @throws TimeoutException     if the circulation in progress did not finish
+     *                              in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public <T> T runExclusively(Supplier<T> work, long timeoutMillis)
+            throws TimeoutException, InterruptedException {
+
+        if (!this.circulationLock.writeLock().tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("Circulation is in progress");
+        }
+
+        try {
+            return work.get();
+        }
+
+        finally {
+            this.circulationLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lock the loaners and then the books of the transactions, each in id order
+     *
+     * @param commands transactions taken from the lane
+     */
+    private void lockRows(List<Command> commands) {
+        Set<Long> loanerIds = new TreeSet<>();
+        Set<Long> bookIds = new TreeSet<>();
+
+        for (Command eachCommand : commands) {
+            Transaction t = eachCommand.transaction;
+
+            if (t.getLoaner() != null) {
+                loanerIds.add(t.getLoaner().getLoanerId());
+            }
+
+            if (t.getBookCopies() != null) {
+                for (TrnQuantities tq : t.getBookCopies()) {
+                    if (tq.getBook() != null) {
+                        bookIds.add(tq.getBook().getBookId());
+                    }
+                }
+            }
+        }
+
+        this.circulationService.lockLoaners(loanerIds);
+        this.circulationService.lockBooks(bookIds);
+    }
+
+    /**
+     * Prepare and apply the transactions; must run within a database transaction
+     *
+     * @param commands transactions taken from the lane
+     * @param status   status of the database transaction
+     * @return saved transaction or failure of each command
+     */
+    private Map<Command, Object> executeAll(List<Command> commands, TransactionStatus status) {
+        Map<Command, Object> outcomes = new HashMap<>();
+        Map<Long, Integer> claimed = new HashMap<>();
+        CirculationService.CirculationBatch batch = new CirculationService.CirculationBatch();
+
+        this.lockRows(commands);
+
+        for (Command eachCommand : commands) {
+            if (eachCommand.idempotencyKey != null) {
+                IdempotencyRecord record = this.idempotencyCache.find(eachCommand.idempotencyKey);
+
+                if (record != null) {
+                    outcomes.put(eachCommand, new AlreadySavedException(record));
+                    continue;
+                }
+            }
+
+            Transaction t = copyOf(eachCommand.transaction);
+            CirculationService.CirculationDates dates;
+
+            try {
+                dates = this.circulationService.prepare(t, eachCommand.borrowDate, eachCommand.dueDate, claimed);
+            }
+
+            catch (CirculationService.CirculationException e) {
+                outcomes.put(eachCommand, e);
+                continue;
+            }
+
+            try {
+                Transaction savedTrn = this.circulationService.apply(t, dates, batch);
+                outcomes.put(eachCommand, savedTrn);
+
+                if (eachCommand.idempotencyKey != null) {
+                    eachCommand.idempotencyRecord = this.idempotencyCache.save(eachCommand.idempotencyKey,
+                            savedTrn.getTransactionId(), eachCommand.requestHash);
+                }
+            }
+
+            catch (CirculationService.CirculationException e) {
+                if (commands.size() > 1) {
+                    throw new BatchConflictException();
+                }
+
+                // nothing else in the batch, so fail it without retrying
+                status.setRollbackOnly();
+                outcomes.put(eachCommand, e);
+                return outcomes;
+            }
+        }
+
+        this.circulationService.persist(batch);
+        return outcomes;
+    }
+}
@@ -0,0 +1,604 @@
+package com.budlib.api.service;
+
+import com.budlib.api.enums.*;
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import lombok.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+/**
+ * Validates and records the circulation of books - borrowing, returning and
+ * extending loans. The checks read the state fetched by the caller, while the
+ * available copies are adjusted with guarded updates in the database. All
+ * methods must run within the caller's database transaction.
+ */
+@Service
+public class CirculationService {
+    /**
+     * Format of the borrow and due dates supplied with a transaction
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private TrnQuantitiesRepository trnQuantitiesRepository;
+
+    @Autowired
+    private LibrarianRepository librarianRepository;
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    @Autowired
+    private LoanRepository loanRepository;
+
+    @Autowired
+    private JournalEntryRepository journalEntryRepository;
+
+    @Autowired
+    private BookSuggestionIndex bookSuggestionIndex;
+
+    @Autowired
+    private CirculationJournal circulationJournal;
+
+    @Autowired
+    private CirculationOutbox circulationOutbox;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    private LibraryCounters libraryCounters;
+
+    @Autowired
+    private LoanDueIndex loanDueIndex;
+
+    @Autowired
+    private CirculationAnalytics circulationAnalytics;
+
+    /**
+     * Thrown when the transaction cannot be carried out
+     */
+    @Getter
+    public static class CirculationException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * HTTP Status to respond with
+         */
+        private final HttpStatus status;
+
+        public CirculationException(HttpStatus status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Borrow and due dates of the transaction
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class CirculationDates {
+        private LocalDate borrowDate;
+        private LocalDate dueDate;
+    }
+
+    /**
+     * Loans changed by the recorded transactions, written together by
+     * {@link CirculationService#persist(CirculationBatch)}
+     */
+    @Getter
+    public static class CirculationBatch {
+        private final List<Loan> newLoans = new ArrayList<>();
+        private final List<Loan> settledLoans = new ArrayList<>();
+        private final List<Loan> extendedLoans = new ArrayList<>();
+        private final Map<Long, Loaner> loaners = new LinkedHashMap<>();
+        private final List<TrnQuantities> trnQuantities = new ArrayList<>();
+        private final List<JournalEntry> journalEntries = new ArrayList<>();
+        private final List<OutboxEvent> outboxEvents = new ArrayList<>();
+    }
+
+    /**
+     * Parse the supplied date
+     *
+     * @param date    date as yyyyMMdd
+     * @param message message if the date is invalid
+     * @return the date
+     * @throws CirculationException if the date is invalid
+     */
+    private static LocalDate parseDate(String date, String message) throws CirculationException {
+        try {
+            return LocalDate.parse(date, DATE_FORMAT);
+        }
+
+        catch (DateTimeParseException e) {
+            throw new CirculationException(HttpStatus.BAD_REQUEST, message);
+        }
+    }
+
+    /**
+     * Work out the borrow and due dates of the transaction. Borrowing needs the
+     * borrow date, and the due date defaults to 4 weeks later. Extending needs the
+     * due date.
+     *
+     * @param type       transaction type
+     * @param borrowDate supplied borrow date as yyyyMMdd
+     * @param dueDate    supplied due date as yyyyMMdd
+     * @param today      date of the transaction
+     * @return borrow and due dates
+     * @throws CirculationException if a date is missing or invalid
+     */
+    public CirculationDates resolveDates(TransactionType type, String borrowDate, String dueDate, LocalDate today)
+            throws CirculationException {
+
+        if (type == null) {
+            throw new CirculationException(HttpStatus.BAD_REQUEST, "Transaction type not specified");
+        }
+
+        // initializing with default values
+        LocalDate resolvedBorrowDate = today;
+        LocalDate resolvedDueDate = today.plusWeeks(4);
+
+        if (type.equals(TransactionType.BORROW)) {
+            if (borrowDate == null || borrowDate.equals("")) {
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "Borrow date not specified");
+            }
+
+            resolvedBorrowDate = parseDate(borrowDate, "Invalid borrow date specified");
+
+            // if due date is not specified, default is 4 weeks
+            if (dueDate == null || dueDate.equals("")) {
+                resolvedDueDate = resolvedBorrowDate.plusWeeks(4);
+            }
+
+            else {
+                resolvedDueDate = parseDate(dueDate, "Invalid due date specified");
+
+                if (resolvedDueDate.compareTo(resolvedBorrowDate) < 0) {
+                    throw new CirculationException(HttpStatus.BAD_REQUEST, "Borrow date cannot be after due date");
+                }
+            }
+        }
+
+        // due date must be specified when providing extension
+        else if (type.equals(TransactionType.EXTEND)) {
+            if (dueDate == null || dueDate.equals("")) {
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "Due date not specified");
+            }
+
+            resolvedDueDate = parseDate(dueDate, "Invalid due date specified");
+        }
+
+        return new CirculationDates(resolvedBorrowDate, resolvedDueDate);
+    }
+
+    /**
+     * Fetch the librarian facilitating the transaction
+     *
+     * @param suppliedLibrarian librarian as supplied in the request
+     * @return the librarian from the database
+     * @throws CirculationException if the librarian is missing or not found
+     */
+    public Librarian findLibrarian(Librarian suppliedLibrarian) throws CirculationException {
+        if (suppliedLibrarian == null) {
+            throw new CirculationException(HttpStatus.BAD_REQUEST, "Librarian coordinator not specified");
+        }
+
+        Optional<Librarian> librarianOptional = this.librarianRepository.findById(suppliedLibrarian.getLibrarianId());
+
+        if (librarianOptional.isPresent()) {
+            return librarianOptional.get();
+        }
+
+        else {
+            throw new CirculationException(HttpStatus.NOT_FOUND, "Librarian not found");
+        }
+    }
+
+    /**
+     * Fetch and lock the loaner of the transaction, so that the transactions of
+     * a loaner are committed one at a time and their outbox events keep their
+     * order
+     *
+     * @param suppliedLoaner loaner as supplied in the request
+     * @return the loaner from the database
+     * @throws CirculationException if the loaner is missing or not found
+     */
+    public Loaner findLoaner(Loaner suppliedLoaner) throws CirculationException {
+        if (suppliedLoaner == null) {
+            throw new CirculationException(HttpStatus.BAD_REQUEST, "No loaner specified");
+        }
+
+        Optional<Loaner> loanerOptional = this.loanerRepository.findByIdForUpdate(suppliedLoaner.getLoanerId());
+
+        if (loanerOptional.isPresent()) {
+            return loanerOptional.get();
+        }
+
+        else {
+            throw new CirculationException(HttpStatus.NOT_FOUND, "Loaner not found");
+        }
+    }
+
+    /**
+     * Aggregate the quantities of the books - if the same book is specified more
+     * than once (different loanIds), the quantity is added up
+     *
+     * @param suppliedTrnQtyList quantities as supplied in the request
+     * @return quantities by book id, in the order supplied
+     * @throws CirculationException if no books or invalid quantities are given
+     */
+    public Map<Long, TrnQuantities> aggregate(List<TrnQuantities> suppliedTrnQtyList) throws CirculationException {
+        if (suppliedTrnQtyList == null || suppliedTrnQtyList.isEmpty()) {
+            throw new CirculationException(HttpStatus.BAD_REQUEST, "No books specified");
+        }
+
+        Map<Long, TrnQuantities> aggregatedTrnQty = new LinkedHashMap<>();
+
+        for (TrnQuantities stq : suppliedTrnQtyList) {
+            if (stq.getBook() == null) {
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "No books specified");
+            }
+
+            TrnQuantities atq = aggregatedTrnQty.putIfAbsent(stq.getBook().getBookId(), stq);
+
+            if (atq != null) {
+                atq.setCopies(atq.getCopies() + stq.getCopies());
+            }
+        }
+
+        for (TrnQuantities tq : aggregatedTrnQty.values()) {
+            if (tq.getCopies() < 1) {
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "Invalid quantity specified");
+            }
+        }
+
+        return aggregatedTrnQty;
+    }
+
+    /**
+     * Fetch the books in one query, with their tags for the rollups
+     *
+     * @param bookIds book ids
+     * @return books by id
+     */
+    public Map<Long, Book> findBooks(Collection<Long> bookIds) {
+        Map<Long, Book> booksById = new HashMap<>();
+
+        if (bookIds.isEmpty()) {
+            return booksById;
+        }
+
+        for (Book eachBook : this.bookRepository.findAllWithTagsById(bookIds)) {
+            booksById.put(eachBook.getBookId(), eachBook);
+        }
+
+        return booksById;
+    }
+
+    /**
+     * Check the quantities of the transaction against the books and the loans of
+     * the loaner. When borrowing, the copies already claimed by earlier
+     * transactions of the same batch are taken into account.
+     *
+     * @param type       transaction type
+     * @param loaner     loaner of the transaction
+     * @param quantities aggregated quantities of the transaction
+     * @param booksById  books of the transaction
+     * @param claimed    copies claimed by book id; updated when borrowing
+     * @return the checked quantities, with the books from the database
+     * @throws CirculationException if any quantity is not valid
+     */
+    public List<TrnQuantities> checkQuantities(TransactionType type, Loaner loaner,
+            Collection<TrnQuantities> quantities, Map<Long, Book> booksById, Map<Long, Integer> claimed)
+            throws CirculationException {
+
+        List<TrnQuantities> checkedTrnQtyList = new ArrayList<>();
+
+        for (TrnQuantities tq : quantities) {
+            Book b = booksById.get(tq.getBook().getBookId());
+
+            if (b == null) {
+                throw new CirculationException(HttpStatus.NOT_FOUND, "One or more books not found");
+            }
+
+            // cannot borrow if book has no copies left
+            if (type.equals(TransactionType.BORROW)
+                    && tq.getCopies() + claimed.getOrDefault(b.getBookId(), 0) > b.getAvailableQuantity()) {
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "Not enough copies available");
+            }
+
+            // cannot return more than you borrowed
+            else if (type.equals(TransactionType.RETURN)
+                    && tq.getCopies() > loaner.findOutstandingCopiesByBook(b)) {
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "Cannot return more than what was borrowed");
+            }
+
+            // cannot extend partial number of copies of the same book
+            else if (type.equals(TransactionType.EXTEND)
+                    && tq.getCopies() != loaner.findOutstandingCopiesByBook(b)) {
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "Cannot extend partial number of copies");
+            }
+
+            tq.setBook(b);
+            checkedTrnQtyList.add(tq);
+        }
+
+        if (type.equals(TransactionType.BORROW)) {
+            for (TrnQuantities tq : checkedTrnQtyList) {
+                claimed.merge(tq.getBook().getBookId(), tq.getCopies(), Integer::sum);
+            }
+        }
+
+        return checkedTrnQtyList;
+    }
+
+    /**
+     * Adjust the available copies in the database. Borrowing decrements only when
+     * enough copies are left, as another desk may have borrowed the same book
+     * since the books were read. Books are updated in id order, so concurrent
+     * transactions do not deadlock. On failure the caller must roll back the
+     * database transaction, as some books may already be updated.
+     *
+     * @param type         transaction type
+     * @param copiesByBook copies by book id
+     * @throws CirculationException if a book does not have enough copies left
+     */
+    public void adjustAvailability(TransactionType type, Map<Long, Integer> copiesByBook)
+            throws CirculationException {
+
+        for (Map.Entry<Long, Integer> eachBook : new TreeMap<>(copiesByBook).entrySet()) {
+            if (type.equals(TransactionType.BORROW)
+                    && this.bookRepository.decrementAvailableQuantity(eachBook.getKey(), eachBook.getValue()) == 0) {
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "Not enough copies available");
+            }
+
+            else if (type.equals(TransactionType.RETURN)) {
+                this.bookRepository.incrementAvailableQuantity(eachBook.getKey(), eachBook.getValue());
+            }
+        }
+    }
+
+    /**
+     * Lock the loaners in id order until the database transaction ends. Writers
+     * locking several rows lock the loaners before the books, so that they never
+     * wait on each other in a cycle.
+     *
+     * @param loanerIds ids of the loaners
+     */
+    public void lockLoaners(Collection<Long> loanerIds) {
+        if (!loanerIds.isEmpty()) {
+            this.loanerRepository.findAllByIdForUpdate(loanerIds);
+        }
+    }
+
+    /**
+     * Lock the books in id order until the database transaction ends, so that
+     * their available copies can then be adjusted in any order without deadlocks
+     *
+     * @param bookIds ids of the books
+     */
+    public void lockBooks(Collection<Long> bookIds) {
+        if (!bookIds.isEmpty()) {
+            this.bookRepository.findAllByIdForUpdate(bookIds);
+        }
+    }
+
+    /**
+     * Adjust the available copies of the books of one transaction, undoing its
+     * decrements if a book does not have enough copies left, so that the caller
+     * may carry on with other transactions. The books must already be locked by
+     * {@link CirculationService#lockBooks(Collection)}.
+     *
+     * @param type         transaction type
+     * @param copiesByBook copies by book id
+     * @throws CirculationException if a book does not have enough copies left
+     */
+    public void adjustAvailabilityOrUndo(TransactionType type, Map<Long, Integer> copiesByBook)
+            throws CirculationException {
+
+        if (!type.equals(TransactionType.BORROW)) {
+            this.adjustAvailability(type, copiesByBook);
+            return;
+        }
+
+        List<Map.Entry<Long, Integer>> decremented = new ArrayList<>();
+
+        for (Map.Entry<Long, Integer> eachBook : copiesByBook.entrySet()) {
+            if (this.bookRepository.decrementAvailableQuantity(eachBook.getKey(), eachBook.getValue()) == 0) {
+                for (Map.Entry<Long, Integer> eachDecremented : decremented) {
+                    this.bookRepository.incrementAvailableQuantity(eachDecremented.getKey(),
+                            eachDecremented.getValue());
+                }
+
+                throw new CirculationException(HttpStatus.BAD_REQUEST, "Not enough copies available");
+            }
+
+            decremented.add(eachBook);
+        }
+    }
+
+    /**
+     * Sum the copies of the quantities by book
+     *
+     * @param quantities quantities of one or more transactions
+     * @param copiesByBook copies by book id to add to
+     */
+    public static void sumCopiesByBook(Collection<TrnQuantities> quantities, Map<Long, Integer> copiesByBook) {
+        for (TrnQuantities tq : quantities) {
+            copiesByBook.merge(tq.getBook().getBookId(), tq.getCopies(), Integer::sum);
+        }
+    }
+
+    /**
+     * Validate the transaction and replace the supplied librarian, loaner and
+     * books with those from the database. Nothing is written, so the caller may
+     * carry on with other transactions after a failure.
+     *
+     * @param t          transaction as supplied in the request
+     * @param borrowDate supplied borrow date as yyyyMMdd
+     * @param dueDate    supplied due date as yyyyMMdd
+     * @param claimed    copies claimed by book id by earlier transactions of the
+     *                   same database transaction; updated when borrowing
+     * @return borrow and due dates
+     * @throws CirculationException if the transaction is not valid
+     */
+    public CirculationDates prepare(Transaction t, String borrowDate, String dueDate, Map<Long, Integer> claimed)
+            throws CirculationException {
+
+        CirculationDates dates = this.resolveDates(t.getTransactionType(), borrowDate, dueDate,
+                t.getTransactionDateTime().toLocalDate());
+
+        t.setLibrarian(this.findLibrarian(t.getLibrarian()));
+
+        Loaner loaner = this.findLoaner(t.getLoaner());
+        t.setLoaner(loaner);
+
+        Map<Long, TrnQuantities> aggregatedTrnQty = this.aggregate(t.getBookCopies());
+        Map<Long, Book> booksById = this.findBooks(aggregatedTrnQty.keySet());
+
+        t.setBookCopies(this.checkQuantities(t.getTransactionType(), loaner, aggregatedTrnQty.values(), booksById,
+                claimed));
+
+        return dates;
+    }
+
+    /**
+     * Adjust the available copies and record the prepared transaction. On
+     * failure the caller must roll back the database transaction.
+     *
+     * @param t     transaction returned by prepare
+     * @param dates borrow and due dates
+     * @param batch batch to add the changes to
+     * @return the saved transaction
+     * @throws CirculationException if a book does not have enough copies left
+     */
+    public Transaction apply(Transaction t, CirculationDates dates, CirculationBatch batch)
+            throws CirculationException {
+
+        Map<Long, Integer> copiesByBook = new HashMap<>();
+        sumCopiesByBook(t.getBookCopies(), copiesByBook);
+        this.adjustAvailability(t.getTransactionType(), copiesByBook);
+
+        return this.record(t, dates, batch);
+    }
+
+    /**
+     * Update the in-memory indexes with a saved transaction
+     *
+     * @param savedTrn the saved transaction
+     */
+    public void publish(Transaction savedTrn) {
+        if (savedTrn.getTransactionType().equals(TransactionType.BORROW)) {
+            for (TrnQuantities ctq : savedTrn.getBookCopies()) {
+                this.bookSuggestionIndex.recordBorrow(ctq.getBook().getBookId(), ctq.getCopies());
+            }
+        }
+    }
+
+    /**
+     * Save the checked transaction and update the loans of the loaner in memory;
+     * the loans are written by {@link CirculationService#persist(CirculationBatch)}
+     *
+     * @param t     transaction with the librarian, loaner and checked quantities
+     * @param dates borrow and due dates
+     * @param batch batch to add the changes to
+     * @return the saved transaction
+     */
+    public Transaction record(Transaction t, CirculationDates dates, CirculationBatch batch) {
+        Transaction savedTrn = this.transactionRepository.save(t);
+        Loaner loaner = savedTrn.getLoaner();
+
+        for (TrnQuantities ctq : savedTrn.getBookCopies()) {
+            ctq.setTransaction(savedTrn);
+
+            Book ctqb = ctq.getBook();
+
+            if (savedTrn.getTransactionType().equals(TransactionType.BORROW)) {
+                Loan newLoan = new Loan(0L, loaner, ctqb, ctq.getCopies(), dates.getBorrowDate(), dates.getDueDate());
+                batch.getNewLoans().add(newLoan);
+                loaner.addLoan(newLoan);
+            }
+
+            else if (savedTrn.getTransactionType().equals(TransactionType.RETURN)) {
+                // this list will have only atmost one element
+                batch.getSettledLoans().addAll(loaner.updateLoans(ctqb, ctq.getCopies()));
+            }
+
+            else {
+                Loan extendedLoan = loaner.updateLoanDueDate(ctqb, dates.getDueDate());
+
+                if (extendedLoan != null) {
+                    batch.getExtendedLoans().add(extendedLoan);
+                }
+            }
+
+            batch.getTrnQuantities().add(ctq);
+        }
+
+        batch.getLoaners().put(loaner.getLoanerId(), loaner);
+        batch.getJournalEntries().addAll(this.circulationJournal.entriesOf(savedTrn, dates));
+        batch.getOutboxEvents().add(this.circulationOutbox.eventOf(savedTrn, dates));
+        return savedTrn;
+    }
+
+    /**
+     * Write the changes of the recorded transactions; with jdbc batching enabled,
+     * the statements of each kind are sent together. The dashboard counters, due
+     * dates and rollups are updated once the changes are committed.
+     *
+     * @param batch changes of the recorded transactions
+     */
+    public void persist(CirculationBatch batch) {
+        this.loanRepository.saveAll(batch.getNewLoans());
+        this.loanRepository.deleteAll(batch.getSettledLoans());
+        this.loanerRepository.saveAll(batch.getLoaners().values());
+        this.trnQuantitiesRepository.saveAll(batch.getTrnQuantities());
+        this.journalEntryRepository.saveAll(batch.getJournalEntries());
+        this.outboxEventRepository.saveAll(batch.getOutboxEvents());
+
+        long outstandingChange = 0;
+        Map<Long, Transaction> savedTransactions = new LinkedHashMap<>();
+
+        for (TrnQuantities tq : batch.getTrnQuantities()) {
+            savedTransactions.put(tq.getTransaction().getTransactionId(), tq.getTransaction());
+
+            if (tq.getTransaction().getTransactionType().equals(TransactionType.BORROW)) {
+                outstandingChange += tq.getCopies();
+            }
+
+            else if (tq.getTransaction().getTransactionType().equals(TransactionType.RETURN)) {
+                outstandingChange -= tq.getCopies();
+            }
+        }
+
+        this.libraryCounters.adjust(0, 0, 0, outstandingChange);
+
+        for (Transaction savedTrn : savedTransactions.values()) {
+            this.circulationAnalytics.record(savedTrn);
+        }
+
+        List<Loan> dueDateChanges = new ArrayList<>(batch.getNewLoans());
+        dueDateChanges.addAll(batch.getExtendedLoans());
+        this.loanDueIndex.update(dueDateChanges, batch.getSettledLoans());
+    }
+}
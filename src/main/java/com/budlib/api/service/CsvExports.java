@@ -0,0 +1,427 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import com.mysql.cj.conf.PropertyKey;
+import com.mysql.cj.conf.PropertySet;
+import com.mysql.cj.jdbc.JdbcConnection;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.apache.commons.csv.*;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Writes the books, loaners, loans and transactions as CSV. Each export is a
+ * single query, read in one read-only database transaction through a
+ * server-side cursor with a fixed fetch size, that joins everything its rows
+ * print. MySQL still materializes the result of the cursor on the server, but
+ * the application receives it a fetch size at a time. Rows are written out as
+ * they arrive, and the persistence context is cleared every few hundred rows,
+ * so an export runs a bounded number of queries and holds a bounded number of
+ * rows in memory whatever the size of the table.
+ */
+@Service
+public class CsvExports {
+    /**
+     * Headers of the books export
+     */
+    public static final String[] BOOK_HEADERS = { "bookId", "title", "subtitle", "authors", "publisher", "edition",
+            "year", "language", "isbn10", "isbn13", "librarySection", "totalQuantity", "availableQuantity", "notes",
+            "imageLink", "retailPrice", "libraryPrice", "tags" };
+
+    /**
+     * Headers of the loaners export
+     */
+    public static final String[] LOANER_HEADERS = { "loanerId", "schoolId", "isStudent", "email", "salutation",
+            "first_name", "middle_name", "last_name", "mother_name", "father_name" };
+
+    /**
+     * Headers of the outstanding loans export
+     */
+    public static final String[] LOAN_HEADERS = { "loanId", "loanerId", "loanerSchoolId", "loanerEmail",
+            "loanerFullName", "bookId", "bookIsbn10", "bookIsbn13", "bookTitle", "loanedCopies", "borrowDate",
+            "dueDate" };
+
+    /**
+     * Headers of the transactions export
+     */
+    public static final String[] TRANSACTION_HEADERS = { "trnId", "trnDateTime", "trnType", "facilitatorId",
+            "facilitatorFullName", "facilitatorEmail", "loanerId", "loanerSchoolId", "loanerFullName", "loanerEmail",
+            "bookId", "bookIsbn10", "bookIsbn13", "bookTitle", "loanedCopies" };
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    @Autowired
+    private LoanRepository loanRepository;
+
+    @Autowired
+    private TrnQuantitiesRepository trnQuantitiesRepository;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${budlib.export.clear-interval}")
+    private int clearInterval;
+
+    private TransactionTemplate readOnlyTemplate;
+
+    /**
+     * Export writing its rows to the writer
+     */
+    @FunctionalInterface
+    public interface Export {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    /**
+     * Export writing the rows in a range of ids to the writer, without headers
+     */
+    @FunctionalInterface
+    public interface RangeExport {
+        void writeTo(Writer writer, long fromId, long toId) throws IOException;
+    }
+
+    /**
+     * Prints the rows of an export as CSV
+     */
+    private interface RowPrinter<T> {
+        /**
+         * Print the row
+         *
+         * @param printer where to print
+         * @param row     row read from the database
+         * @throws IOException if writing fails
+         */
+        void print(CSVPrinter printer, T row) throws IOException;
+
+        /**
+         * Print anything held back once all rows are read
+         *
+         * @param printer where to print
+         * @throws IOException if writing fails
+         */
+        default void finish(CSVPrinter printer) throws IOException {
+        }
+    }
+
+    /**
+     * Create the read-only transaction template used for each export
+     */
+    @PostConstruct
+    public void init() {
+        this.readOnlyTemplate = new TransactionTemplate(this.transactionManager);
+        this.readOnlyTemplate.setReadOnly(true);
+    }
+
+    /**
+     * Write the rows of the query as they are read
+     *
+     * @param writer     where to write the CSV
+     * @param headers    CSV headers; null to write the rows only
+     * @param query      opens the stream of rows; must be called within a
+     *                   database transaction
+     * @param rowPrinter prints the rows
+     * @throws IOException if writing fails
+     */
+    private <T> void writeRows(Writer writer, String[] headers, Supplier<Stream<T>> query, RowPrinter<T> rowPrinter)
+            throws IOException {
+
+        CSVFormat format = headers == null ? CSVFormat.DEFAULT : CSVFormat.DEFAULT.withHeader(headers);
+        CSVPrinter printer = new CSVPrinter(writer, format);
+
+        try {
+            this.readOnlyTemplate.executeWithoutResult(status -> {
+                Session session = this.entityManager.unwrap(Session.class);
+                session.doWork(connection -> setCursorFetch(connection, true));
+
+                try (Stream<T> rows = query.get()) {
+                    Iterator<T> iterator = rows.iterator();
+                    long count = 0;
+
+                    while (iterator.hasNext()) {
+                        rowPrinter.print(printer, iterator.next());
+                        count++;
+
+                        // rows already printed are not needed any more
+                        if (count % this.clearInterval == 0) {
+                            printer.flush();
+                            this.entityManager.clear();
+                        }
+                    }
+
+                    rowPrinter.finish(printer);
+                    printer.flush();
+                }
+
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                finally {
+                    // back to the datasource settings before the connection returns to the pool
+                    session.doWork(connection -> setCursorFetch(connection, false));
+                }
+            });
+        }
+
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Switch the connection between reading results through a server-side
+     * cursor, a fetch size at a time, and the default of client-side prepared
+     * statements whose results are read whole. Only the exports use cursors, so
+     * the other queries do not pay for a server-side prepare each.
+     *
+     * @param connection connection of the export
+     * @param enabled    true to read through cursors
+     * @throws SQLException if the connection is not a MySQL connection
+     */
+    private static void setCursorFetch(Connection connection, boolean enabled) throws SQLException {
+        PropertySet properties = connection.unwrap(JdbcConnection.class).getPropertySet();
+        properties.getBooleanProperty(PropertyKey.useCursorFetch).setValue(enabled);
+        properties.getBooleanProperty(PropertyKey.useServerPrepStmts).setValue(enabled);
+    }
+
+    /**
+     * Write all the books, with their tags
+     *
+     * @param writer where to write the CSV
+     * @throws IOException if writing fails
+     */
+    public void writeBooks(Writer writer) throws IOException {
+        this.writeRows(writer, BOOK_HEADERS, () -> this.bookRepository.streamWithTagNames(0L, Long.MAX_VALUE),
+                new BookPrinter());
+    }
+
+    /**
+     * Write the rows of the books with ids in the range, with their tags
+     *
+     * @param writer where to write the CSV
+     * @param fromId id after which the range starts
+     * @param toId   last id of the range
+     * @throws IOException if writing fails
+     */
+    public void writeBooks(Writer writer, long fromId, long toId) throws IOException {
+        this.writeRows(writer, null, () -> this.bookRepository.streamWithTagNames(fromId, toId), new BookPrinter());
+    }
+
+    /**
+     * Prints the books from rows of a book and one of its tag names, ordered by
+     * book. A book is printed once its last row is read.
+     */
+    private static class BookPrinter implements RowPrinter<Object[]> {
+        private Book book;
+        private final List<String> tagNames = new ArrayList<>();
+
+        @Override
+        public void print(CSVPrinter printer, Object[] row) throws IOException {
+            Book rowBook = (Book) row[0];
+
+            // compared by id, as the entity is detached when the context is cleared
+            if (this.book != null && this.book.getBookId() != rowBook.getBookId()) {
+                this.finish(printer);
+            }
+
+            if (this.book == null) {
+                this.book = rowBook;
+            }
+
+            if (row[1] != null) {
+                this.tagNames.add((String) row[1]);
+            }
+        }
+
+        @Override
+        public void finish(CSVPrinter printer) throws IOException {
+            if (this.book != null) {
+                printBook(printer, this.book, this.tagNames);
+                this.book = null;
+                this.tagNames.clear();
+            }
+        }
+    }
+
+    private static void printBook(CSVPrinter printer, Book eachBook, List<String> tagNames) throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        for (String eachTagName : tagNames) {
+            sb.append(String.format("%s, ", eachTagName));
+        }
+
+        printer.printRecord(String.valueOf(eachBook.getBookId()), eachBook.getTitle(), eachBook.getSubtitle(),
+                eachBook.getAuthors(), eachBook.getPublisher(), eachBook.getEdition(), eachBook.getYear(),
+                eachBook.getLanguage(), eachBook.getIsbn_10(), eachBook.getIsbn_13(),
+                eachBook.getLibrarySection().toString(), String.valueOf(eachBook.getTotalQuantity()),
+                String.valueOf(eachBook.getAvailableQuantity()), eachBook.getNotes(), eachBook.getImageLink(),
+                String.valueOf(eachBook.getPriceRetail()), String.valueOf(eachBook.getPriceLibrary()),
+                sb.toString());
+    }
+
+    /**
+     * Write all the loaners
+     *
+     * @param writer where to write the CSV
+     * @throws IOException if writing fails
+     */
+    public void writeLoaners(Writer writer) throws IOException {
+        this.writeRows(writer, LOANER_HEADERS, () -> this.loanerRepository.stream(0L, Long.MAX_VALUE),
+                CsvExports::printLoaner);
+    }
+
+    /**
+     * Write the rows of the loaners with ids in the range
+     *
+     * @param writer where to write the CSV
+     * @param fromId id after which the range starts
+     * @param toId   last id of the range
+     * @throws IOException if writing fails
+     */
+    public void writeLoaners(Writer writer, long fromId, long toId) throws IOException {
+        this.writeRows(writer, null, () -> this.loanerRepository.stream(fromId, toId), CsvExports::printLoaner);
+    }
+
+    private static void printLoaner(CSVPrinter printer, Loaner eachLoaner) throws IOException {
+        printer.printRecord(String.valueOf(eachLoaner.getLoanerId()), eachLoaner.getSchoolId(),
+                String.valueOf(eachLoaner.isStudent()), eachLoaner.getEmail(), eachLoaner.getSalutation(),
+                eachLoaner.getFirstName(), eachLoaner.getMiddleName(), eachLoaner.getLastName(),
+                eachLoaner.getMotherName(), eachLoaner.getFatherName());
+    }
+
+    /**
+     * Write all the outstanding loans, with their loaners and books
+     *
+     * @param writer where to write the CSV
+     * @throws IOException if writing fails
+     */
+    public void writeLoans(Writer writer) throws IOException {
+        this.writeRows(writer, LOAN_HEADERS, () -> this.loanRepository.streamWithLoanerAndBook(0L, Long.MAX_VALUE),
+                CsvExports::printLoan);
+    }
+
+    /**
+     * Write the rows of the outstanding loans with ids in the range
+     *
+     * @param writer where to write the CSV
+     * @param fromId id after which the range starts
+     * @param toId   last id of the range
+     * @throws IOException if writing fails
+     */
+    public void writeLoans(Writer writer, long fromId, long toId) throws IOException {
+        this.writeRows(writer, null, () -> this.loanRepository.streamWithLoanerAndBook(fromId, toId),
+                CsvExports::printLoan);
+    }
+
+    private static void printLoan(CSVPrinter printer, Loan eachLoan) throws IOException {
+        Loaner correspondingLoaner = eachLoan.getLoaner();
+        Book correspondingBook = eachLoan.getBook();
+
+        printer.printRecord(String.valueOf(eachLoan.getLoanId()), String.valueOf(correspondingLoaner.getLoanerId()),
+                correspondingLoaner.getSchoolId(), correspondingLoaner.getEmail(),
+                correspondingLoaner.getFullNameWithSalutation(), String.valueOf(correspondingBook.getBookId()),
+                correspondingBook.getIsbn_10(), correspondingBook.getIsbn_13(), correspondingBook.getTitle(),
+                String.valueOf(eachLoan.getCopies()), eachLoan.getBorrowDate().toString(),
+                eachLoan.getDueDate().toString());
+    }
+
+    /**
+     * Write all the transactions, one row for each book in a transaction. The
+     * rows are read from the quantities, each joined with its transaction,
+     * librarian, loaner and book.
+     *
+     * @param writer where to write the CSV
+     * @throws IOException if writing fails
+     */
+    public void writeTransactions(Writer writer) throws IOException {
+        this.writeRows(writer, TRANSACTION_HEADERS,
+                () -> this.trnQuantitiesRepository.streamWithTransactionAndBook(0L, Long.MAX_VALUE),
+                CsvExports::printTransaction);
+    }
+
+    /**
+     * Write the rows of the transactions with ids in the range
+     *
+     * @param writer where to write the CSV
+     * @param fromId id after which the range starts
+     * @param toId   last id of the range
+     * @throws IOException if writing fails
+     */
+    public void writeTransactions(Writer writer, long fromId, long toId) throws IOException {
+        this.writeRows(writer, null, () -> this.trnQuantitiesRepository.streamWithTransactionAndBook(fromId, toId),
+                CsvExports::printTransaction);
+    }
+
+    private static void printTransaction(CSVPrinter printer, TrnQuantities eachTrnQty) throws IOException {
+        Transaction eachTrn = eachTrnQty.getTransaction();
+        String[] record = new String[TRANSACTION_HEADERS.length];
+
+        Librarian correspondingFacilitator = eachTrn.getLibrarian();
+        Loaner correspondingLoaner = eachTrn.getLoaner();
+
+        record[0] = String.valueOf(eachTrn.getTransactionId());
+        record[1] = eachTrn.getTransactionDateTime().format(DateTimeFormatter.ISO_INSTANT);
+        record[2] = eachTrn.getTransactionType().toString();
+
+        if (correspondingFacilitator == null) {
+            record[3] = "<removed>";
+            record[4] = "<removed>";
+            record[5] = "<removed>";
+        }
+
+        else {
+            record[3] = String.valueOf(correspondingFacilitator.getLibrarianId());
+            record[4] = correspondingFacilitator.getFullName();
+            record[5] = correspondingFacilitator.getEmail();
+        }
+
+        if (correspondingLoaner == null) {
+            record[6] = "<removed>";
+            record[7] = "<removed>";
+            record[8] = "<removed>";
+            record[9] = "<removed>";
+        }
+
+        else {
+            record[6] = String.valueOf(correspondingLoaner.getLoanerId());
+            record[7] = correspondingLoaner.getSchoolId();
+            record[8] = correspondingLoaner.getFullNameWithSalutation();
+            record[9] = correspondingLoaner.getEmail();
+        }
+
+        Book correspondingBook = eachTrnQty.getBook();
+
+        record[10] = String.valueOf(correspondingBook.getBookId());
+        record[11] = correspondingBook.getIsbn_10();
+        record[12] = correspondingBook.getIsbn_13();
+        record[13] = correspondingBook.getTitle();
+        record[14] = String.valueOf(eachTrnQty.getCopies());
+
+        printer.printRecord((Object[]) record);
+    }
+}
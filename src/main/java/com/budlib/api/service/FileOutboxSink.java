@@ -0,0 +1,82 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.OutboxEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Appends the events to a file, one JSON object per line, and syncs the file
+ * before the events are marked as delivered
+ */
+@Component
+@ConditionalOnProperty(name = "budlib.outbox.sink", havingValue = "file", matchIfMissing = true)
+public class FileOutboxSink implements OutboxSink {
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${budlib.outbox.file}")
+    private String file;
+
+    private FileChannel channel;
+
+    /**
+     * Open the file for appending
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        Path path = Paths.get(this.file).toAbsolutePath();
+        Files.createDirectories(path.getParent());
+
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Close the file
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public synchronized void deliver(List<OutboxEvent> events) throws IOException {
+        StringBuilder lines = new StringBuilder();
+
+        for (OutboxEvent eachEvent : events) {
+            ObjectNode line = this.objectMapper.createObjectNode();
+            line.put("eventId", eachEvent.getEventId());
+            line.put("loanerId", eachEvent.getLoanerId());
+            line.set("payload", this.objectMapper.readTree(eachEvent.getPayload()));
+
+            lines.append(this.objectMapper.writeValueAsString(line)).append('\n');
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+
+        this.channel.force(false);
+    }
+}
@@ -0,0 +1,56 @@
+package com.budlib.api.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Keeps the id_sequence table ahead of the ids already in use. Books, loaners,
+ * loans and transactions take their ids from id_sequence in blocks of 50, so
+ * that their inserts can be batched. Databases created before the table
+ * existed, or filled through the SQL scripts, would otherwise hand out ids
+ * which are taken.
+ */
+@Service
+public class IdSequenceAligner {
+    /**
+     * Id column of each table, by its row in id_sequence
+     */
+    private static final Map<String, String> ID_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        ID_COLUMNS.put("book", "book_id");
+        ID_COLUMNS.put("loaner", "loaner_id");
+        ID_COLUMNS.put("loan", "loan_id");
+        ID_COLUMNS.put("transaction", "trn_id");
+    }
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Move each sequence past the highest id of its table, before any id is
+     * handed out. A sequence already further ahead is left as it is.
+     */
+    @PostConstruct
+    public void align() {
+        new TransactionTemplate(this.transactionManager).executeWithoutResult(status -> {
+            for (Map.Entry<String, String> eachTable : ID_COLUMNS.entrySet()) {
+                String sql = "INSERT INTO id_sequence (sequence_name, next_val) SELECT '" + eachTable.getKey()
+                        + "', COALESCE(MAX(" + eachTable.getValue() + "), 0) + 1 FROM " + eachTable.getKey()
+                        + " ON DUPLICATE KEY UPDATE next_val = GREATEST(next_val, VALUES(next_val))";
+
+                this.entityManager.createNativeQuery(sql).executeUpdate();
+            }
+        });
+    }
+}
@@ -0,0 +1,224 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.IdempotencyRecord;
+import com.budlib.api.repository.IdempotencyRecordRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import javax.transaction.Transactional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Remembers the transactions saved with an Idempotency-Key. Recent keys are
+ * kept in a bounded LRU map in front of the idempotency_record table, which
+ * holds the keys until they expire. Only saved transactions are remembered, as
+ * a rejected transaction writes nothing and can safely be tried again. Each key
+ * is saved with a fingerprint of its request, so that a key reused for a
+ * different request is told apart from a retry.
+ *
+ * Lookups are counted in the metric budlib.idempotency.lookups, tagged with the
+ * result - memory_hit, store_hit or miss.
+ */
+@Service
+public class IdempotencyCache {
+    /**
+     * Request header carrying the key
+     */
+    public static final String HEADER = "Idempotency-Key";
+
+    /**
+     * Response header set when the result of an earlier request is returned
+     */
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    /**
+     * Longest key accepted, as stored in the table
+     */
+    public static final int MAX_KEY_LENGTH = 100;
+
+    @Autowired
+    private IdempotencyRecordRepository idempotencyRecordRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${budlib.idempotency.cache-size}")
+    private int cacheSize;
+
+    @Value("${budlib.idempotency.retention-hours}")
+    private long retentionHours;
+
+    private Map<String, IdempotencyRecord> recent;
+
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private Counter memoryHits;
+    private Counter storeHits;
+    private Counter misses;
+
+    /**
+     * Create the LRU map and the metrics
+     */
+    @PostConstruct
+    public void init() {
+        int maxEntries = this.cacheSize;
+
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IdempotencyRecord> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+
+        this.memoryHits = this.lookupCounter("memory_hit");
+        this.storeHits = this.lookupCounter("store_hit");
+        this.misses = this.lookupCounter("miss");
+
+        this.meterRegistry.gauge("budlib.idempotency.cache.size", this, IdempotencyCache::size);
+    }
+
+    private Counter lookupCounter(String result) {
+        return Counter.builder("budlib.idempotency.lookups")
+                .description("Lookups of Idempotency-Key values")
+                .tag("result", result)
+                .register(this.meterRegistry);
+    }
+
+    private synchronized int size() {
+        return this.recent.size();
+    }
+
+    /**
+     * Check whether the key is still remembered
+     *
+     * @param record record of the key
+     * @return true if the key has not expired
+     */
+    private boolean isLive(IdempotencyRecord record) {
+        return record.getCreatedAt().isAfter(ZonedDateTime.now().minusHours(this.retentionHours));
+    }
+
+    /**
+     * Fingerprint of a request
+     *
+     * @param request the parts of the request that decide its result, in a fixed
+     *                order
+     * @return SHA-256 of the request, as hex
+     */
+    public static String fingerprint(String request) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(request.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+
+            for (byte eachByte : digest) {
+                sb.append(String.format("%02x", eachByte));
+            }
+
+            return sb.toString();
+        }
+
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Find the record of the transaction saved with the key
+     *
+     * @param key Idempotency-Key of the request
+     * @return record of the saved transaction, or null if the key is new
+     */
+    public IdempotencyRecord find(String key) {
+        IdempotencyRecord record;
+
+        synchronized (this) {
+            record = this.recent.get(key);
+        }
+
+        if (record != null && this.isLive(record)) {
+            this.memoryHits.increment();
+            return record;
+        }
+
+        Optional<IdempotencyRecord> storedRecord = this.idempotencyRecordRepository.findById(key);
+
+        if (storedRecord.isPresent() && this.isLive(storedRecord.get())) {
+            this.storeHits.increment();
+            this.remember(storedRecord.get());
+            return storedRecord.get();
+        }
+
+        this.misses.increment();
+        return null;
+    }
+
+    /**
+     * Claim the key for a request, so that a concurrent retry does not save the
+     * transaction again
+     *
+     * @param key Idempotency-Key of the request
+     * @return true if claimed, false if another request holds the key
+     */
+    public boolean begin(String key) {
+        return this.inFlight.add(key);
+    }
+
+    /**
+     * Release the key once the request is done
+     *
+     * @param key Idempotency-Key of the request
+     */
+    public void end(String key) {
+        this.inFlight.remove(key);
+    }
+
+    /**
+     * Save the key in the table; must run within the database transaction that
+     * saves the transaction. An expired record of the key that is not purged yet
+     * is replaced.
+     *
+     * @param key           Idempotency-Key of the request
+     * @param transactionId id of the saved transaction
+     * @param requestHash   fingerprint of the request
+     * @return the saved record
+     */
+    public IdempotencyRecord save(String key, long transactionId, String requestHash) {
+        this.idempotencyRecordRepository.deleteByKeyCreatedBefore(key,
+                ZonedDateTime.now().minusHours(this.retentionHours));
+
+        return this.idempotencyRecordRepository
+                .save(new IdempotencyRecord(key, transactionId, requestHash, ZonedDateTime.now()));
+    }
+
+    /**
+     * Keep the record in memory once its database transaction is committed
+     *
+     * @param record record of the key
+     */
+    public synchronized void remember(IdempotencyRecord record) {
+        this.recent.put(record.getIdempotencyKey(), record);
+    }
+
+    /**
+     * Delete the expired keys from the table
+     */
+    @Scheduled(fixedDelayString = "${budlib.idempotency.purge-interval-ms}")
+    @Transactional
+    public void purge() {
+        this.idempotencyRecordRepository.deleteCreatedBefore(ZonedDateTime.now().minusHours(this.retentionHours));
+    }
+}
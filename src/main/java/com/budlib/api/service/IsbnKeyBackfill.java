@@ -0,0 +1,145 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Fills the canonical ISBN 13 key of books which were loaded into the database
+ * directly, for example through the SQL scripts, and therefore never had it
+ * computed
+ */
+@Service
+public class IsbnKeyBackfill {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IsbnKeyBackfill.class);
+
+    /**
+     * Books read and updated in one database transaction
+     */
+    private static final int PAGE_SIZE = 500;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Outcome of one page of the backfill
+     */
+    private static class PageResult {
+        private final long lastBookId;
+        private final int books;
+        private final int computed;
+        private final int duplicates;
+
+        private PageResult(long lastBookId, int books, int computed, int duplicates) {
+            this.lastBookId = lastBookId;
+            this.books = books;
+            this.computed = computed;
+            this.duplicates = duplicates;
+        }
+    }
+
+    /**
+     * Compute the missing keys at startup, a page of books at a time in id order.
+     * Books whose ISBN duplicates another book's are skipped before saving, so
+     * they stay without a key and are counted in the log.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        TransactionTemplate pageTemplate = new TransactionTemplate(this.transactionManager);
+        PageResult result = new PageResult(0, PAGE_SIZE, 0, 0);
+        int count = 0;
+        int duplicates = 0;
+
+        while (result.books == PAGE_SIZE) {
+            long afterBookId = result.lastBookId;
+
+            try {
+                result = pageTemplate.execute(status -> this.backfillPage(afterBookId));
+            }
+
+            catch (DataIntegrityViolationException e) {
+                // a key was taken since the page was checked, the page is left for the next start
+                LOGGER.warn("Could not compute the ISBN keys of the books after {}", afterBookId, e);
+                result = this.skipPage(afterBookId);
+            }
+
+            count += result.computed;
+            duplicates += result.duplicates;
+        }
+
+        if (count > 0) {
+            LOGGER.info("Computed the ISBN key of {} books", count);
+        }
+
+        if (duplicates > 0) {
+            LOGGER.warn("{} books have the same ISBN as another book and were left without an ISBN key", duplicates);
+        }
+    }
+
+    /**
+     * Compute the keys of the next page of books without one. Must run in a
+     * database transaction, which writes the keys that are not taken when it
+     * commits.
+     *
+     * @param afterBookId id of the last book of the previous page
+     * @return outcome of the page
+     */
+    private PageResult backfillPage(long afterBookId) {
+        List<Book> page = this.bookRepository.findWithoutIsbnKeyAfter(afterBookId, PageRequest.of(0, PAGE_SIZE));
+        Map<Long, Book> booksByKey = new HashMap<>();
+        int duplicates = 0;
+
+        // the keys are only set once checked, as the check flushes the books
+        for (Book eachBook : page) {
+            Long key = eachBook.computeIsbnKey();
+
+            if (key != null && booksByKey.putIfAbsent(key, eachBook) != null) {
+                LOGGER.debug("Book {} has the same ISBN {} as another book", eachBook.getBookId(), key);
+                duplicates++;
+            }
+        }
+
+        if (!booksByKey.isEmpty()) {
+            for (Long eachKey : this.bookRepository.findExistingIsbnKeys(booksByKey.keySet())) {
+                LOGGER.debug("Book {} has the same ISBN {} as another book", booksByKey.remove(eachKey).getBookId(),
+                        eachKey);
+                duplicates++;
+            }
+        }
+
+        for (Map.Entry<Long, Book> eachBook : booksByKey.entrySet()) {
+            eachBook.getValue().setIsbnKey(eachBook.getKey());
+        }
+
+        return new PageResult(page.isEmpty() ? afterBookId : page.get(page.size() - 1).getBookId(), page.size(),
+                booksByKey.size(), duplicates);
+    }
+
+    /**
+     * Move past a page whose keys could not be saved
+     *
+     * @param afterBookId id of the last book of the previous page
+     * @return outcome of the page, with no keys computed
+     */
+    private PageResult skipPage(long afterBookId) {
+        List<Book> page = this.bookRepository.findWithoutIsbnKeyAfter(afterBookId, PageRequest.of(0, PAGE_SIZE));
+
+        return new PageResult(page.isEmpty() ? afterBookId : page.get(page.size() - 1).getBookId(), page.size(), 0,
+                0);
+    }
+}
@@ -0,0 +1,203 @@
+package com.budlib.api.service;
+
+import com.budlib.api.repository.*;
+import com.budlib.api.response.Stats;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Library-wide counters shown on the dashboard - unique titles, total copies,
+ * loaners and outstanding copies. The write paths report their changes, which
+ * are applied once their database transaction commits, so the counters never
+ * show rolled back work. The counters are loaded at startup and periodically
+ * reconciled against the tables, correcting any drift.
+ *
+ * Reconciling reads the tables in one snapshot, taken while no write path is
+ * between its commit and applying its changes. Changes applied after the
+ * snapshot are carried over onto the values read, so they are neither lost nor
+ * counted twice.
+ */
+@Service
+public class LibraryCounters {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LibraryCounters.class);
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    @Autowired
+    private LoanRepository loanRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate snapshotTemplate;
+
+    private final AtomicLong uniqueTitles = new AtomicLong();
+    private final AtomicLong totalCopies = new AtomicLong();
+    private final AtomicLong totalLoaners = new AtomicLong();
+    private final AtomicLong outstandingCopies = new AtomicLong();
+
+    /**
+     * Number of changes applied, to tell whether the counters were ever changed
+     */
+    private final AtomicLong changeCount = new AtomicLong();
+
+    /**
+     * Read-held by write paths while they commit and apply their changes,
+     * write-held by a reconcile while it takes its snapshot
+     */
+    private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+
+    /**
+     * Load the counters from the tables
+     */
+    @PostConstruct
+    public void init() {
+        // one snapshot for all the aggregates
+        this.snapshotTemplate = new TransactionTemplate(this.transactionManager);
+        this.snapshotTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        this.snapshotTemplate.setReadOnly(true);
+
+        this.reconcile();
+    }
+
+    /**
+     * Current values of the counters
+     *
+     * @return the stats
+     */
+    public Stats getStats() {
+        return new Stats(this.uniqueTitles.get(), this.totalCopies.get(), this.totalLoaners.get(),
+                this.outstandingCopies.get());
+    }
+
+    /**
+     * Report a change in the counters. Within a database transaction, the change
+     * is applied when the transaction commits and dropped if it rolls back;
+     * otherwise it is applied at once.
+     *
+     * @param titles      change in unique titles
+     * @param copies      change in total copies
+     * @param loaners     change in loaners
+     * @param outstanding change in outstanding copies
+     */
+    public void adjust(long titles, long copies, long loaners, long outstanding) {
+        if (titles == 0 && copies == 0 && loaners == 0 && outstanding == 0) {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                private boolean committing;
+
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    // a reconcile must not take its snapshot between the commit and the change
+                    commitLock.readLock().lock();
+                    this.committing = true;
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (!this.committing) {
+                        return;
+                    }
+
+                    try {
+                        if (status == STATUS_COMMITTED) {
+                            apply(titles, copies, loaners, outstanding);
+                        }
+                    }
+
+                    finally {
+                        commitLock.readLock().unlock();
+                    }
+                }
+            });
+        }
+
+        else {
+            this.apply(titles, copies, loaners, outstanding);
+        }
+    }
+
+    private synchronized void apply(long titles, long copies, long loaners, long outstanding) {
+        this.uniqueTitles.addAndGet(titles);
+        this.totalCopies.addAndGet(copies);
+        this.totalLoaners.addAndGet(loaners);
+        this.outstandingCopies.addAndGet(outstanding);
+        this.changeCount.incrementAndGet();
+    }
+
+    /**
+     * Recompute the counters from the tables. If a write path is committing when
+     * the run starts, the run is skipped until the next time.
+     */
+    @Scheduled(fixedDelayString = "${budlib.stats.reconcile-interval-ms}",
+            initialDelayString = "${budlib.stats.reconcile-interval-ms}")
+    public void reconcile() {
+        long[] drift = this.snapshotTemplate.execute(status -> {
+            Stats atSnapshot;
+            long titles;
+
+            if (!this.commitLock.writeLock().tryLock()) {
+                return null;
+            }
+
+            try {
+                // the first read takes the snapshot that the other reads see
+                titles = this.bookRepository.count();
+                atSnapshot = this.getStats();
+            }
+
+            finally {
+                this.commitLock.writeLock().unlock();
+            }
+
+            long copies = this.bookRepository.sumTotalQuantity();
+            long loaners = this.loanerRepository.count();
+            long outstanding = this.loanRepository.sumCopies();
+
+            return new long[] { titles - atSnapshot.getUniqueTitles(), copies - atSnapshot.getTotalCopies(),
+                    loaners - atSnapshot.getTotalLoaners(), outstanding - atSnapshot.getTotalOutstandingCopies() };
+        });
+
+        if (drift == null) {
+            LOGGER.debug("Dashboard counters not reconciled, a change was committing");
+            return;
+        }
+
+        // the differences between the tables and the counters at the snapshot
+        // are drift; changes applied since then are kept
+        if (drift[0] == 0 && drift[1] == 0 && drift[2] == 0 && drift[3] == 0) {
+            return;
+        }
+
+        synchronized (this) {
+            if (this.changeCount.get() > 0) {
+                LOGGER.warn("Dashboard counters drifted by {} titles, {} copies, {} loaners, {} outstanding copies, "
+                        + "corrected", drift[0], drift[1], drift[2], drift[3]);
+            }
+
+            this.uniqueTitles.addAndGet(drift[0]);
+            this.totalCopies.addAndGet(drift[1]);
+            this.totalLoaners.addAndGet(drift[2]);
+            this.outstandingCopies.addAndGet(drift[3]);
+        }
+    }
+}
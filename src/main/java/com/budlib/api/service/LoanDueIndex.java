@@ -0,0 +1,229 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.Loan;
+import com.budlib.api.repository.LoanRepository;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * In-memory index of the loans by due date, for the overdue and upcoming due
+ * lists of the dashboard. Loan ids are bucketed by their due date in a sorted
+ * map, so a query walks only the days in its range and returns the ids ordered
+ * by due date and then by id.
+ *
+ * The circulation reports the loans it creates, extends and settles; the
+ * changes are applied once their database transaction commits. Changes applied
+ * while a reload reads the database are applied again on top of the reloaded
+ * index, so none is lost.
+ */
+@Service
+public class LoanDueIndex {
+    @Autowired
+    private LoanRepository loanRepository;
+
+    private final TreeMap<LocalDate, Set<Long>> loansByDueDate = new TreeMap<>();
+
+    private final Map<Long, LocalDate> dueDateByLoan = new HashMap<>();
+
+    /**
+     * Only one reload reads the database at a time
+     */
+    private final Object reloadLock = new Object();
+
+    /**
+     * Changes applied since the reload in progress started reading; null when no
+     * reload is in progress
+     */
+    private List<Change> changesDuringReload;
+
+    /**
+     * Due dates and removals committed by one database transaction
+     */
+    private static class Change {
+        private final Map<Long, LocalDate> changes;
+        private final List<Long> removals;
+
+        private Change(Map<Long, LocalDate> changes, List<Long> removals) {
+            this.changes = changes;
+            this.removals = removals;
+        }
+    }
+
+    /**
+     * Load the due dates of all loans
+     */
+    @PostConstruct
+    public void init() {
+        this.reload();
+    }
+
+    /**
+     * Load the due dates of all loans again, replacing the index
+     */
+    public void reload() {
+        synchronized (this.reloadLock) {
+            synchronized (this) {
+                this.changesDuringReload = new ArrayList<>();
+            }
+
+            List<Object[]> dueDates;
+
+            try {
+                dueDates = this.loanRepository.findAllDueDates();
+            }
+
+            catch (RuntimeException e) {
+                synchronized (this) {
+                    this.changesDuringReload = null;
+                }
+
+                throw e;
+            }
+
+            synchronized (this) {
+                this.loansByDueDate.clear();
+                this.dueDateByLoan.clear();
+
+                for (Object[] eachRow : dueDates) {
+                    this.put((Long) eachRow[0], (LocalDate) eachRow[1]);
+                }
+
+                // committed after the read started, or before it and not yet seen
+                // by it; applying a change again leaves the same due dates
+                for (Change eachChange : this.changesDuringReload) {
+                    this.applyChange(eachChange);
+                }
+
+                this.changesDuringReload = null;
+            }
+        }
+    }
+
+    /**
+     * Report loans created, extended or settled. Within a database transaction,
+     * the changes are applied when the transaction commits; otherwise at once.
+     *
+     * @param changedLoans loans created or given a new due date, with their ids
+     *                     assigned
+     * @param settledLoans loans returned in full
+     */
+    public void update(Collection<Loan> changedLoans, Collection<Loan> settledLoans) {
+        if (changedLoans.isEmpty() && settledLoans.isEmpty()) {
+            return;
+        }
+
+        // copied now, as the entities may change before the commit
+        Map<Long, LocalDate> changes = new HashMap<>();
+        List<Long> removals = new ArrayList<>();
+
+        for (Loan eachLoan : changedLoans) {
+            changes.put(eachLoan.getLoanId(), eachLoan.getDueDate());
+        }
+
+        for (Loan eachLoan : settledLoans) {
+            removals.add(eachLoan.getLoanId());
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply(changes, removals);
+                }
+            });
+        }
+
+        else {
+            this.apply(changes, removals);
+        }
+    }
+
+    private synchronized void apply(Map<Long, LocalDate> changes, List<Long> removals) {
+        Change change = new Change(changes, removals);
+        this.applyChange(change);
+
+        if (this.changesDuringReload != null) {
+            this.changesDuringReload.add(change);
+        }
+    }
+
+    private void applyChange(Change change) {
+        for (Map.Entry<Long, LocalDate> eachChange : change.changes.entrySet()) {
+            this.put(eachChange.getKey(), eachChange.getValue());
+        }
+
+        for (Long eachLoanId : change.removals) {
+            this.remove(eachLoanId);
+        }
+    }
+
+    private void put(long loanId, LocalDate dueDate) {
+        this.remove(loanId);
+
+        if (dueDate != null) {
+            this.loansByDueDate.computeIfAbsent(dueDate, d -> new TreeSet<>()).add(loanId);
+            this.dueDateByLoan.put(loanId, dueDate);
+        }
+    }
+
+    private void remove(long loanId) {
+        LocalDate previousDueDate = this.dueDateByLoan.remove(loanId);
+
+        if (previousDueDate != null) {
+            Set<Long> bucket = this.loansByDueDate.get(previousDueDate);
+            bucket.remove(loanId);
+
+            if (bucket.isEmpty()) {
+                this.loansByDueDate.remove(previousDueDate);
+            }
+        }
+    }
+
+    private static List<Long> collect(NavigableMap<LocalDate, Set<Long>> buckets) {
+        List<Long> loanIds = new ArrayList<>();
+
+        for (Set<Long> eachBucket : buckets.values()) {
+            loanIds.addAll(eachBucket);
+        }
+
+        return loanIds;
+    }
+
+    /**
+     * Loans due before the date
+     *
+     * @param date the date, itself excluded
+     * @return loan ids ordered by due date
+     */
+    public synchronized List<Long> findDueBefore(LocalDate date) {
+        return collect(this.loansByDueDate.headMap(date, false));
+    }
+
+    /**
+     * Loans due within the dates
+     *
+     * @param from first date, included
+     * @param to   last date, included
+     * @return loan ids ordered by due date
+     */
+    public synchronized List<Long> findDueBetween(LocalDate from, LocalDate to) {
+        if (to.isBefore(from)) {
+            return new ArrayList<>();
+        }
+
+        return collect(this.loansByDueDate.subMap(from, true, to, true));
+    }
+}
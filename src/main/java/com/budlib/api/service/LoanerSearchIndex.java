@@ -0,0 +1,417 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+
+/**
+ * In-memory trigram index over the names, parent names and school IDs of the
+ * loaners. Substring searches look up the rarest trigram of the search term
+ * and verify only the loaners in its posting list. Fuzzy searches rank the
+ * loaners by the share of the trigrams of the search term that they contain.
+ */
+@Service
+public class LoanerSearchIndex {
+    /**
+     * Searchable attributes of the loaner
+     */
+    public enum SearchField {
+        NAME, PARENT_NAME, SCHOOL_ID;
+    }
+
+    /**
+     * Length of the grams in the index
+     */
+    private static final int GRAM = 3;
+
+    /**
+     * Number of loaners read from the database at once while rebuilding
+     */
+    private static final int REBUILD_PAGE_SIZE = 1000;
+
+    /**
+     * Separates values of the same field so that no gram spans two of them
+     */
+    private static final char VALUE_SEPARATOR = '\u0000';
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    /**
+     * Normalized searchable text of each loaner, ordered by loaner ID
+     */
+    private final Map<SearchField, TreeMap<Long, String>> texts = new EnumMap<>(SearchField.class);
+
+    /**
+     * Posting lists from each trigram to the loaners containing it
+     */
+    private final Map<SearchField, Map<String, Set<Long>>> postings = new EnumMap<>(SearchField.class);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public LoanerSearchIndex() {
+        for (SearchField eachField : SearchField.values()) {
+            this.texts.put(eachField, new TreeMap<>());
+            this.postings.put(eachField, new HashMap<>());
+        }
+    }
+
+    /**
+     * Build the index from the loaner table at startup
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        List<Loaner> allLoaners = new ArrayList<>();
+        PageRequest pageRequest = PageRequest.of(0, REBUILD_PAGE_SIZE, Sort.by("loanerId"));
+        Page<Loaner> page;
+
+        do {
+            page = this.loanerRepository.findAll(pageRequest);
+            allLoaners.addAll(page.getContent());
+            pageRequest = pageRequest.next();
+        } while (page.hasNext());
+
+        this.lock.writeLock().lock();
+
+        try {
+            for (SearchField eachField : SearchField.values()) {
+                this.texts.get(eachField).clear();
+                this.postings.get(eachField).clear();
+            }
+
+            for (Loaner eachLoaner : allLoaners) {
+                this.insert(eachLoaner);
+            }
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lower cases the value; null values become empty
+     *
+     * @param value value to be normalized
+     * @return normalized value
+     */
+    static String normalize(String value) {
+        return value == null ? "" : value.toLowerCase();
+    }
+
+    /**
+     * Extracts the searchable text of the loaner for the field
+     *
+     * @param l     loaner
+     * @param field searchable attribute
+     * @return normalized text
+     */
+    private static String textOf(Loaner l, SearchField field) {
+        switch (field) {
+            case NAME:
+                return normalize(l.getFullName());
+
+            case PARENT_NAME:
+                return normalize(l.getMotherName()) + VALUE_SEPARATOR + normalize(l.getFatherName());
+
+            default:
+                return normalize(l.getSchoolId());
+        }
+    }
+
+    /**
+     * Distinct grams of the text
+     *
+     * @param text normalized text
+     * @return set of grams
+     */
+    static Set<String> grams(String text) {
+        Set<String> result = new HashSet<>();
+
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            String gram = text.substring(i, i + GRAM);
+
+            if (gram.indexOf(VALUE_SEPARATOR) < 0) {
+                result.add(gram);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Distinct grams of the values in the text, each value padded with a space on
+     * both sides so that the word boundaries also count towards similarity
+     *
+     * @param text normalized text
+     * @return set of grams
+     */
+    static Set<String> indexGrams(String text) {
+        Set<String> result = new HashSet<>();
+
+        for (String eachValue : text.split(String.valueOf(VALUE_SEPARATOR), -1)) {
+            if (!eachValue.equals("")) {
+                result.addAll(grams(" " + eachValue + " "));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Add the loaner to the index; caller must hold the write lock
+     */
+    private void insert(Loaner l) {
+        for (SearchField eachField : SearchField.values()) {
+            String text = textOf(l, eachField);
+            this.texts.get(eachField).put(l.getLoanerId(), text);
+
+            Map<String, Set<Long>> fieldPostings = this.postings.get(eachField);
+
+            for (String eachGram : indexGrams(text)) {
+                fieldPostings.computeIfAbsent(eachGram, k -> new HashSet<>()).add(l.getLoanerId());
+            }
+        }
+    }
+
+    /**
+     * Remove the loaner from the index; caller must hold the write lock
+     */
+    private void delete(long loanerId) {
+        for (SearchField eachField : SearchField.values()) {
+            String text = this.texts.get(eachField).remove(loanerId);
+
+            if (text == null) {
+                continue;
+            }
+
+            Map<String, Set<Long>> fieldPostings = this.postings.get(eachField);
+
+            for (String eachGram : indexGrams(text)) {
+                Set<Long> posting = fieldPostings.get(eachGram);
+
+                if (posting != null) {
+                    posting.remove(loanerId);
+
+                    if (posting.isEmpty()) {
+                        fieldPostings.remove(eachGram);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add or replace the loaner in the index
+     *
+     * @param l loaner that was saved
+     */
+    public void put(Loaner l) {
+        this.lock.writeLock().lock();
+
+        try {
+            this.delete(l.getLoanerId());
+            this.insert(l);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add or replace the loaners in the index
+     *
+     * @param loaners loaners that were saved
+     */
+    public void putAll(Collection<Loaner> loaners) {
+        this.lock.writeLock().lock();
+
+        try {
+            for (Loaner eachLoaner : loaners) {
+                this.delete(eachLoaner.getLoanerId());
+                this.insert(eachLoaner);
+            }
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the loaner from the index
+     *
+     * @param loanerId id of the loaner that was deleted
+     */
+    public void remove(long loanerId) {
+        this.lock.writeLock().lock();
+
+        try {
+            this.delete(loanerId);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the loaners whose field contains the search term
+     *
+     * @param field where to search
+     * @param sT    what to search
+     * @param limit maximum number of loaners to return
+     * @return ids of matching loaners in ascending order
+     */
+    public List<Long> search(SearchField field, String sT, int limit) {
+        String searchTerm = normalize(sT);
+        List<Long> result = new ArrayList<>();
+
+        this.lock.readLock().lock();
+
+        try {
+            TreeMap<Long, String> fieldTexts = this.texts.get(field);
+
+            // terms shorter than a gram have no posting list to narrow them down
+            if (searchTerm.length() < GRAM) {
+                for (Map.Entry<Long, String> eachText : fieldTexts.entrySet()) {
+                    if (eachText.getValue().contains(searchTerm)) {
+                        result.add(eachText.getKey());
+
+                        if (result.size() >= limit) {
+                            break;
+                        }
+                    }
+                }
+
+                return result;
+            }
+
+            // every match contains all the grams of the term, so the rarest one
+            // gives the smallest set of candidates to verify
+            Map<String, Set<Long>> fieldPostings = this.postings.get(field);
+            Set<Long> candidates = null;
+
+            for (String eachGram : grams(searchTerm)) {
+                Set<Long> posting = fieldPostings.get(eachGram);
+
+                if (posting == null) {
+                    return result;
+                }
+
+                if (candidates == null || posting.size() < candidates.size()) {
+                    candidates = posting;
+                }
+            }
+
+            for (Long eachCandidate : candidates) {
+                if (fieldTexts.get(eachCandidate).contains(searchTerm)) {
+                    result.add(eachCandidate);
+                }
+            }
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+
+        result.sort(null);
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * Find the loaners whose field is similar to the search term, tolerating
+     * misspellings. Similarity is the share of the trigrams of the search term
+     * found in the field, ties broken by the share of the trigrams in common out
+     * of all trigrams of both.
+     *
+     * @param field     where to search
+     * @param sT        what to search
+     * @param threshold minimum similarity between 0 and 1
+     * @param limit     maximum number of loaners to return
+     * @return ids of matching loaners, most similar first
+     */
+    public List<Long> searchSimilar(SearchField field, String sT, double threshold, int limit) {
+        Set<String> termGrams = indexGrams(normalize(sT).trim());
+        List<Long> result = new ArrayList<>();
+
+        if (termGrams.isEmpty()) {
+            return result;
+        }
+
+        Map<Long, Integer> sharedGrams = new HashMap<>();
+        Map<Long, double[]> scores = new HashMap<>();
+
+        this.lock.readLock().lock();
+
+        try {
+            Map<String, Set<Long>> fieldPostings = this.postings.get(field);
+
+            for (String eachGram : termGrams) {
+                Set<Long> posting = fieldPostings.get(eachGram);
+
+                if (posting != null) {
+                    for (Long eachId : posting) {
+                        sharedGrams.merge(eachId, 1, Integer::sum);
+                    }
+                }
+            }
+
+            int minShared = (int) Math.ceil(threshold * termGrams.size());
+
+            for (Map.Entry<Long, Integer> eachCandidate : sharedGrams.entrySet()) {
+                int shared = eachCandidate.getValue();
+
+                if (shared < minShared) {
+                    continue;
+                }
+
+                int textGrams = indexGrams(this.texts.get(field).get(eachCandidate.getKey())).size();
+                double similarity = (double) shared / termGrams.size();
+                double overlap = (double) shared / (termGrams.size() + textGrams - shared);
+
+                scores.put(eachCandidate.getKey(), new double[] { similarity, overlap });
+            }
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+
+        result.addAll(scores.keySet());
+        result.sort((a, b) -> {
+            double[] scoreA = scores.get(a);
+            double[] scoreB = scores.get(b);
+
+            if (scoreA[0] != scoreB[0]) {
+                return Double.compare(scoreB[0], scoreA[0]);
+            }
+
+            if (scoreA[1] != scoreB[1]) {
+                return Double.compare(scoreB[1], scoreA[1]);
+            }
+
+            return Long.compare(a, b);
+        });
+
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+}
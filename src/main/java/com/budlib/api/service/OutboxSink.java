@@ -0,0 +1,22 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.OutboxEvent;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the circulation events written to the outbox. The sink is
+ * picked with the property budlib.outbox.sink.
+ */
+public interface OutboxSink {
+    /**
+     * Deliver the events in the order given. An event may be delivered again if
+     * marking it fails afterwards, so receivers should ignore event ids they have
+     * already seen.
+     *
+     * @param events events ordered by event id
+     * @throws IOException if the events could not all be delivered; the batch
+     *                     is retried from its first event
+     */
+    void deliver(List<OutboxEvent> events) throws IOException;
+}
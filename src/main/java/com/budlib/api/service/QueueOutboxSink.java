@@ -0,0 +1,51 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.OutboxEvent;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hands the events to a bounded in-memory queue, for consumers running in the
+ * application and for trying out the outbox without a file
+ */
+@Component
+@ConditionalOnProperty(name = "budlib.outbox.sink", havingValue = "queue")
+public class QueueOutboxSink implements OutboxSink {
+    @Value("${budlib.outbox.queue-capacity}")
+    private int queueCapacity;
+
+    private BlockingQueue<OutboxEvent> queue;
+
+    /**
+     * Create the queue
+     */
+    @PostConstruct
+    public void init() {
+        this.queue = new LinkedBlockingQueue<>(this.queueCapacity);
+    }
+
+    /**
+     * Queue the consumers take the delivered events from
+     *
+     * @return the queue
+     */
+    public BlockingQueue<OutboxEvent> getQueue() {
+        return this.queue;
+    }
+
+    @Override
+    public synchronized void deliver(List<OutboxEvent> events) throws IOException {
+        // all or nothing, so that a retried batch is not partly queued twice
+        if (this.queue.remainingCapacity() < events.size()) {
+            throw new IOException("Outbox queue is full");
+        }
+
+        this.queue.addAll(events);
+    }
+}
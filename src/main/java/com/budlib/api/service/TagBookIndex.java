@@ -0,0 +1,324 @@
+package com.budlib.api.service;
+
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import com.budlib.api.response.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * In-memory inverted index from each tag to the compressed bitmap of the books
+ * carrying it. Tag searches, combinations of tags and per-tag counts are
+ * answered without going to the database.
+ */
+@Service
+public class TagBookIndex {
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private TagRepository tagRepository;
+
+    /**
+     * Books carrying each tag, ordered by tag ID
+     */
+    private final TreeMap<Long, Roaring64NavigableMap> booksByTag = new TreeMap<>();
+
+    /**
+     * Tags of each book, to clear the old tags when the book changes
+     */
+    private final Map<Long, long[]> tagsByBook = new HashMap<>();
+
+    /**
+     * Name of each tag
+     */
+    private final Map<Long, String> tagNames = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Build the index at startup from the tags and the book to tag pairs
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        List<Tag> allTags = this.tagRepository.findAll();
+        List<Object[]> allPairs = this.bookRepository.findAllBookTagPairs();
+
+        Map<Long, List<Long>> pairsByBook = new HashMap<>();
+
+        for (Object[] eachPair : allPairs) {
+            pairsByBook.computeIfAbsent((Long) eachPair[0], k -> new ArrayList<>()).add((Long) eachPair[1]);
+        }
+
+        this.lock.writeLock().lock();
+
+        try {
+            this.booksByTag.clear();
+            this.tagsByBook.clear();
+            this.tagNames.clear();
+
+            for (Tag eachTag : allTags) {
+                this.tagNames.put(eachTag.getTagId(), eachTag.getTagName());
+                this.booksByTag.put(eachTag.getTagId(), new Roaring64NavigableMap());
+            }
+
+            for (Map.Entry<Long, List<Long>> eachBook : pairsByBook.entrySet()) {
+                this.insertBook(eachBook.getKey(), eachBook.getValue().stream().mapToLong(Long::longValue).toArray());
+            }
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add the book under its tags; caller must hold the write lock
+     */
+    private void insertBook(long bookId, long[] tagIds) {
+        for (long eachTagId : tagIds) {
+            this.booksByTag.computeIfAbsent(eachTagId, k -> new Roaring64NavigableMap()).addLong(bookId);
+        }
+
+        this.tagsByBook.put(bookId, tagIds);
+    }
+
+    /**
+     * Remove the book from its tags; caller must hold the write lock
+     */
+    private void deleteBook(long bookId) {
+        long[] oldTagIds = this.tagsByBook.remove(bookId);
+
+        if (oldTagIds == null) {
+            return;
+        }
+
+        for (long eachTagId : oldTagIds) {
+            Roaring64NavigableMap books = this.booksByTag.get(eachTagId);
+
+            if (books != null) {
+                books.removeLong(bookId);
+            }
+        }
+    }
+
+    /**
+     * Add or replace the book and its tags in the index
+     *
+     * @param b book that was saved
+     */
+    public void putBook(Book b) {
+        List<Tag> tags = b.getTags() == null ? new ArrayList<>() : b.getTags();
+        long[] tagIds = new long[tags.size()];
+
+        for (int i = 0; i < tags.size(); i++) {
+            tagIds[i] = tags.get(i).getTagId();
+        }
+
+        this.lock.writeLock().lock();
+
+        try {
+            for (Tag eachTag : tags) {
+                this.tagNames.put(eachTag.getTagId(), eachTag.getTagName());
+            }
+
+            this.deleteBook(b.getBookId());
+            this.insertBook(b.getBookId(), tagIds);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add or replace the books and their tags in the index
+     *
+     * @param books books that were saved
+     */
+    public void putBooks(Collection<Book> books) {
+        for (Book eachBook : books) {
+            this.putBook(eachBook);
+        }
+    }
+
+    /**
+     * Remove the book from the index
+     *
+     * @param bookId id of the book that was deleted
+     */
+    public void removeBook(long bookId) {
+        this.lock.writeLock().lock();
+
+        try {
+            this.deleteBook(bookId);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add the tag to the index
+     *
+     * @param t tag that was saved
+     */
+    public void putTag(Tag t) {
+        this.lock.writeLock().lock();
+
+        try {
+            this.tagNames.put(t.getTagId(), t.getTagName());
+            this.booksByTag.computeIfAbsent(t.getTagId(), k -> new Roaring64NavigableMap());
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the tag from the index
+     *
+     * @param tagId id of the tag that was deleted
+     */
+    public void removeTag(long tagId) {
+        this.lock.writeLock().lock();
+
+        try {
+            this.tagNames.remove(tagId);
+            this.booksByTag.remove(tagId);
+        }
+
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Find the tags with name containing the search term
+     *
+     * @param sT search term
+     * @return ids of the matching tags
+     */
+    public List<Long> findTagIdsByName(String sT) {
+        String searchTerm = sT.toLowerCase();
+        List<Long> tagIds = new ArrayList<>();
+
+        this.lock.readLock().lock();
+
+        try {
+            for (Map.Entry<Long, String> eachTag : this.tagNames.entrySet()) {
+                if (eachTag.getValue() != null && eachTag.getValue().toLowerCase().contains(searchTerm)) {
+                    tagIds.add(eachTag.getKey());
+                }
+            }
+
+            return tagIds;
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Books carrying all the given tags
+     *
+     * @param tagIds ids of the tags
+     * @return bitmap of book ids; empty if no tag is given
+     */
+    public Roaring64NavigableMap booksWithAllTags(Collection<Long> tagIds) {
+        Roaring64NavigableMap result = null;
+
+        this.lock.readLock().lock();
+
+        try {
+            for (Long eachTagId : tagIds) {
+                Roaring64NavigableMap books = this.booksByTag.get(eachTagId);
+
+                if (books == null) {
+                    return new Roaring64NavigableMap();
+                }
+
+                if (result == null) {
+                    result = new Roaring64NavigableMap();
+                    result.or(books);
+                }
+
+                else {
+                    result.and(books);
+                }
+            }
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+
+        return result == null ? new Roaring64NavigableMap() : result;
+    }
+
+    /**
+     * Books carrying at least one of the given tags
+     *
+     * @param tagIds ids of the tags
+     * @return bitmap of book ids
+     */
+    public Roaring64NavigableMap booksWithAnyTag(Collection<Long> tagIds) {
+        Roaring64NavigableMap result = new Roaring64NavigableMap();
+
+        this.lock.readLock().lock();
+
+        try {
+            for (Long eachTagId : tagIds) {
+                Roaring64NavigableMap books = this.booksByTag.get(eachTagId);
+
+                if (books != null) {
+                    result.or(books);
+                }
+            }
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * Number of books carrying each tag
+     *
+     * @return list of tag counts ordered by tag id
+     */
+    public List<TagCount> countBooksByTag() {
+        List<TagCount> counts = new ArrayList<>();
+
+        this.lock.readLock().lock();
+
+        try {
+            for (Map.Entry<Long, Roaring64NavigableMap> eachTag : this.booksByTag.entrySet()) {
+                counts.add(new TagCount(eachTag.getKey(), this.tagNames.get(eachTag.getKey()),
+                        eachTag.getValue().getLongCardinality()));
+            }
+
+            return counts;
+        }
+
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+}
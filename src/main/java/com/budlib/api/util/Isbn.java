@@ -0,0 +1,55 @@
+package com.budlib.api.util;
+
+/**
+ * Conversions between the textual ISBNs and the canonical ISBN 13 key
+ */
+public final class Isbn {
+    private Isbn() {
+    }
+
+    /**
+     * Compute the check digit of an ISBN 13 from its first 12 digits
+     *
+     * @param first12 first 12 digits of the ISBN 13
+     * @return check digit
+     */
+    private static int checkDigit13(String first12) {
+        int sum = 0;
+
+        for (int i = 0; i < 12; i++) {
+            int digit = first12.charAt(i) - '0';
+            sum += (i % 2 == 0) ? digit : 3 * digit;
+        }
+
+        return (10 - sum % 10) % 10;
+    }
+
+    /**
+     * Convert an ISBN 10 or ISBN 13 into the canonical ISBN 13 number. Dashes,
+     * spaces and other separators are ignored. An ISBN 10 is prefixed with 978 and
+     * gets a recomputed check digit.
+     *
+     * @param isbn ISBN 10 or ISBN 13
+     * @return ISBN 13 as a number; null if the value is not an ISBN
+     */
+    public static Long toIsbn13Key(String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+
+        String digits = isbn.toUpperCase().replaceAll("[^0-9X]", "");
+
+        if (digits.matches("\\d{13}")) {
+            return Long.valueOf(digits);
+        }
+
+        else if (digits.matches("\\d{9}[\\dX]")) {
+            String first12 = "978" + digits.substring(0, 9);
+            return Long.valueOf(first12 + checkDigit13(first12));
+        }
+
+        else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.budlib.api;
+
+/**
+ * MySQL functions used by native queries that H2 does not have, registered on
+ * the test database by the h2 profile
+ */
+public final class H2Functions {
+    private H2Functions() {
+    }
+
+    /**
+     * MySQL ELT: the string at the position, counting from 1, or null if there
+     * is none
+     *
+     * @param position position of the string
+     * @param strings  strings to pick from
+     * @return the string at the position
+     */
+    public static String elt(Integer position, String... strings) {
+        if (position == null || position < 1 || position > strings.length) {
+            return null;
+        }
+
+        return strings[position - 1];
+    }
+}
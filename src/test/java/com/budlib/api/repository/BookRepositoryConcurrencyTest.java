@@ -0,0 +1,108 @@
+package com.budlib.api.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.budlib.api.model.Book;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Checks out the last copies of one title from many threads at once, and
+ * checks the guarded decrement never lends more copies than are available
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class BookRepositoryConcurrencyTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BookRepositoryConcurrencyTest.class);
+
+    private static final int THREADS = 16;
+
+    private static final int CHECKOUTS = 400;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @AfterEach
+    void deleteBooks() {
+        this.bookRepository.deleteAll();
+    }
+
+    @Test
+    void lendsExactlyTheAvailableCopies() throws Exception {
+        assertCheckouts(5, 1);
+    }
+
+    @Test
+    void lendsNoMoreCopiesThanAvailableWhenBorrowingSeveral() throws Exception {
+        assertCheckouts(7, 3);
+    }
+
+    /**
+     * Run concurrent checkouts of the same title, each in its own transaction
+     *
+     * @param available copies available before the checkouts
+     * @param copies    copies taken by each checkout
+     */
+    private void assertCheckouts(int available, int copies) throws Exception {
+        Book book = new Book();
+        book.setTitle("Hot title");
+        book.setTotalQuantity(available);
+        book.setAvailableQuantity(available);
+        long bookId = this.bookRepository.save(book).getBookId();
+
+        TransactionTemplate template = new TransactionTemplate(this.transactionManager);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+
+        for (int i = 0; i < CHECKOUTS; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return template.execute(status -> this.bookRepository.decrementAvailableQuantity(bookId, copies));
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        int lent = 0;
+
+        try {
+            for (Future<Integer> eachResult : results) {
+                lent += eachResult.get(30, TimeUnit.SECONDS);
+            }
+        }
+
+        finally {
+            executor.shutdownNow();
+        }
+
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        LOGGER.info("{} checkouts on {} threads in {} ms ({} per second)", CHECKOUTS, THREADS, elapsedMillis,
+                CHECKOUTS * 1000L / elapsedMillis);
+
+        int remaining = this.bookRepository.findById(bookId).orElseThrow().getAvailableQuantity();
+
+        assertEquals(available / copies, lent);
+        assertEquals(available % copies, remaining);
+        assertTrue(remaining >= 0);
+    }
+}
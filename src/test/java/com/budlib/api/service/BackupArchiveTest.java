@@ -0,0 +1,229 @@
+package com.budlib.api.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.budlib.api.repository.*;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Writes archives of tables of stubbed sizes, each range exporting one line
+ * per id, and checks the ranges cover every id once and the entries come out
+ * in id order however the ranges finish
+ */
+class BackupArchiveTest {
+    private static final String BOOKS_ENTRY = "budlib_books_export.csv";
+    private static final String LOANERS_ENTRY = "budlib_loaners_export.csv";
+    private static final String LOANS_ENTRY = "budlib_outstanding_loans_export.csv";
+    private static final String TRANSACTIONS_ENTRY = "budlib_transactions_export.csv";
+
+    private final CsvExports csvExports = mock(CsvExports.class);
+    private final BookRepository bookRepository = mock(BookRepository.class);
+    private final LoanerRepository loanerRepository = mock(LoanerRepository.class);
+    private final LoanRepository loanRepository = mock(LoanRepository.class);
+    private final TrnQuantitiesRepository trnQuantitiesRepository = mock(TrnQuantitiesRepository.class);
+
+    /**
+     * Ranges exported, as "entryName:fromId-toId", in the order they were started
+     */
+    private final List<String> exportedRanges = new ArrayList<>();
+
+    private BackupArchive backupArchive;
+
+    @AfterEach
+    void stop() {
+        if (this.backupArchive != null) {
+            this.backupArchive.stop();
+        }
+    }
+
+    @Test
+    void coversEveryIdOnceWhenTheMaxIdEndsARange() throws Exception {
+        Map<String, List<String>> entries = this.writeArchive(4, 20, 8, 0, 0, 0);
+
+        assertEquals(List.of("0-4", "4-8", "8-12", "12-16", "16-20"), this.exportedRangesOf(BOOKS_ENTRY));
+        assertEquals(List.of("0-4", "4-8"), this.exportedRangesOf(LOANERS_ENTRY));
+        assertEquals(ids(1, 20), entries.get(BOOKS_ENTRY));
+        assertEquals(ids(1, 8), entries.get(LOANERS_ENTRY));
+    }
+
+    @Test
+    void clampsTheLastRangeToTheMaxId() throws Exception {
+        Map<String, List<String>> entries = this.writeArchive(4, 21, 3, 0, 0, 0);
+
+        assertEquals(List.of("0-4", "4-8", "8-12", "12-16", "16-20", "20-21"), this.exportedRangesOf(BOOKS_ENTRY));
+        assertEquals(List.of("0-3"), this.exportedRangesOf(LOANERS_ENTRY));
+        assertEquals(ids(1, 21), entries.get(BOOKS_ENTRY));
+        assertEquals(ids(1, 3), entries.get(LOANERS_ENTRY));
+    }
+
+    @Test
+    void writesOnlyTheHeadersOfAnEmptyTable() throws Exception {
+        Map<String, List<String>> entries = this.writeArchive(4, 0, 0, 0, 0, 0);
+
+        assertEquals(List.of(), this.exportedRanges);
+        assertEquals(List.of(BOOKS_ENTRY, LOANERS_ENTRY, LOANS_ENTRY, TRANSACTIONS_ENTRY),
+                new ArrayList<>(entries.keySet()));
+
+        for (List<String> eachEntry : entries.values()) {
+            assertEquals(List.of(), eachEntry);
+        }
+    }
+
+    @Test
+    void writesTheRowsInIdOrderWhenLaterRangesFinishFirst() throws Exception {
+        // each range takes longer the lower its ids, so the ranges finish in reverse
+        Map<String, List<String>> entries = this.writeArchive(1, 12, 5, 7, 9, 20);
+
+        assertEquals(ids(1, 12), entries.get(BOOKS_ENTRY));
+        assertEquals(ids(1, 5), entries.get(LOANERS_ENTRY));
+        assertEquals(ids(1, 7), entries.get(LOANS_ENTRY));
+        assertEquals(ids(1, 9), entries.get(TRANSACTIONS_ENTRY));
+    }
+
+    /**
+     * Write the archive of tables with the given highest ids
+     *
+     * @param rangeSize        ids per range
+     * @param maxBookId        highest book id
+     * @param maxLoanerId      highest loaner id
+     * @param maxLoanId        highest loan id
+     * @param maxTransactionId highest transaction id
+     * @param delayPerIdMillis delay of a range per id below the highest of its
+     *                         table
+     * @return rows of each entry without the headers, by entry name in the order
+     *         of the archive
+     */
+    private Map<String, List<String>> writeArchive(long rangeSize, long maxBookId, long maxLoanerId, long maxLoanId,
+            long maxTransactionId, long delayPerIdMillis) throws Exception {
+
+        when(this.bookRepository.findMaxBookId()).thenReturn(maxBookId);
+        when(this.loanerRepository.findMaxLoanerId()).thenReturn(maxLoanerId);
+        when(this.loanRepository.findMaxLoanId()).thenReturn(maxLoanId);
+        when(this.trnQuantitiesRepository.findMaxTransactionId()).thenReturn(maxTransactionId);
+
+        this.stubExport(BOOKS_ENTRY, maxBookId, delayPerIdMillis).writeBooks(any(Writer.class), anyLong(), anyLong());
+        this.stubExport(LOANERS_ENTRY, maxLoanerId, delayPerIdMillis).writeLoaners(any(Writer.class), anyLong(),
+                anyLong());
+        this.stubExport(LOANS_ENTRY, maxLoanId, delayPerIdMillis).writeLoans(any(Writer.class), anyLong(), anyLong());
+        this.stubExport(TRANSACTIONS_ENTRY, maxTransactionId, delayPerIdMillis).writeTransactions(any(Writer.class),
+                anyLong(), anyLong());
+
+        this.backupArchive = new BackupArchive();
+        ReflectionTestUtils.setField(this.backupArchive, "csvExports", this.csvExports);
+        ReflectionTestUtils.setField(this.backupArchive, "bookRepository", this.bookRepository);
+        ReflectionTestUtils.setField(this.backupArchive, "loanerRepository", this.loanerRepository);
+        ReflectionTestUtils.setField(this.backupArchive, "loanRepository", this.loanRepository);
+        ReflectionTestUtils.setField(this.backupArchive, "trnQuantitiesRepository", this.trnQuantitiesRepository);
+        ReflectionTestUtils.setField(this.backupArchive, "threads", 4);
+        ReflectionTestUtils.setField(this.backupArchive, "rangeSize", rangeSize);
+        this.backupArchive.start();
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        this.backupArchive.writeTo(archive);
+
+        return readEntries(archive.toByteArray());
+    }
+
+    /**
+     * Stub the export of a table to write the ids of the range, one per line
+     *
+     * @param entryName        entry of the table
+     * @param maxId            highest id in the table
+     * @param delayPerIdMillis delay of a range per id below maxId
+     * @return the mock to stub the export method on
+     */
+    private CsvExports stubExport(String entryName, long maxId, long delayPerIdMillis) {
+        return doAnswer(invocation -> {
+            Writer writer = invocation.getArgument(0);
+            long fromId = invocation.getArgument(1);
+            long toId = invocation.getArgument(2);
+
+            synchronized (this.exportedRanges) {
+                this.exportedRanges.add(entryName + ":" + fromId + "-" + toId);
+            }
+
+            Thread.sleep((maxId - toId) * delayPerIdMillis);
+
+            for (long id = fromId + 1; id <= toId; id++) {
+                writer.write(id + "\n");
+            }
+
+            return null;
+        }).when(this.csvExports);
+    }
+
+    /**
+     * Ranges exported of the entry, in order of their first id
+     *
+     * @param entryName entry of the table
+     * @return ranges as "fromId-toId"
+     */
+    private List<String> exportedRangesOf(String entryName) {
+        List<String> ranges = new ArrayList<>();
+
+        synchronized (this.exportedRanges) {
+            for (String eachRange : this.exportedRanges) {
+                if (eachRange.startsWith(entryName + ":")) {
+                    ranges.add(eachRange.substring(entryName.length() + 1));
+                }
+            }
+        }
+
+        ranges.sort((a, b) -> Long.compare(Long.parseLong(a.split("-")[0]), Long.parseLong(b.split("-")[0])));
+        return ranges;
+    }
+
+    private static Map<String, List<String>> readEntries(byte[] archive) throws Exception {
+        Map<String, List<String>> entries = new LinkedHashMap<>();
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive), StandardCharsets.UTF_8)) {
+            ZipEntry entry;
+
+            while ((entry = zip.getNextEntry()) != null) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(zip, StandardCharsets.UTF_8));
+                List<String> rows = new ArrayList<>();
+
+                // the first line holds the headers
+                reader.readLine();
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    rows.add(line);
+                }
+
+                entries.put(entry.getName(), rows);
+            }
+        }
+
+        return entries;
+    }
+
+    private static List<String> ids(long fromId, long toId) {
+        List<String> ids = new ArrayList<>();
+
+        for (long id = fromId; id <= toId; id++) {
+            ids.add(String.valueOf(id));
+        }
+
+        return ids;
+    }
+}
@@ -0,0 +1,146 @@
+package com.budlib.api.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.budlib.api.enums.TransactionType;
+import com.budlib.api.model.OutboxEvent;
+import com.budlib.api.repository.OutboxEventRepository;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Dispatches the outbox into a queue too small for all the pending events, and
+ * checks that a failed batch is retried from its first event, no event is
+ * marked before it is delivered, and the events of each loaner arrive in order
+ */
+@DataJpaTest(properties = {
+        "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+        "budlib.outbox.sink=queue",
+        "budlib.outbox.queue-capacity=5",
+        "budlib.outbox.batch-size=3",
+        "budlib.outbox.poll-interval-ms=3600000",
+        "budlib.outbox.retention-hours=168",
+        "budlib.outbox.purge-interval-ms=3600000" })
+@Import({ CirculationOutbox.class, QueueOutboxSink.class })
+@ImportAutoConfiguration(JacksonAutoConfiguration.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class CirculationOutboxTest {
+    private static final int EVENTS = 8;
+
+    private static final int LOANERS = 3;
+
+    @Autowired
+    private CirculationOutbox circulationOutbox;
+
+    @Autowired
+    private QueueOutboxSink queueOutboxSink;
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @AfterEach
+    void deleteEvents() {
+        this.outboxEventRepository.deleteAll();
+        this.queueOutboxSink.getQueue().clear();
+    }
+
+    @Test
+    void resumesFromTheFirstFailedEvent() {
+        List<Long> eventIds = this.saveEvents();
+
+        // the first batch of 3 fits, the second finds room for only 2 and fails
+        this.circulationOutbox.dispatch();
+
+        List<OutboxEvent> delivered = new ArrayList<>(this.queueOutboxSink.getQueue());
+        assertEquals(eventIds.subList(0, 3), idsOf(delivered));
+
+        for (int i = 0; i < EVENTS; i++) {
+            OutboxEvent stored = this.outboxEventRepository.findById(eventIds.get(i)).orElseThrow();
+
+            if (i < 3) {
+                assertNotNull(stored.getDispatchedAt());
+            }
+
+            else {
+                assertNull(stored.getDispatchedAt());
+            }
+        }
+
+        // once the consumer catches up, the next round starts at the failed event
+        this.queueOutboxSink.getQueue().clear();
+        this.circulationOutbox.dispatch();
+
+        delivered = new ArrayList<>(this.queueOutboxSink.getQueue());
+        assertEquals(eventIds.subList(3, EVENTS), idsOf(delivered));
+        assertEquals(0, this.outboxEventRepository.findByDispatchedAtIsNullOrderByEventIdAsc(PageRequest.of(0, 10))
+                .size());
+    }
+
+    @Test
+    void keepsTheOrderOfEachLoaner() {
+        this.saveEvents();
+        List<OutboxEvent> delivered = new ArrayList<>();
+
+        // drain the queue between rounds, as a consumer would
+        for (int round = 0; round < EVENTS; round++) {
+            this.circulationOutbox.dispatch();
+            delivered.addAll(this.queueOutboxSink.getQueue());
+            this.queueOutboxSink.getQueue().clear();
+        }
+
+        assertEquals(EVENTS, delivered.size());
+
+        Map<Long, Long> lastTransactionByLoaner = new HashMap<>();
+
+        for (OutboxEvent eachEvent : delivered) {
+            Long last = lastTransactionByLoaner.put(eachEvent.getLoanerId(), eachEvent.getTransactionId());
+
+            if (last != null) {
+                assertEquals(last + LOANERS, eachEvent.getTransactionId());
+            }
+        }
+    }
+
+    /**
+     * Save pending events of interleaved loaners, each loaner's transactions in
+     * increasing order
+     *
+     * @return ids of the events in the order saved
+     */
+    private List<Long> saveEvents() {
+        List<Long> eventIds = new ArrayList<>();
+
+        for (int i = 0; i < EVENTS; i++) {
+            OutboxEvent event = new OutboxEvent(0L, TransactionType.BORROW, i + 1, i % LOANERS,
+                    "{\"transactionId\":" + (i + 1) + "}", ZonedDateTime.now(), null);
+            eventIds.add(this.outboxEventRepository.save(event).getEventId());
+        }
+
+        return eventIds;
+    }
+
+    private static List<Long> idsOf(List<OutboxEvent> events) {
+        List<Long> ids = new ArrayList<>();
+
+        for (OutboxEvent eachEvent : events) {
+            ids.add(eachEvent.getEventId());
+        }
+
+        return ids;
+    }
+}
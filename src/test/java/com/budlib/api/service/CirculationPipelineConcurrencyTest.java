@@ -0,0 +1,186 @@
+package com.budlib.api.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.budlib.api.enums.TransactionType;
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Borrows the last copies of two titles from many threads at once through the
+ * circulation pipeline, some transactions taking both titles so that they
+ * cross lanes, and checks the copies lent match the transactions and loans
+ * saved
+ */
+@SpringBootTest
+@ActiveProfiles("h2")
+class CirculationPipelineConcurrencyTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CirculationPipelineConcurrencyTest.class);
+
+    private static final int THREADS = 16;
+
+    private static final int BORROWS = 300;
+
+    private static final int LOANERS = 20;
+
+    @Autowired
+    private CirculationPipeline circulationPipeline;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    @Autowired
+    private LibrarianRepository librarianRepository;
+
+    @Autowired
+    private TransactionRepository transactionRepository;
+
+    @Autowired
+    private LoanRepository loanRepository;
+
+    @Test
+    void lendsNoMoreCopiesThanAvailable() throws Exception {
+        Book first = this.saveBook("First hot title", 10);
+        Book second = this.saveBook("Second hot title", 6);
+
+        Librarian librarian = new Librarian();
+        librarian.setUserName("desk");
+        librarian = this.librarianRepository.save(librarian);
+
+        List<Loaner> loaners = new ArrayList<>();
+
+        for (int i = 0; i < LOANERS; i++) {
+            Loaner loaner = new Loaner();
+            loaner.setFirstName("Loaner " + i);
+            loaners.add(this.loanerRepository.save(loaner));
+        }
+
+        long transactionsBefore = this.transactionRepository.count();
+        long loansBefore = this.loanRepository.count();
+        long loanedCopiesBefore = this.loanRepository.sumCopies();
+        String today = LocalDate.now().format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<CompletableFuture<Transaction>>> submissions = new ArrayList<>();
+
+        for (int i = 0; i < BORROWS; i++) {
+            Transaction t = new Transaction();
+            t.setTransactionType(TransactionType.BORROW);
+            t.setTransactionDateTime(ZonedDateTime.now());
+            t.setLoaner(loaners.get(i % LOANERS));
+            t.setLibrarian(librarian);
+
+            // a third of the borrows take both titles
+            List<TrnQuantities> bookCopies = new ArrayList<>();
+
+            if (i % 3 != 1) {
+                bookCopies.add(quantity(first, 1));
+            }
+
+            if (i % 3 != 0) {
+                bookCopies.add(quantity(second, 1));
+            }
+
+            t.setBookCopies(bookCopies);
+
+            submissions.add(executor.submit(() -> {
+                start.await();
+                return this.circulationPipeline.submit(t, today, null, null, null);
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+
+        int saved = 0;
+        int rejected = 0;
+        int savedBooks = 0;
+        int lentFirst = 0;
+        int lentSecond = 0;
+
+        try {
+            for (Future<CompletableFuture<Transaction>> eachSubmission : submissions) {
+                try {
+                    Transaction savedTrn = eachSubmission.get(30, TimeUnit.SECONDS).get(30, TimeUnit.SECONDS);
+                    saved++;
+
+                    for (TrnQuantities eachQuantity : savedTrn.getBookCopies()) {
+                        savedBooks++;
+
+                        if (eachQuantity.getBook().getBookId() == first.getBookId()) {
+                            lentFirst += eachQuantity.getCopies();
+                        }
+
+                        else {
+                            lentSecond += eachQuantity.getCopies();
+                        }
+                    }
+                }
+
+                catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof CirculationService.CirculationException, e.toString());
+                    rejected++;
+                }
+            }
+        }
+
+        finally {
+            executor.shutdownNow();
+        }
+
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        LOGGER.info("{} borrows on {} threads in {} ms, {} saved", BORROWS, THREADS, elapsedMillis, saved);
+
+        int remainingFirst = this.bookRepository.findById(first.getBookId()).orElseThrow().getAvailableQuantity();
+        int remainingSecond = this.bookRepository.findById(second.getBookId()).orElseThrow().getAvailableQuantity();
+
+        assertEquals(BORROWS, saved + rejected);
+        assertTrue(saved > 0);
+        assertTrue(remainingFirst >= 0);
+        assertTrue(remainingSecond >= 0);
+        assertEquals(10 - lentFirst, remainingFirst);
+        assertEquals(6 - lentSecond, remainingSecond);
+
+        assertEquals(saved, this.transactionRepository.count() - transactionsBefore);
+        assertEquals(savedBooks, this.loanRepository.count() - loansBefore);
+        assertEquals(lentFirst + lentSecond, this.loanRepository.sumCopies() - loanedCopiesBefore);
+    }
+
+    private Book saveBook(String title, int copies) {
+        Book book = new Book();
+        book.setTitle(title);
+        book.setTotalQuantity(copies);
+        book.setAvailableQuantity(copies);
+        return this.bookRepository.save(book);
+    }
+
+    private static TrnQuantities quantity(Book book, int copies) {
+        TrnQuantities tq = new TrnQuantities();
+        tq.setBook(book);
+        tq.setCopies(copies);
+        return tq;
+    }
+}
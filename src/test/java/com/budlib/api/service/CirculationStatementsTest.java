@@ -0,0 +1,123 @@
+package com.budlib.api.service;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.budlib.api.enums.TransactionType;
+import com.budlib.api.model.*;
+import com.budlib.api.repository.*;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+/**
+ * Counts the statements Hibernate prepares for a borrow of 1, 10 and 30 books
+ * through the circulation pipeline, and checks each extra book adds only its
+ * loan insert and its availability update, the rest being batched
+ */
+@SpringBootTest
+@ActiveProfiles("h2")
+class CirculationStatementsTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CirculationStatementsTest.class);
+
+    private static final int REPEATS = 5;
+
+    @Autowired
+    private CirculationPipeline circulationPipeline;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private LoanerRepository loanerRepository;
+
+    @Autowired
+    private LibrarianRepository librarianRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Test
+    void preparesAFewStatementsPerBook() throws Exception {
+        Librarian librarian = new Librarian();
+        librarian.setUserName("statements");
+        librarian = this.librarianRepository.save(librarian);
+
+        Statistics statistics = this.entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        assertTrue(statistics.isStatisticsEnabled());
+
+        long one = this.countStatements(statistics, librarian, 1);
+        long ten = this.countStatements(statistics, librarian, 10);
+        long thirty = this.countStatements(statistics, librarian, 30);
+
+        LOGGER.info("Statements prepared for a borrow of 1, 10 and 30 books: {}, {}, {}", one, ten, thirty);
+
+        // a loan insert and an availability update per book
+        assertTrue(ten - one <= 9 * 2, "10 books: " + ten + ", 1 book: " + one);
+        assertTrue(thirty - ten <= 20 * 2, "30 books: " + thirty + ", 10 books: " + ten);
+    }
+
+    /**
+     * Borrow the given number of books a few times, each time by a new loaner
+     *
+     * @param statistics statistics of the session factory
+     * @param librarian  librarian of the transactions
+     * @param books      distinct books borrowed in each transaction
+     * @return fewest statements prepared by a borrow, as the scheduled jobs may
+     *         prepare some of their own at the same time
+     */
+    private long countStatements(Statistics statistics, Librarian librarian, int books) throws Exception {
+        String today = LocalDate.now().format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+        long fewest = Long.MAX_VALUE;
+
+        for (int r = 0; r < REPEATS; r++) {
+            Loaner loaner = new Loaner();
+            loaner.setFirstName("Loaner of " + books + " books");
+            loaner = this.loanerRepository.save(loaner);
+
+            List<TrnQuantities> bookCopies = new ArrayList<>();
+
+            for (int i = 0; i < books; i++) {
+                Book book = new Book();
+                book.setTitle("Title " + i + " of " + books);
+                book.setTotalQuantity(2);
+                book.setAvailableQuantity(2);
+
+                TrnQuantities tq = new TrnQuantities();
+                tq.setBook(this.bookRepository.save(book));
+                tq.setCopies(1);
+                bookCopies.add(tq);
+            }
+
+            Transaction t = new Transaction();
+            t.setTransactionType(TransactionType.BORROW);
+            t.setTransactionDateTime(ZonedDateTime.now());
+            t.setLoaner(loaner);
+            t.setLibrarian(librarian);
+            t.setBookCopies(bookCopies);
+
+            statistics.clear();
+            this.circulationPipeline.submit(t, today, null, null, null).get(30, TimeUnit.SECONDS);
+            long prepared = statistics.getPrepareStatementCount();
+
+            LOGGER.info("Borrow of {} books: {} statements prepared, {} inserts, {} updates, {} queries", books,
+                    prepared, statistics.getEntityInsertCount(), statistics.getEntityUpdateCount(),
+                    statistics.getQueryExecutionCount());
+
+            fewest = Math.min(fewest, prepared);
+        }
+
+        return fewest;
+    }
+}
@@ -0,0 +1,86 @@
+package com.budlib.api.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.budlib.api.enums.TransactionType;
+import com.budlib.api.model.OutboxEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Delivers batches to the file sink and checks the events are appended one
+ * line each, in the order given
+ */
+class FileOutboxSinkTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void appendsTheEventsInOrder() throws Exception {
+        Path file = this.tempDir.resolve("outbox").resolve("events.jsonl");
+
+        FileOutboxSink sink = new FileOutboxSink();
+        ReflectionTestUtils.setField(sink, "objectMapper", this.objectMapper);
+        ReflectionTestUtils.setField(sink, "file", file.toString());
+        sink.open();
+
+        try {
+            sink.deliver(List.of(event(1, 7), event(2, 8)));
+            sink.deliver(List.of(event(3, 7)));
+        }
+
+        finally {
+            sink.close();
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(3, lines.size());
+
+        long[][] expected = { { 1, 7 }, { 2, 8 }, { 3, 7 } };
+
+        for (int i = 0; i < expected.length; i++) {
+            JsonNode line = this.objectMapper.readTree(lines.get(i));
+
+            assertEquals(expected[i][0], line.get("eventId").asLong());
+            assertEquals(expected[i][1], line.get("loanerId").asLong());
+            assertEquals(expected[i][0], line.get("payload").get("transactionId").asLong());
+        }
+    }
+
+    @Test
+    void keepsTheEventsOfEarlierRuns() throws Exception {
+        Path file = this.tempDir.resolve("events.jsonl");
+        Files.writeString(file, "{\"eventId\":1}\n");
+
+        FileOutboxSink sink = new FileOutboxSink();
+        ReflectionTestUtils.setField(sink, "objectMapper", this.objectMapper);
+        ReflectionTestUtils.setField(sink, "file", file.toString());
+        sink.open();
+
+        try {
+            sink.deliver(List.of(event(2, 7)));
+        }
+
+        finally {
+            sink.close();
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(2, lines.size());
+        assertEquals(2, this.objectMapper.readTree(lines.get(1)).get("eventId").asLong());
+    }
+
+    private static OutboxEvent event(long eventId, long loanerId) {
+        return new OutboxEvent(eventId, TransactionType.BORROW, eventId, loanerId,
+                "{\"transactionId\":" + eventId + "}", ZonedDateTime.now(), null);
+    }
+}
@@ -0,0 +1,79 @@
+package com.budlib.api.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.budlib.api.model.Book;
+import com.budlib.api.repository.BookRepository;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Loads books without ISBN keys straight into the table, over more than two
+ * pages, some sharing an ISBN within a page and some across pages, and checks
+ * every other book gets its key and the duplicates are left without one
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@Import(IsbnKeyBackfill.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class IsbnKeyBackfillTest {
+    private static final int BOOKS = 1200;
+
+    private static final long FIRST_ISBN = 9780000000000L;
+
+    @Autowired
+    private IsbnKeyBackfill isbnKeyBackfill;
+
+    @Autowired
+    private BookRepository bookRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void skipsTheDuplicatesOfEachPage() {
+        List<Object[]> rows = new ArrayList<>();
+
+        for (long id = 1; id <= BOOKS; id++) {
+            rows.add(new Object[] { id, "Title " + id, String.valueOf(FIRST_ISBN + isbnOf(id)) });
+        }
+
+        this.jdbcTemplate.batchUpdate("INSERT INTO book (book_id, title, isbn_13, library_section, total_quantity,"
+                + " available_quantity) VALUES (?, ?, ?, 0, 1, 1)", rows);
+        this.jdbcTemplate.update("UPDATE book SET isbn_13 = 'not an isbn' WHERE book_id = 1100");
+
+        this.isbnKeyBackfill.backfill();
+
+        for (Book eachBook : this.bookRepository.findAll()) {
+            long id = eachBook.getBookId();
+
+            if (id == 6 || id == 700 || id == 1100) {
+                assertNull(eachBook.getIsbnKey(), "book " + id);
+            }
+
+            else {
+                assertEquals(FIRST_ISBN + isbnOf(id), eachBook.getIsbnKey(), "book " + id);
+            }
+        }
+
+        // the duplicates are skipped again without failing
+        this.isbnKeyBackfill.backfill();
+        assertEquals(BOOKS - 3, this.jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM book WHERE isbn_key IS NOT NULL", Integer.class));
+    }
+
+    /**
+     * Book 6 shares the ISBN of book 5, in the same page, and book 700 that of
+     * book 1, in an earlier page
+     */
+    private static long isbnOf(long id) {
+        return id == 6 ? 5 : id == 700 ? 1 : id;
+    }
+}